@@ -0,0 +1,292 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.WString;
+
+/** Compares the cost of calling the same native function through an
+ * interface mapping, a direct mapping ({@link Native#register}) and plain
+ * JNI, for each kind of argument JNA marshals.  Functions are those of
+ * the test library (<code>native/testlib.c</code>); varargs are only
+ * supported by interface mappings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class CallBenchmark {
+
+    static final String LIBNAME = "testlib";
+    static final int LENGTH = 256;
+
+    public static class TestStructure extends Structure {
+        public static class ByValue extends TestStructure implements Structure.ByValue { }
+        public byte int8Field;
+        public short int16Field;
+        public int int32Field;
+        public long int64Field;
+        public float floatField;
+        public double doubleField;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "int8Field", "int16Field", "int32Field", "int64Field", "floatField", "doubleField" });
+        }
+    }
+
+    public interface TestInterface extends Library {
+        int returnInt32Argument(int arg);
+        long returnInt64Argument(long arg);
+        double returnDoubleArgument(double arg);
+        Pointer returnPointerArgument(Pointer arg);
+        NativeLong returnLongArgument(NativeLong arg);
+        String returnStringArgument(String arg);
+        WString returnWStringArgument(WString arg);
+        Pointer testStructurePointerArgument(TestStructure arg);
+        int testStructureByValueArgument(TestStructure.ByValue arg);
+        int fillInt32Buffer(int[] buf, int len, int value);
+        int fillInt32Buffer(IntBuffer buf, int len, int value);
+        int addInt32VarArgs(String fmt, Object... args);
+    }
+
+    public static class TestDirect {
+        public static native int returnInt32Argument(int arg);
+        public static native long returnInt64Argument(long arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native Pointer returnPointerArgument(Pointer arg);
+        public static native NativeLong returnLongArgument(NativeLong arg);
+        public static native String returnStringArgument(String arg);
+        public static native WString returnWStringArgument(WString arg);
+        public static native Pointer testStructurePointerArgument(TestStructure arg);
+        public static native int testStructureByValueArgument(TestStructure.ByValue arg);
+        public static native int fillInt32Buffer(int[] buf, int len, int value);
+        public static native int fillInt32Buffer(IntBuffer buf, int len, int value);
+        static {
+            Native.register(LIBNAME);
+        }
+    }
+
+    /** Hand-written JNI equivalents, also found in the test library. */
+    public static class JNI {
+        static {
+            System.load(NativeLibrary.getInstance(LIBNAME).getFile().getAbsolutePath());
+        }
+        public static native int returnInt32Argument(int arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native long returnPointerArgument(long arg);
+        public static native int returnStringLength(String arg);
+        public static native void fillInt32Array(int[] buf, int value);
+    }
+
+    TestInterface lib;
+    Pointer pointer;
+    NativeLong nativeLong;
+    String string;
+    WString wstring;
+    TestStructure structure;
+    TestStructure.ByValue structureByValue;
+    int[] array;
+    IntBuffer directBuffer;
+    IntBuffer heapBuffer;
+
+    @Setup
+    public void setUp() {
+        lib = (TestInterface)Native.loadLibrary(LIBNAME, TestInterface.class);
+        // Force registration before measurement
+        TestDirect.returnInt32Argument(0);
+        JNI.returnInt32Argument(0);
+        pointer = new Memory(LENGTH);
+        nativeLong = new NativeLong(42);
+        string = "a typical string argument";
+        wstring = new WString(string);
+        structure = new TestStructure();
+        structureByValue = new TestStructure.ByValue();
+        array = new int[LENGTH];
+        directBuffer = ByteBuffer.allocateDirect(LENGTH*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        heapBuffer = IntBuffer.allocate(LENGTH);
+    }
+
+    @Benchmark
+    public int interfaceInt32() {
+        return lib.returnInt32Argument(42);
+    }
+
+    @Benchmark
+    public int directInt32() {
+        return TestDirect.returnInt32Argument(42);
+    }
+
+    @Benchmark
+    public int jniInt32() {
+        return JNI.returnInt32Argument(42);
+    }
+
+    @Benchmark
+    public long interfaceInt64() {
+        return lib.returnInt64Argument(42);
+    }
+
+    @Benchmark
+    public long directInt64() {
+        return TestDirect.returnInt64Argument(42);
+    }
+
+    @Benchmark
+    public double interfaceDouble() {
+        return lib.returnDoubleArgument(42);
+    }
+
+    @Benchmark
+    public double directDouble() {
+        return TestDirect.returnDoubleArgument(42);
+    }
+
+    @Benchmark
+    public double jniDouble() {
+        return JNI.returnDoubleArgument(42);
+    }
+
+    @Benchmark
+    public Pointer interfacePointer() {
+        return lib.returnPointerArgument(pointer);
+    }
+
+    @Benchmark
+    public Pointer directPointer() {
+        return TestDirect.returnPointerArgument(pointer);
+    }
+
+    @Benchmark
+    public long jniPointer() {
+        return JNI.returnPointerArgument(42);
+    }
+
+    @Benchmark
+    public NativeLong interfaceNativeMapped() {
+        return lib.returnLongArgument(nativeLong);
+    }
+
+    @Benchmark
+    public NativeLong directNativeMapped() {
+        return TestDirect.returnLongArgument(nativeLong);
+    }
+
+    @Benchmark
+    public String interfaceString() {
+        return lib.returnStringArgument(string);
+    }
+
+    @Benchmark
+    public String directString() {
+        return TestDirect.returnStringArgument(string);
+    }
+
+    @Benchmark
+    public int jniString() {
+        return JNI.returnStringLength(string);
+    }
+
+    @Benchmark
+    public WString interfaceWString() {
+        return lib.returnWStringArgument(wstring);
+    }
+
+    @Benchmark
+    public WString directWString() {
+        return TestDirect.returnWStringArgument(wstring);
+    }
+
+    @Benchmark
+    public Pointer interfaceStructure() {
+        return lib.testStructurePointerArgument(structure);
+    }
+
+    @Benchmark
+    public Pointer directStructure() {
+        return TestDirect.testStructurePointerArgument(structure);
+    }
+
+    @Benchmark
+    public int interfaceStructureByValue() {
+        return lib.testStructureByValueArgument(structureByValue);
+    }
+
+    @Benchmark
+    public int directStructureByValue() {
+        return TestDirect.testStructureByValueArgument(structureByValue);
+    }
+
+    @Benchmark
+    public int interfaceArray() {
+        return lib.fillInt32Buffer(array, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int directArray() {
+        return TestDirect.fillInt32Buffer(array, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int[] jniArray() {
+        JNI.fillInt32Array(array, 42);
+        return array;
+    }
+
+    @Benchmark
+    public int interfaceDirectBuffer() {
+        return lib.fillInt32Buffer(directBuffer, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int directDirectBuffer() {
+        return TestDirect.fillInt32Buffer(directBuffer, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int interfaceHeapBuffer() {
+        return lib.fillInt32Buffer(heapBuffer, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int directHeapBuffer() {
+        return TestDirect.fillInt32Buffer(heapBuffer, LENGTH, 42);
+    }
+
+    @Benchmark
+    public int interfaceVarArgs() {
+        return lib.addInt32VarArgs("dd", 1, 2);
+    }
+}
@@ -0,0 +1,148 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Callback;
+import com.sun.jna.CallbackProxy;
+import com.sun.jna.CallbackThreadInitializer;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+
+/** Measures native to Java callback invocation.  Callbacks passed to a
+ * direct mapping are invoked directly, those passed to an interface
+ * mapping are invoked reflectively or, for {@link CallbackProxy}, through
+ * a single generic method.  Callbacks made from native threads are measured
+ * both attaching and detaching the thread around each invocation and
+ * keeping it attached.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class CallbackBenchmark {
+
+    /** Number of callbacks made from each native thread. */
+    static final int THREAD_CALLS = 1000;
+
+    public interface Int32Callback extends Callback {
+        int callback(int arg, int arg2);
+    }
+
+    public interface VoidCallback extends Callback {
+        void callback();
+    }
+
+    public interface TestInterface extends Library {
+        int callInt32Callback(Int32Callback cb, int arg, int arg2);
+        int callInt32Callback(Callback cb, int arg, int arg2);
+        void callVoidCallbackThreaded(VoidCallback cb, int count, int ms);
+    }
+
+    public static class TestDirect {
+        public static native int callInt32Callback(Int32Callback cb, int arg, int arg2);
+        static {
+            Native.register(CallBenchmark.LIBNAME);
+        }
+    }
+
+    static class Counter implements VoidCallback {
+        volatile int count;
+        public void callback() {
+            ++count;
+        }
+        void await(int expected) {
+            while (count < expected) {
+                Thread.yield();
+            }
+        }
+    }
+
+    TestInterface lib;
+    Int32Callback callback;
+    CallbackProxy proxy;
+    Counter detaching;
+    Counter attached;
+
+    @Setup
+    public void setUp() {
+        lib = (TestInterface)Native.loadLibrary(CallBenchmark.LIBNAME, TestInterface.class);
+        callback = new Int32Callback() {
+            public int callback(int arg, int arg2) {
+                return arg + arg2;
+            }
+        };
+        proxy = new CallbackProxy() {
+            public Object callback(Object[] args) {
+                return new Integer(((Integer)args[0]).intValue()
+                                   + ((Integer)args[1]).intValue());
+            }
+            public Class[] getParameterTypes() {
+                return new Class[] { int.class, int.class };
+            }
+            public Class getReturnType() {
+                return int.class;
+            }
+        };
+        detaching = new Counter();
+        Native.setCallbackThreadInitializer(detaching, new CallbackThreadInitializer(true, true));
+        attached = new Counter();
+        Native.setCallbackThreadInitializer(attached, new CallbackThreadInitializer(true, false));
+    }
+
+    @Benchmark
+    public int direct() {
+        return TestDirect.callInt32Callback(callback, 1, 2);
+    }
+
+    @Benchmark
+    public int proxy() {
+        return lib.callInt32Callback(callback, 1, 2);
+    }
+
+    @Benchmark
+    public int callbackProxy() {
+        return lib.callInt32Callback(proxy, 1, 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREAD_CALLS)
+    public int nativeThreadDetached() {
+        detaching.count = 0;
+        lib.callVoidCallbackThreaded(detaching, THREAD_CALLS, 0);
+        detaching.await(THREAD_CALLS);
+        return detaching.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREAD_CALLS)
+    public int nativeThreadAttached() {
+        attached.count = 0;
+        lib.callVoidCallbackThreaded(attached, THREAD_CALLS, 0);
+        attached.await(THREAD_CALLS);
+        return attached.count;
+    }
+}
@@ -0,0 +1,87 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Memory;
+import com.sun.jna.MemoryPool;
+
+/** Measures native memory allocation with {@link Memory}, including the
+ * cost of eventually freeing it when collected, against direct NIO
+ * buffers of the same size, with and without the {@link MemoryPool}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MemoryBenchmark {
+
+    /** Size of each allocation in bytes. */
+    @Param({ "16", "256", "4096", "65536" })
+    public int size;
+
+    /** Whether small allocations use the {@link MemoryPool}. */
+    @Param({ "false", "true" })
+    public boolean pooled;
+
+    Memory memory;
+
+    @Setup
+    public void setUp() {
+        MemoryPool.setEnabled(pooled);
+        memory = new Memory(size);
+    }
+
+    @Benchmark
+    public Memory allocate() {
+        return new Memory(size);
+    }
+
+    @Benchmark
+    public Memory allocateAndClose() {
+        Memory m = new Memory(size);
+        m.close();
+        return m;
+    }
+
+    @Benchmark
+    public Memory allocateAndClear() {
+        Memory m = new Memory(size);
+        m.clear();
+        return m;
+    }
+
+    @Benchmark
+    public ByteBuffer allocateDirectBuffer() {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Benchmark
+    public ByteBuffer getByteBuffer() {
+        return memory.getByteBuffer(0, size);
+    }
+}
@@ -0,0 +1,153 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Structure;
+import com.sun.jna.StructureColumns;
+
+/** Measures copying {@link Structure} fields to and from native memory,
+ * for a structure of many primitive fields and for an array field of
+ * increasing size, and reading one field of many structures individually
+ * or with {@link StructureColumns}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class StructureBenchmark {
+
+    public static class FieldStructure extends Structure {
+        public byte f0;
+        public short f1;
+        public int f2;
+        public long f3;
+        public float f4;
+        public double f5;
+        public int f6, f7, f8, f9, f10, f11, f12, f13, f14, f15;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "f0", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9", "f10", "f11", "f12", "f13", "f14", "f15" });
+        }
+    }
+
+    public static class ArrayStructure extends Structure {
+        public int length;
+        public int[] data;
+        public ArrayStructure(int size) {
+            data = new int[size];
+            length = size;
+            allocateMemory();
+        }
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "length", "data" });
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ArrayState {
+        /** Number of elements in the array field. */
+        @Param({ "1", "16", "256", "4096" })
+        public int size;
+        ArrayStructure array;
+
+        @Setup
+        public void setUp() {
+            array = new ArrayStructure(size);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ColumnState {
+        static final int COUNT = 1024;
+        FieldStructure[] array;
+        StructureColumns columns;
+        int[] column = new int[COUNT];
+
+        @Setup
+        public void setUp() {
+            array = (FieldStructure[])new FieldStructure().toArray(COUNT);
+            columns = new StructureColumns(array);
+        }
+    }
+
+    FieldStructure fields;
+
+    @Setup
+    public void setUp() {
+        fields = new FieldStructure();
+    }
+
+    @Benchmark
+    public FieldStructure writeFields() {
+        fields.write();
+        return fields;
+    }
+
+    @Benchmark
+    public FieldStructure readFields() {
+        fields.read();
+        return fields;
+    }
+
+    @Benchmark
+    public Object readField() {
+        return fields.readField("f15");
+    }
+
+    @Benchmark
+    public FieldStructure writeField() {
+        fields.writeField("f15");
+        return fields;
+    }
+
+    @Benchmark
+    public ArrayStructure writeArray(ArrayState state) {
+        state.array.write();
+        return state.array;
+    }
+
+    @Benchmark
+    public ArrayStructure readArray(ArrayState state) {
+        state.array.read();
+        return state.array;
+    }
+
+    @Benchmark
+    public int[] readFieldEach(ColumnState state) {
+        for (int i=0;i < ColumnState.COUNT;i++) {
+            state.column[i] = ((Integer)state.array[i].readField("f2")).intValue();
+        }
+        return state.column;
+    }
+
+    @Benchmark
+    public int[] gatherField(ColumnState state) {
+        state.columns.gather("f2", 0, state.column, 0, ColumnState.COUNT);
+        return state.column;
+    }
+}
@@ -15,6 +15,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <stdarg.h>
+#include <stddef.h>
 #include <string.h>
 #include <jni.h>
 
@@ -100,6 +101,10 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
   argc = (*env)->GetArrayLength(env, param_types);
 
   cb = (callback *)malloc(sizeof(callback));
+  cb->behavior_flags = 0;
+  cb->queue = NULL;
+  cb->queue_id = 0;
+  cb->producers = 0;
   cb->closure = ffi_closure_alloc(sizeof(ffi_closure), &cb->x_closure);
   cb->saved_x_closure = cb->x_closure;
   cb->object = (*env)->NewWeakGlobalRef(env, obj);
@@ -471,11 +476,301 @@ callback_invoke(JNIEnv* env, callback *cb, ffi_cif* cif, void *resp, void **cbar
   }
 }
 
+// Whether threads attached for a callback are detached when the callback
+// returns, unless a CallbackThreadInitializer or Native.detach says otherwise
+static jboolean detach_default = JNI_TRUE;
+
+// Number of native threads attached to and detached from the VM by callbacks
+#ifdef _WIN32
+static volatile LONG attach_count;
+static volatile LONG detach_count;
+#define COUNT(X) InterlockedIncrement(&(X))
+#else
+#include <pthread.h>
+static pthread_mutex_t count_lock = PTHREAD_MUTEX_INITIALIZER;
+static long attach_count;
+static long detach_count;
+#define COUNT(X) do { \
+  pthread_mutex_lock(&count_lock); ++(X); pthread_mutex_unlock(&count_lock); \
+} while(0)
+#endif
+
+void
+callback_set_detach_default(jboolean detach) {
+  detach_default = detach;
+}
+
+jboolean
+callback_get_detach_default() {
+  return detach_default;
+}
+
+jlong
+callback_get_attach_count() {
+  return (jlong)attach_count;
+}
+
+jlong
+callback_get_detach_count() {
+  return (jlong)detach_count;
+}
+
+// Bounded MPSC ring of asynchronous callback events.  Each slot carries a
+// sequence number indicating whether it is free for the producer at a given
+// position (seq == pos) or ready for the consumer (seq == pos + 1).
+// Producers claim a position with CAS on the tail; the consumer is
+// serialized by the Java CallbackQueue.  Idle consumers block until a
+// producer signals that an event is ready or the queue is closed.
+#define MAX_ARGS com_sun_jna_Native_CB_QUEUE_MAX_ARGS
+#if defined(_WIN32)
+#define CAS(P,O,N) \
+  (InterlockedCompareExchangePointer((PVOID volatile*)(P),(PVOID)(N),(PVOID)(O)) == (PVOID)(O))
+#define ATOMIC_INC(P) InterlockedIncrement((LONG volatile*)(P))
+#define ATOMIC_DEC(P) InterlockedDecrement((LONG volatile*)(P))
+#define YIELD() Sleep(0)
+#else
+#include <sched.h>
+#include <sys/time.h>
+#define CAS(P,O,N) __sync_bool_compare_and_swap((P),(O),(N))
+#define ATOMIC_INC(P) __sync_add_and_fetch((P), 1)
+#define ATOMIC_DEC(P) __sync_sub_and_fetch((P), 1)
+#define YIELD() sched_yield()
+#endif
+
+typedef struct _queue_slot {
+  volatile size_t seq;
+  jint id;
+  jlong args[MAX_ARGS];
+} queue_slot;
+
+typedef struct _callback_queue {
+  size_t mask;
+  volatile size_t tail;
+  volatile size_t head;
+  volatile size_t dropped;
+  // Number of consumers blocked or about to block waiting for an event
+  volatile long waiters;
+  volatile int closed;
+#ifdef _WIN32
+  HANDLE event;
+#else
+  pthread_mutex_t lock;
+  pthread_cond_t ready;
+#endif
+  queue_slot slots[1];
+} callback_queue;
+
+void*
+callback_queue_create(jint capacity) {
+  callback_queue* q = (callback_queue*)
+    malloc(sizeof(callback_queue) + sizeof(queue_slot) * (capacity - 1));
+  size_t i;
+  if (q) {
+    q->mask = capacity - 1;
+    q->tail = q->head = q->dropped = 0;
+    q->waiters = 0;
+    q->closed = 0;
+    for (i=0;i < (size_t)capacity;i++) {
+      q->slots[i].seq = i;
+    }
+#ifdef _WIN32
+    q->event = CreateEvent(NULL, FALSE, FALSE, NULL);
+    if (q->event == NULL) {
+      free(q);
+      q = NULL;
+    }
+#else
+    pthread_mutex_init(&q->lock, NULL);
+    pthread_cond_init(&q->ready, NULL);
+#endif
+  }
+  return q;
+}
+
+void
+callback_queue_free(void* queue) {
+  callback_queue* q = (callback_queue*)queue;
+#ifdef _WIN32
+  CloseHandle(q->event);
+#else
+  pthread_cond_destroy(&q->ready);
+  pthread_mutex_destroy(&q->lock);
+#endif
+  free(q);
+}
+
+jlong
+callback_queue_get_dropped(void* q) {
+  return (jlong)((callback_queue*)q)->dropped;
+}
+
+// Whether an event is ready for the consumer
+static int
+callback_queue_ready(callback_queue* q) {
+  size_t head = q->head;
+  return q->slots[head & q->mask].seq == head + 1;
+}
+
+// Wake a consumer blocked in callback_queue_wait, if any
+static void
+callback_queue_signal(callback_queue* q, int all) {
+  MEMORY_BARRIER();
+  if (q->waiters == 0) {
+    return;
+  }
+#ifdef _WIN32
+  (void)all;
+  SetEvent(q->event);
+#else
+  pthread_mutex_lock(&q->lock);
+  if (all) {
+    pthread_cond_broadcast(&q->ready);
+  }
+  else {
+    pthread_cond_signal(&q->ready);
+  }
+  pthread_mutex_unlock(&q->lock);
+#endif
+}
+
+// Block for up to timeout milliseconds until an event is ready or the queue
+// is closed
+void
+callback_queue_wait(void* queue, jint timeout) {
+  callback_queue* q = (callback_queue*)queue;
+#ifdef _WIN32
+  ATOMIC_INC(&q->waiters);
+  if (!q->closed && !callback_queue_ready(q)) {
+    WaitForSingleObject(q->event, (DWORD)timeout);
+  }
+  ATOMIC_DEC(&q->waiters);
+  if (q->closed) {
+    // Pass the wakeup on to any other waiting consumer
+    SetEvent(q->event);
+  }
+#else
+  struct timeval now;
+  struct timespec deadline;
+  gettimeofday(&now, NULL);
+  deadline.tv_sec = now.tv_sec + timeout / 1000;
+  deadline.tv_nsec = now.tv_usec * 1000L + (timeout % 1000) * 1000000L;
+  if (deadline.tv_nsec >= 1000000000L) {
+    deadline.tv_sec += 1;
+    deadline.tv_nsec -= 1000000000L;
+  }
+  pthread_mutex_lock(&q->lock);
+  ATOMIC_INC(&q->waiters);
+  if (!q->closed && !callback_queue_ready(q)) {
+    pthread_cond_timedwait(&q->ready, &q->lock, &deadline);
+  }
+  ATOMIC_DEC(&q->waiters);
+  pthread_mutex_unlock(&q->lock);
+#endif
+}
+
+// Wake all waiting consumers; subsequent waits return immediately
+void
+callback_queue_close(void* queue) {
+  callback_queue* q = (callback_queue*)queue;
+  q->closed = 1;
+  callback_queue_signal(q, 1);
+}
+
+// Stop queueing events for the given callback, waiting for any threads
+// which are already queueing one.  Once this returns, the callback no
+// longer references its queue, which may then be freed.
+void
+callback_queue_detach(callback* cb) {
+  cb->behavior_flags &= ~CB_ASYNC;
+  cb->queue = NULL;
+  MEMORY_BARRIER();
+  while (cb->producers != 0) {
+    YIELD();
+  }
+}
+
+// Copy the callback arguments into the next free slot, or drop the event if
+// the queue is full.  Returns zero if the callback has been detached from
+// its queue, in which case it must be invoked synchronously.
+static int
+callback_enqueue(callback* cb, ffi_cif* cif, void** cbargs) {
+  callback_queue* q;
+  queue_slot* slot;
+  size_t pos;
+  unsigned int i;
+
+  // Registered before reading the queue, so that callback_queue_detach
+  // either sees this thread or this thread sees the cleared queue
+  ATOMIC_INC(&cb->producers);
+  q = (callback_queue*)cb->queue;
+  if (q == NULL) {
+    ATOMIC_DEC(&cb->producers);
+    return 0;
+  }
+  pos = q->tail;
+  for (;;) {
+    size_t seq;
+    slot = &q->slots[pos & q->mask];
+    seq = slot->seq;
+    MEMORY_BARRIER();
+    if (seq == pos) {
+      if (CAS(&q->tail, pos, pos + 1)) {
+        break;
+      }
+    }
+    else if ((ptrdiff_t)(seq - pos) < 0) {
+      size_t dropped;
+      do {
+        dropped = q->dropped;
+      } while (!CAS(&q->dropped, dropped, dropped + 1));
+      ATOMIC_DEC(&cb->producers);
+      return 1;
+    }
+    pos = q->tail;
+  }
+  slot->id = cb->queue_id;
+  for (i=0;i < cif->nargs;i++) {
+    memcpy(&slot->args[i], cbargs[i], cif->arg_types[i]->size);
+  }
+  MEMORY_BARRIER();
+  slot->seq = pos + 1;
+  callback_queue_signal(q, 0);
+  ATOMIC_DEC(&cb->producers);
+  return 1;
+}
+
+// Copy up to max events into the buffer, each as the callback's queue ID
+// followed by its arguments, returning the number of events copied
+jint
+callback_queue_drain(void* queue, void* buffer, jint max) {
+  callback_queue* q = (callback_queue*)queue;
+  char* event = (char*)buffer;
+  jint count = 0;
+
+  while (count < max) {
+    queue_slot* slot = &q->slots[q->head & q->mask];
+    size_t seq = slot->seq;
+    MEMORY_BARRIER();
+    if (seq != q->head + 1) {
+      break;
+    }
+    *(jint*)event = slot->id;
+    memcpy(event + sizeof(jlong), slot->args, sizeof(slot->args));
+    MEMORY_BARRIER();
+    slot->seq = q->head + q->mask + 1;
+    ++q->head;
+    event += sizeof(jlong) * (MAX_ARGS + 1);
+    ++count;
+  }
+  return count;
+}
+
 // Handle automatic thread cleanup
 static void detach_thread(void* data) {
   if (data != NULL) {
     JavaVM* jvm = (JavaVM *)data;
     (*jvm)->DetachCurrentThread(jvm);
+    COUNT(detach_count);
   }
 }
 
@@ -507,8 +802,6 @@ BOOL WINAPI DllMain(HINSTANCE hDLL, DWORD fdwReason, LPVOID lpvReserved) {
 
 #else
 
-#include <pthread.h>
-
 static pthread_key_t key;
 static void make_key() {
   pthread_key_create(&key, detach_thread);
@@ -537,21 +830,28 @@ callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
   callback* cb = ((callback *)user_data); 
   JavaVM* jvm = cb->vm;
   JNIEnv* env;
-  int was_attached = (*jvm)->GetEnv(jvm, (void *)&env, JNI_VERSION_1_4) == JNI_OK;
-  jboolean detach = was_attached ? JNI_FALSE : JNI_TRUE;
+  int was_attached;
+  jboolean detach;
+
+  if ((cb->behavior_flags & CB_ASYNC) && callback_enqueue(cb, cif, cbargs)) {
+    return;
+  }
+  was_attached = (*jvm)->GetEnv(jvm, (void *)&env, JNI_VERSION_1_4) == JNI_OK;
+  detach = was_attached ? JNI_FALSE : detach_default;
 
   if (!was_attached) {
     int attach_status = 0;
     JavaVMAttachArgs args;
-    int daemon = JNI_FALSE;
+    // Threads left attached until they exit must not keep the VM alive
+    int daemon = detach ? JNI_FALSE : JNI_TRUE;
 
     args.version = JNI_VERSION_1_2;
     args.name = NULL;
     args.group = NULL;
     if (cb->behavior_flags & CB_HAS_INITIALIZER) {
       AttachOptions options;
-      options.daemon = JNI_FALSE; // default non-daemon
-      options.detach = JNI_TRUE; // default detach behavior
+      options.daemon = daemon;
+      options.detach = detach;
       options.name = NULL;
       args.group = initializeThread(cb, &options);
       daemon = options.daemon ? JNI_TRUE : JNI_FALSE;
@@ -568,6 +868,7 @@ callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
       fprintf(stderr, "JNA: Can't attach native thread to VM for callback: %d\n", attach_status);
       return;
     }
+    COUNT(attach_count);
     if (args.group) {
       (*env)->DeleteWeakGlobalRef(env, args.group);
     }
@@ -594,6 +895,7 @@ callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
   
   if (detach) {
     (*jvm)->DetachCurrentThread(jvm);
+    COUNT(detach_count);
     jvm_detach_on_exit(NULL);
   }
   else if (!was_attached) {
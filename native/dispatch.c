@@ -53,6 +53,9 @@
 #else
 #include <dlfcn.h>
 #include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
 #define STRTYPE char*
 #ifdef __APPLE__
 #define NAME2CSTR(ENV,JSTR) newCStringUTF8(ENV,JSTR)
@@ -78,6 +81,8 @@
 
 #include <stdlib.h>
 #include <string.h>
+#include <ctype.h>
+#include <stddef.h>
 #include <wchar.h>
 #include <jni.h>
 
@@ -227,6 +232,7 @@ static jmethodID MID_String_getBytes;
 static jmethodID MID_String_getBytes2;
 static jmethodID MID_String_toCharArray;
 static jmethodID MID_String_init_bytes;
+static jmethodID MID_String_init_bytes2;
 static jmethodID MID_Method_getReturnType;
 static jmethodID MID_Method_getParameterTypes;
 static jmethodID MID_Long_init;
@@ -256,7 +262,6 @@ static jmethodID MID_DoubleBuffer_arrayOffset;
 #endif /* NO_NIO_BUFFERS */
 
 static jmethodID MID_Pointer_init;
-static jmethodID MID_Native_updateLastError;
 static jmethodID MID_Native_fromNative;
 static jmethodID MID_Native_nativeType;
 static jmethodID MID_Native_toNativeTypeMapped;
@@ -293,6 +298,29 @@ static jfieldID FID_PointerType_pointer;
 /* Value of System property jna.encoding. */
 static const char* jna_encoding = NULL;
 
+/* Encodings which are converted without calling back into the VM */
+enum {
+  ENCODING_OTHER = com_sun_jna_Native_ENCODING_OTHER,
+  ENCODING_UTF8 = com_sun_jna_Native_ENCODING_UTF8,
+  ENCODING_ASCII = com_sun_jna_Native_ENCODING_ASCII,
+  ENCODING_LATIN1 = com_sun_jna_Native_ENCODING_LATIN1,
+};
+static int jna_encoding_type = ENCODING_OTHER;
+static int default_encoding_type = ENCODING_OTHER;
+
+/* Last error preserved for each thread after native calls, read by
+ * Native.getLastError.
+ */
+#ifdef _WIN32
+static DWORD last_error_key = TLS_OUT_OF_INDEXES;
+#define PRESERVE_LAST_ERROR(E) TlsSetValue(last_error_key, (LPVOID)(INT_PTR)(E))
+#define PRESERVED_LAST_ERROR() ((int)(INT_PTR)TlsGetValue(last_error_key))
+#else
+static pthread_key_t last_error_key;
+#define PRESERVE_LAST_ERROR(E) pthread_setspecific(last_error_key, (void*)(ptrdiff_t)(E))
+#define PRESERVED_LAST_ERROR() ((int)(ptrdiff_t)pthread_getspecific(last_error_key))
+#endif
+
 /* Forward declarations */
 static char* newCString(JNIEnv *env, jstring jstr);
 static char* newCStringUTF8(JNIEnv *env, jstring jstr);
@@ -305,7 +333,6 @@ static void* getDirectBufferAddress(JNIEnv*, jobject);
 #endif
 static char getArrayComponentType(JNIEnv *, jobject);
 static ffi_type* getStructureType(JNIEnv *, jobject);
-static void update_last_error(JNIEnv*, int);
 
 typedef void (JNICALL* release_t)(JNIEnv*,jarray,void*,jint);
 
@@ -366,6 +393,186 @@ ffi_error(JNIEnv* env, const char* op, ffi_status status) {
   }
 }
 
+/* Prepared call interfaces, keyed by calling convention, return type and
+   argument types.  Entries are never removed (until unload), so lookups
+   proceed without locking; the lock only serializes insertion.  Only
+   signatures made up entirely of the builtin libffi types are cached, since
+   structure type information may be freed and its address reused.
+*/
+#define CIF_CACHE_BUCKETS 256
+#define CIF_CACHE_MAX 1024
+
+typedef struct _cif_entry {
+  struct _cif_entry* next;
+  unsigned hash;
+  ffi_cif cif;
+  ffi_type* arg_types[1];
+} cif_entry;
+
+static cif_entry* volatile cif_cache[CIF_CACHE_BUCKETS];
+static int cif_cache_count;
+static mutex_t cif_cache_lock;
+
+static int
+is_cacheable(ffi_type* type) {
+  return type->type != FFI_TYPE_STRUCT;
+}
+
+static unsigned
+cif_hash(ffi_abi abi, int nargs, ffi_type* rtype, ffi_type** types) {
+  unsigned hash = (unsigned)abi * 31 + (unsigned)nargs;
+  int i;
+  hash = hash * 31 + (unsigned)(A2L(rtype) >> 3);
+  for (i=0;i < nargs;i++) {
+    hash = hash * 31 + (unsigned)(A2L(types[i]) >> 3);
+  }
+  return hash;
+}
+
+/* Return a cached, prepared cif matching the given signature, preparing
+   and caching a new one if possible.  Returns NULL if the signature can't
+   be cached, in which case the caller must prepare its own cif.
+ */
+static ffi_cif*
+lookup_cif(ffi_abi abi, int nargs, ffi_type* rtype, ffi_type** types) {
+  unsigned hash;
+  cif_entry* entry;
+  ffi_status status;
+  int i;
+
+  if (!is_cacheable(rtype)) {
+    return NULL;
+  }
+  for (i=0;i < nargs;i++) {
+    if (!is_cacheable(types[i])) {
+      return NULL;
+    }
+  }
+
+  hash = cif_hash(abi, nargs, rtype, types);
+  for (entry = cif_cache[hash % CIF_CACHE_BUCKETS];entry;entry = entry->next) {
+    if (entry->hash == hash
+        && entry->cif.abi == abi
+        && entry->cif.rtype == rtype
+        && (int)entry->cif.nargs == nargs
+        && memcmp(entry->arg_types, types, nargs * sizeof(ffi_type*)) == 0) {
+      return &entry->cif;
+    }
+  }
+  if (cif_cache_count >= CIF_CACHE_MAX) {
+    return NULL;
+  }
+
+  entry = (cif_entry*)malloc(sizeof(cif_entry) + nargs * sizeof(ffi_type*));
+  if (!entry) {
+    return NULL;
+  }
+  memcpy(entry->arg_types, types, nargs * sizeof(ffi_type*));
+  entry->hash = hash;
+  status = ffi_prep_cif(&entry->cif, abi, nargs, rtype, entry->arg_types);
+  if (status != FFI_OK) {
+    // Let the caller report the error
+    free(entry);
+    return NULL;
+  }
+
+  MUTEX_LOCK(&cif_cache_lock);
+  if (cif_cache_count < CIF_CACHE_MAX) {
+    // A concurrent insertion of the same signature is harmless
+    entry->next = cif_cache[hash % CIF_CACHE_BUCKETS];
+    MEMORY_BARRIER();
+    cif_cache[hash % CIF_CACHE_BUCKETS] = entry;
+    ++cif_cache_count;
+  }
+  else {
+    free(entry);
+    entry = NULL;
+  }
+  MUTEX_UNLOCK(&cif_cache_lock);
+
+  return entry ? &entry->cif : NULL;
+}
+
+static void
+free_cif_cache() {
+  int i;
+  for (i=0;i < CIF_CACHE_BUCKETS;i++) {
+    cif_entry* entry = cif_cache[i];
+    while (entry) {
+      cif_entry* next = entry->next;
+      free(entry);
+      entry = next;
+    }
+    cif_cache[i] = NULL;
+  }
+  cif_cache_count = 0;
+}
+
+/* Call the native function with prepared arguments.  Returns the name of
+   the exception to be thrown, if any, with its message in msg.  The caller
+   must throw it after releasing any other JNI resources. */
+static const char*
+call_function(JNIEnv *env, void* func, jint flags, int nargs,
+              ffi_type *ffi_return_type, ffi_type** ffi_types,
+              void** ffi_values, void *resP, char* msg, size_t msglen)
+{
+  ffi_cif cif;
+  ffi_cif* pcif;
+  ffi_abi abi;
+  ffi_status status;
+  callconv_t callconv = flags & MASK_CC;
+  const char* volatile throw_type = NULL;
+
+  switch (callconv) {
+  case CALLCONV_C:
+    abi = FFI_DEFAULT_ABI;
+    break;
+#ifdef _WIN32
+  case CALLCONV_STDCALL:
+#if defined(_WIN64) || defined(_WIN32_WCE)
+    // Ignore requests for stdcall on win64/wince
+    abi = FFI_DEFAULT_ABI;
+#else
+    abi = FFI_STDCALL;
+#endif
+    break;
+#endif // _WIN32
+  default:
+    snprintf(msg, msglen,
+            "Unrecognized calling convention: %d", (int)callconv);
+    return EIllegalArgument;
+  }
+
+  pcif = lookup_cif(abi, nargs, ffi_return_type, ffi_types);
+  if (pcif) {
+    status = FFI_OK;
+  }
+  else {
+    pcif = &cif;
+    status = ffi_prep_cif(pcif, abi, nargs, ffi_return_type, ffi_types);
+  }
+  if (!ffi_error(env, "Native call setup", status)) {
+    PSTART();
+    if (flags & THROW_LAST_ERROR) {
+      SET_LAST_ERROR(0);
+    }
+    ffi_call(pcif, FFI_FN(func), resP, ffi_values);
+    if (flags & THROW_LAST_ERROR) {
+      int error = GET_LAST_ERROR();
+      if (error) {
+        char emsg[1024];
+        snprintf(msg, msglen, "[%d]%s", error, STR_ERROR(error, emsg, sizeof(emsg)));
+        throw_type = ELastError;
+      }
+    }
+    else if (preserve_last_error) {
+      PRESERVE_LAST_ERROR(GET_LAST_ERROR());
+    }
+    PROTECTED_END(do { throw_type=EError;snprintf(msg,msglen,"Invalid memory access");} while(0));
+  }
+  return throw_type;
+}
+
 /* invoke the real native function */
 static void
 dispatch(JNIEnv *env, void* func, jint flags, jobjectArray arr,
@@ -380,13 +587,9 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray arr,
     release_t release;
   } *array_elements;
   volatile int array_count = 0;
-  ffi_cif cif;
   ffi_type** ffi_types;
   void** ffi_values;
-  ffi_abi abi;
-  ffi_status status;
   char msg[128];
-  callconv_t callconv = flags & MASK_CC;
   const char* volatile throw_type = NULL;
   const char* volatile throw_msg = NULL;
 
@@ -537,49 +740,9 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray arr,
     }
   }
 
-  switch (callconv) {
-  case CALLCONV_C:
-    abi = FFI_DEFAULT_ABI;
-    break;
-#ifdef _WIN32
-  case CALLCONV_STDCALL:
-#if defined(_WIN64) || defined(_WIN32_WCE)
-    // Ignore requests for stdcall on win64/wince
-    abi = FFI_DEFAULT_ABI;
-#else
-    abi = FFI_STDCALL;
-#endif
-    break;
-#endif // _WIN32
-  default:
-    snprintf(msg, sizeof(msg),
-            "Unrecognized calling convention: %d", (int)callconv);
-    throw_type = EIllegalArgument;
-    throw_msg = msg;
-    goto cleanup;
-  }
-
-  status = ffi_prep_cif(&cif, abi, nargs, ffi_return_type, ffi_types);
-  if (!ffi_error(env, "Native call setup", status)) {
-    PSTART();
-    if (flags & THROW_LAST_ERROR) {
-      SET_LAST_ERROR(0);
-    }
-    ffi_call(&cif, FFI_FN(func), resP, ffi_values);
-    if (flags & THROW_LAST_ERROR) {
-      int error = GET_LAST_ERROR();
-      if (error) {
-        char emsg[1024];
-        snprintf(msg, sizeof(msg), "[%d]%s", error, STR_ERROR(error, emsg, sizeof(emsg)));
-        throw_type = ELastError;
-        throw_msg = msg;
-      }
-    }
-    else if (preserve_last_error) {
-      update_last_error(env, GET_LAST_ERROR());
-    }
-    PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access";} while(0));
-  }
+  throw_type = call_function(env, func, flags, nargs, ffi_return_type,
+                             ffi_types, ffi_values, resP, msg, sizeof(msg));
+  throw_msg = msg;
 
  cleanup:
 
@@ -595,6 +758,91 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray arr,
   }
 }
 
+/* invoke the real native function with arguments already reduced to
+   primitive values (see Native.getPrimitiveSignature) */
+static void
+dispatch_primitive(JNIEnv *env, void* func, jint flags, jint signature,
+                   jlong* args, ffi_type *ffi_return_type, void *resP)
+{
+  int i;
+  int nargs = signature & PT_MASK;
+  jvalue c_args[MAX_PRIMITIVE_ARGS];
+  ffi_type* ffi_types[MAX_PRIMITIVE_ARGS];
+  void* ffi_values[MAX_PRIMITIVE_ARGS];
+  char msg[128];
+  const char* throw_type = NULL;
+
+  if (nargs > MAX_PRIMITIVE_ARGS) {
+    snprintf(msg, sizeof(msg), "Too many primitive arguments (max %d)", (int)MAX_PRIMITIVE_ARGS);
+    throwByName(env, EIllegalArgument, msg);
+    return;
+  }
+
+  for (i = 0; i < nargs; i++) {
+    switch((signature >> (PT_SHIFT + i * PT_BITS)) & PT_MASK) {
+    case PT_INT8:
+      c_args[i].b = (jbyte)args[i];
+      ffi_types[i] = &ffi_type_sint8;
+      ffi_values[i] = &c_args[i].b;
+      break;
+    case PT_INT16:
+      c_args[i].s = (jshort)args[i];
+      ffi_types[i] = &ffi_type_sint16;
+      ffi_values[i] = &c_args[i].s;
+      break;
+    case PT_WCHAR:
+      if (sizeof(wchar_t) == 2) {
+        c_args[i].c = (jchar)args[i];
+        ffi_types[i] = &ffi_type_uint16;
+        ffi_values[i] = &c_args[i].c;
+      }
+      else {
+        c_args[i].i = (jint)args[i];
+        ffi_types[i] = &ffi_type_uint32;
+        ffi_values[i] = &c_args[i].i;
+      }
+      break;
+    case PT_INT32:
+      c_args[i].i = (jint)args[i];
+      ffi_types[i] = &ffi_type_sint32;
+      ffi_values[i] = &c_args[i].i;
+      break;
+    case PT_INT64:
+      c_args[i].j = args[i];
+      ffi_types[i] = &ffi_type_sint64;
+      ffi_values[i] = &c_args[i].j;
+      break;
+    case PT_FLOAT:
+      // raw bits of the float value
+      c_args[i].i = (jint)args[i];
+      ffi_types[i] = &ffi_type_float;
+      ffi_values[i] = &c_args[i].f;
+      break;
+    case PT_DOUBLE:
+      // raw bits of the double value
+      c_args[i].j = args[i];
+      ffi_types[i] = &ffi_type_double;
+      ffi_values[i] = &c_args[i].d;
+      break;
+    case PT_POINTER:
+      c_args[i].l = L2A(args[i]);
+      ffi_types[i] = &ffi_type_pointer;
+      ffi_values[i] = &c_args[i].l;
+      break;
+    default:
+      snprintf(msg, sizeof(msg), "Unrecognized primitive type at argument %d", i);
+      throwByName(env, EIllegalArgument, msg);
+      return;
+    }
+  }
+
+  throw_type = call_function(env, func, flags, nargs, ffi_return_type,
+                             ffi_types, ffi_values, resP, msg, sizeof(msg));
+  if (throw_type) {
+    throwByName(env, throw_type, msg);
+  }
+}
+
 /** Copy characters from the Java character array into native memory. */
 static void
 getChars(JNIEnv* env, wchar_t* volatile dst, jcharArray chars, volatile jint off, volatile jint len) {
@@ -657,6 +905,125 @@ setChars(JNIEnv* env, wchar_t* src, jcharArray chars, volatile jint off, volatil
   PEND();
 }
 
+/* Returns the fast encoding type for the given charset name, which must
+ * match Native.getEncodingType.
+ */
+static int
+get_encoding_type(const char* encoding)
+{
+  char name[16];
+  size_t len = 0;
+  if (!encoding) {
+    return ENCODING_OTHER;
+  }
+  for (;*encoding && len < sizeof(name) - 1;encoding++) {
+    if (*encoding != '-' && *encoding != '_') {
+      name[len++] = (char)toupper((unsigned char)*encoding);
+    }
+  }
+  if (*encoding) {
+    return ENCODING_OTHER;
+  }
+  name[len] = 0;
+  if (!strcmp(name, "UTF8")) {
+    return ENCODING_UTF8;
+  }
+  if (!strcmp(name, "USASCII") || !strcmp(name, "ASCII")
+      || !strcmp(name, "ANSIX3.41968")) {
+    return ENCODING_ASCII;
+  }
+  if (!strcmp(name, "ISO88591") || !strcmp(name, "88591")
+      || !strcmp(name, "LATIN1")) {
+    return ENCODING_LATIN1;
+  }
+  return ENCODING_OTHER;
+}
+
+/* Encode UTF-16 characters as String.getBytes would, replacing unmappable
+ * characters and unpaired surrogates with '?'.  Returns the number of bytes
+ * in the encoding; if out is NULL, only counts them.
+ */
+static size_t
+encode_chars(const jchar* chars, jsize len, int type, char* out)
+{
+  size_t size = 0;
+  jsize i;
+#define PUT(B) do { if (out) out[size] = (char)(B); ++size; } while(0)
+  for (i=0;i < len;i++) {
+    jchar c = chars[i];
+    if (c < 0x80) {
+      PUT(c);
+    }
+    else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len
+             && chars[i+1] >= 0xDC00 && chars[i+1] <= 0xDFFF) {
+      if (type == ENCODING_UTF8) {
+        unsigned long cp = 0x10000 + (((unsigned long)c - 0xD800) << 10)
+          + (chars[i+1] - 0xDC00);
+        PUT(0xF0 | (cp >> 18));
+        PUT(0x80 | ((cp >> 12) & 0x3F));
+        PUT(0x80 | ((cp >> 6) & 0x3F));
+        PUT(0x80 | (cp & 0x3F));
+      }
+      else {
+        PUT('?');
+      }
+      ++i;
+    }
+    else if (c >= 0xD800 && c <= 0xDFFF) {
+      PUT('?');
+    }
+    else if (type == ENCODING_UTF8) {
+      if (c < 0x800) {
+        PUT(0xC0 | (c >> 6));
+      }
+      else {
+        PUT(0xE0 | (c >> 12));
+        PUT(0x80 | ((c >> 6) & 0x3F));
+      }
+      PUT(0x80 | (c & 0x3F));
+    }
+    else if (type == ENCODING_LATIN1 && c < 0x100) {
+      PUT(c);
+    }
+    else {
+      PUT('?');
+    }
+  }
+#undef PUT
+  return size;
+}
+
+/* Translates a Java string to a NUL-terminated C string in one of the fast
+ * encodings, without calling back into the VM.  Stores the length of the
+ * encoded string, excluding the terminator, in lenp if not NULL.
+ */
+static char*
+newCStringFast(JNIEnv *env, jstring jstr, int type, size_t* lenp)
+{
+  jsize len = (*env)->GetStringLength(env, jstr);
+  const jchar* chars = (*env)->GetStringCritical(env, jstr, NULL);
+  char* result;
+  size_t size;
+
+  if (chars == NULL) {
+    return NULL;
+  }
+  size = encode_chars(chars, len, type, NULL);
+  result = (char *)malloc(size + 1);
+  if (result != NULL) {
+    encode_chars(chars, len, type, result);
+    result[size] = 0;
+  }
+  (*env)->ReleaseStringCritical(env, jstr, chars);
+  if (result == NULL) {
+    throwByName(env, EOutOfMemory, "Can't allocate C string");
+  }
+  else if (lenp) {
+    *lenp = size;
+  }
+  return result;
+}
+
 /* Translates a Java string to a C string using the String.getBytes
  * method, which uses default platform encoding.
  */
@@ -666,6 +1033,9 @@ newCString(JNIEnv *env, jstring jstr)
     jbyteArray bytes = 0;
     char *result = NULL;
 
+    if (default_encoding_type != ENCODING_OTHER) {
+      return newCStringFast(env, jstr, default_encoding_type, NULL);
+    }
     bytes = (*env)->CallObjectMethod(env, jstr, MID_String_getBytes);
     if (!(*env)->ExceptionCheck(env)) {
         jint len = (*env)->GetArrayLength(env, bytes);
@@ -696,9 +1066,16 @@ newCStringEncoding(JNIEnv *env, jstring jstr, const char* encoding)
 {
     jbyteArray bytes = 0;
     char *result = NULL;
+    int type;
 
     if (!encoding) return newCString(env, jstr);
 
+    type = encoding == jna_encoding
+      ? jna_encoding_type : get_encoding_type(encoding);
+    if (type != ENCODING_OTHER) {
+      return newCStringFast(env, jstr, type, NULL);
+    }
+
     bytes = (*env)->CallObjectMethod(env, jstr, MID_String_getBytes2,
                                      newJavaString(env, encoding, JNI_FALSE));
     if (!(*env)->ExceptionCheck(env)) {
@@ -749,22 +1126,117 @@ newWideCString(JNIEnv *env, jstring str)
     return result;
 }
 
-/** Update the per-thread last error setting. */
-static void
-update_last_error(JNIEnv* env, int err) {
-  (*env)->CallStaticVoidMethod(env, classNative,
-                               MID_Native_updateLastError, err);
-}
-
 jobject
 newJavaWString(JNIEnv *env, const wchar_t* ptr) {
   jstring s = newJavaString(env, (const char*)ptr, JNI_TRUE);
   return (*env)->NewObject(env, classWString, MID_WString_init, s);
 }
 
-/* Constructs a Java string from a char array (using the String(byte [])
- * constructor, which uses default local encoding) or a short array (using the
- * String(char[]) ctor, which uses the character values unmodified).
+/* Decode len bytes in one of the fast encodings into chars, which must have
+ * room for len characters.  Returns the number of characters, or -1 if the
+ * bytes are not well-formed UTF-8.  Undecodable ASCII bytes become U+FFFD,
+ * as with the String constructor.
+ */
+static jsize
+decode_chars(const unsigned char* bytes, jsize len, int type, jchar* chars)
+{
+  jsize i = 0;
+  jsize count = 0;
+#define CONT(X) (((X) & 0xC0) == 0x80)
+  while (i < len) {
+    unsigned char b = bytes[i];
+    if (b < 0x80 || type == ENCODING_LATIN1) {
+      chars[count++] = b;
+      ++i;
+    }
+    else if (type == ENCODING_ASCII) {
+      chars[count++] = 0xFFFD;
+      ++i;
+    }
+    else if (b >= 0xC2 && b <= 0xDF && i + 1 < len && CONT(bytes[i+1])) {
+      chars[count++] = (jchar)(((b & 0x1F) << 6) | (bytes[i+1] & 0x3F));
+      i += 2;
+    }
+    else if (b >= 0xE0 && b <= 0xEF && i + 2 < len
+             && CONT(bytes[i+1]) && CONT(bytes[i+2])
+             && (b != 0xE0 || bytes[i+1] >= 0xA0)
+             && (b != 0xED || bytes[i+1] < 0xA0)) {
+      chars[count++] = (jchar)(((b & 0x0F) << 12)
+                               | ((bytes[i+1] & 0x3F) << 6)
+                               | (bytes[i+2] & 0x3F));
+      i += 3;
+    }
+    else if (b >= 0xF0 && b <= 0xF4 && i + 3 < len
+             && CONT(bytes[i+1]) && CONT(bytes[i+2]) && CONT(bytes[i+3])
+             && (b != 0xF0 || bytes[i+1] >= 0x90)
+             && (b != 0xF4 || bytes[i+1] < 0x90)) {
+      unsigned long cp = ((unsigned long)(b & 0x07) << 18)
+        | ((unsigned long)(bytes[i+1] & 0x3F) << 12)
+        | ((bytes[i+2] & 0x3F) << 6)
+        | (bytes[i+3] & 0x3F);
+      cp -= 0x10000;
+      chars[count++] = (jchar)(0xD800 + (cp >> 10));
+      chars[count++] = (jchar)(0xDC00 + (cp & 0x3FF));
+      i += 4;
+    }
+    else {
+      return -1;
+    }
+  }
+#undef CONT
+  return count;
+}
+
+/* Constructs a Java string from a NUL-terminated C string in the given
+ * encoding, decoding directly if possible and otherwise using the
+ * String(byte[]) constructor, which uses default local encoding, or
+ * String(byte[],String).
+ */
+static jstring
+newJavaStringEncoding(JNIEnv *env, const char *ptr, int type)
+{
+  jstring result = 0;
+  jsize len = (jsize)strlen(ptr);
+
+  if (type != ENCODING_OTHER) {
+    jchar* chars = (jchar*)malloc(sizeof(jchar) * (len + 1));
+    jsize count;
+    if (!chars) {
+      throwByName(env, EOutOfMemory, "Can't allocate space for conversion to Java String");
+      return 0;
+    }
+    count = decode_chars((const unsigned char*)ptr, len, type, chars);
+    if (count >= 0) {
+      result = (*env)->NewString(env, chars, count);
+    }
+    free((void*)chars);
+    if (count >= 0) {
+      return result;
+    }
+  }
+  {
+    jbyteArray bytes = (*env)->NewByteArray(env, len);
+    if (bytes != 0) {
+      (*env)->SetByteArrayRegion(env, bytes, 0, len, (jbyte *)ptr);
+      if (type == ENCODING_UTF8 && type != default_encoding_type) {
+        jstring encoding = newJavaString(env, "UTF-8", JNI_FALSE);
+        result = (*env)->NewObject(env, classString,
+                                   MID_String_init_bytes2, bytes, encoding);
+        (*env)->DeleteLocalRef(env, encoding);
+      }
+      else {
+        result = (*env)->NewObject(env, classString,
+                                   MID_String_init_bytes, bytes);
+      }
+      (*env)->DeleteLocalRef(env, bytes);
+    }
+  }
+  return result;
+}
+
+/* Constructs a Java string from a char array (in the default local
+ * encoding) or a short array (using the String(char[]) ctor, which uses the
+ * character values unmodified).
  */
 jstring
 newJavaString(JNIEnv *env, const char *ptr, jboolean wide)
@@ -797,16 +1269,7 @@ newJavaString(JNIEnv *env, const char *ptr, jboolean wide)
         }
       }
       else {
-        jbyteArray bytes = 0;
-        int len = (int)strlen(ptr);
-
-        bytes = (*env)->NewByteArray(env, len);
-        if (bytes != 0) {
-          (*env)->SetByteArrayRegion(env, bytes, 0, len, (jbyte *)ptr);
-          result = (*env)->NewObject(env, classString,
-                                     MID_String_init_bytes, bytes);
-          (*env)->DeleteLocalRef(env, bytes);
-        }
+        result = newJavaStringEncoding(env, ptr, default_encoding_type);
       }
     }
     PEND();
@@ -1329,6 +1792,9 @@ jnidispatch_init(JNIEnv* env) {
   if (!LOAD_MID(env, MID_String_init_bytes, classString,
                 "<init>", "([B)V"))
     return "String<init>([B)V";
+  if (!LOAD_MID(env, MID_String_init_bytes2, classString,
+                "<init>", "([BLjava/lang/String;)V"))
+    return "String<init>([BLjava/lang/String;)V";
   if (!LOAD_MID(env, MID_Method_getParameterTypes, classMethod,
                 "getParameterTypes", "()[Ljava/lang/Class;"))
     return "Method.getParameterTypes()";
@@ -1388,6 +1854,24 @@ jnidispatch_init(JNIEnv* env) {
 
   // Cache jna.encoding value
   jna_encoding = get_system_property(env, "jna.encoding", JNI_FALSE);
+  jna_encoding_type = get_encoding_type(jna_encoding);
+  {
+    const char* encoding = get_system_property(env, "file.encoding", JNI_FALSE);
+    default_encoding_type = get_encoding_type(encoding);
+    if (encoding) {
+      free((void*)encoding);
+    }
+  }
+
+  MUTEX_INIT(&cif_cache_lock);
+
+#ifdef _WIN32
+  if ((last_error_key = TlsAlloc()) == TLS_OUT_OF_INDEXES)
+    return "last error storage";
+#else
+  if (pthread_key_create(&last_error_key, NULL) != 0)
+    return "last error storage";
+#endif
 
   return NULL;
 }
@@ -1585,8 +2069,12 @@ typedef struct _method_data {
   jobject* to_native;
   jobject  from_native;
   jboolean throw_last_error;
+  jobject  resolver;
 } method_data;
 
+// Native.FunctionResolver.resolve, for lazily bound methods
+static jmethodID MID_FunctionResolver_resolve;
+
 /** Direct invocation glue.  VM vectors to this callback, which in turn calls
     native code
 */
@@ -1606,6 +2094,16 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
   const char* volatile throw_msg = NULL;
   char msg[64];
 
+  if (data->fptr == NULL) {
+    // Lazily bound; look up the function on first invocation.  Concurrent
+    // first invocations may each look it up, with the same result.
+    jlong fptr = (*env)->CallLongMethod(env, data->resolver, MID_FunctionResolver_resolve);
+    if ((*env)->ExceptionCheck(env)) {
+      return;
+    }
+    data->fptr = L2A(fptr);
+  }
+
   if (data->flags) {
     objects = alloca(data->cif.nargs * sizeof(void*));
     memset(objects, 0, data->cif.nargs * sizeof(void*));
@@ -1752,7 +2250,7 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
       }
     }
     else if (preserve_last_error) {
-      update_last_error(env, GET_LAST_ERROR());
+      PRESERVE_LAST_ERROR(GET_LAST_ERROR());
     }
     PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access"; } while(0));
   }
@@ -1986,6 +2484,125 @@ Java_com_sun_jna_Native_invokeVoid(JNIEnv *env, jclass UNUSED(cls),
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_void, &result);
 }
 
+/*
+ * Class:     Native
+ * Method:    invokePrimitiveInt
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_Native_invokePrimitiveInt(JNIEnv *env, jclass UNUSED(cls),
+                                           jlong fp, jint callconv, jint signature,
+                                           jobjectArray UNUSED(arr),
+                                           jlong a0, jlong a1, jlong a2,
+                                           jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    ffi_arg result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_sint32, &result);
+    return (jint)result;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePrimitiveLong
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokePrimitiveLong(JNIEnv *env, jclass UNUSED(cls),
+                                            jlong fp, jint callconv, jint signature,
+                                            jobjectArray UNUSED(arr),
+                                            jlong a0, jlong a1, jlong a2,
+                                            jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    jvalue result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_sint64, &result);
+    return result.j;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePrimitiveVoid
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_invokePrimitiveVoid(JNIEnv *env, jclass UNUSED(cls),
+                                            jlong fp, jint callconv, jint signature,
+                                            jobjectArray UNUSED(arr),
+                                            jlong a0, jlong a1, jlong a2,
+                                            jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    jvalue result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_void, &result);
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePrimitiveFloat
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)F
+ */
+JNIEXPORT jfloat JNICALL
+Java_com_sun_jna_Native_invokePrimitiveFloat(JNIEnv *env, jclass UNUSED(cls),
+                                             jlong fp, jint callconv, jint signature,
+                                             jobjectArray UNUSED(arr),
+                                             jlong a0, jlong a1, jlong a2,
+                                             jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    jvalue result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_float, &result);
+    return result.f;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePrimitiveDouble
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)D
+ */
+JNIEXPORT jdouble JNICALL
+Java_com_sun_jna_Native_invokePrimitiveDouble(JNIEnv *env, jclass UNUSED(cls),
+                                              jlong fp, jint callconv, jint signature,
+                                              jobjectArray UNUSED(arr),
+                                              jlong a0, jlong a1, jlong a2,
+                                              jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    jvalue result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_double, &result);
+    return result.d;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePrimitivePointer
+ * Signature: (JII[Ljava/lang/Object;JJJJJJ)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokePrimitivePointer(JNIEnv *env, jclass UNUSED(cls),
+                                               jlong fp, jint callconv, jint signature,
+                                               jobjectArray UNUSED(arr),
+                                               jlong a0, jlong a1, jlong a2,
+                                               jlong a3, jlong a4, jlong a5)
+{
+    jlong args[MAX_PRIMITIVE_ARGS];
+    jvalue result;
+    args[0] = a0; args[1] = a1; args[2] = a2;
+    args[3] = a3; args[4] = a4; args[5] = a5;
+    dispatch_primitive(env, L2A(fp), callconv, signature, args, &ffi_type_pointer, &result);
+    return A2L(result.l);
+}
+
 JNIEXPORT jlong JNICALL
 Java_com_sun_jna_Native_createNativeCallback(JNIEnv *env,
                                              jclass UNUSED(cls),
@@ -2223,6 +2840,72 @@ JNIEXPORT void JNICALL Java_com_sun_jna_Native_read__J_3DII
   PEND();
 }
 
+/* Copy N elements of SIZE bytes between a packed buffer and memory spaced
+ * STRIDE bytes apart.  A constant size lets the compiler inline each copy.
+ */
+#define STRIDED_COPY(DST,DSTEP,SRC,SSTEP,SIZE,N) do { \
+  jint _i; \
+  switch(SIZE) { \
+  case 1: for (_i=0;_i < (N);_i++) memcpy((DST)+_i*(DSTEP), (SRC)+_i*(SSTEP), 1); break; \
+  case 2: for (_i=0;_i < (N);_i++) memcpy((DST)+_i*(DSTEP), (SRC)+_i*(SSTEP), 2); break; \
+  case 4: for (_i=0;_i < (N);_i++) memcpy((DST)+_i*(DSTEP), (SRC)+_i*(SSTEP), 4); break; \
+  case 8: for (_i=0;_i < (N);_i++) memcpy((DST)+_i*(DSTEP), (SRC)+_i*(SSTEP), 8); break; \
+  default: for (_i=0;_i < (N);_i++) memcpy((DST)+_i*(DSTEP), (SRC)+_i*(SSTEP), (SIZE)); break; \
+  } \
+} while(0)
+
+/*
+ * Class:     Native
+ * Method:    gather
+ * Signature: (JJILjava/lang/Object;II)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_gather(JNIEnv *env, jclass UNUSED(cls), jlong addr, jlong stride, jint size, jobject arr, jint off, jint n)
+{
+  char* src = (char*)L2A(addr);
+  char* dst = (*env)->GetPrimitiveArrayCritical(env, arr, NULL);
+  int failed = 0;
+  if (dst == NULL) {
+    throwByName(env, EOutOfMemory, "Could not access array");
+    return;
+  }
+  {
+    PROTECTED_START();
+    STRIDED_COPY(dst + (size_t)off*size, size, src, stride, size, n);
+    PROTECTED_END(failed = 1);
+  }
+  (*env)->ReleasePrimitiveArrayCritical(env, arr, dst, 0);
+  if (failed) {
+    ON_ERROR();
+  }
+}
+
+/*
+ * Class:     Native
+ * Method:    scatter
+ * Signature: (JJILjava/lang/Object;II)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_scatter(JNIEnv *env, jclass UNUSED(cls), jlong addr, jlong stride, jint size, jobject arr, jint off, jint n)
+{
+  char* dst = (char*)L2A(addr);
+  char* src = (*env)->GetPrimitiveArrayCritical(env, arr, NULL);
+  int failed = 0;
+  if (src == NULL) {
+    throwByName(env, EOutOfMemory, "Could not access array");
+    return;
+  }
+  {
+    PROTECTED_START();
+    STRIDED_COPY(dst, stride, src + (size_t)off*size, size, size, n);
+    PROTECTED_END(failed = 1);
+  }
+  (*env)->ReleasePrimitiveArrayCritical(env, arr, src, JNI_ABORT);
+  if (failed) {
+    ON_ERROR();
+  }
+}
+
 /*
  * Class:     Native
  * Method:    _read
@@ -2405,6 +3088,42 @@ JNIEXPORT jstring JNICALL Java_com_sun_jna_Native_getString
   return newJavaString(env, L2A(addr), wide);
 }
 
+JNIEXPORT jstring JNICALL Java_com_sun_jna_Native_decodeString
+(JNIEnv *env, jclass UNUSED(cls), jlong addr, jint type)
+{
+  volatile jstring result = 0;
+  PSTART();
+  result = newJavaStringEncoding(env, L2A(addr), type);
+  PEND();
+  return result;
+}
+
+/* Encodes directly into the destination, which the caller has sized with
+ * Native.getEncodedLength.  No JNI calls may be made while the string is
+ * held, so a memory fault is reported only after releasing it.
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_encodeString
+(JNIEnv *env, jclass UNUSED(cls), jlong addr, jstring value, jint type)
+{
+  jsize len = (*env)->GetStringLength(env, value);
+  const jchar* volatile chars = (*env)->GetStringCritical(env, value, NULL);
+  volatile int failed = 0;
+
+  if (chars == NULL) {
+    return;
+  }
+  {
+    char* out = (char*)L2A(addr);
+    PROTECTED_START();
+    out[encode_chars(chars, len, type, out)] = 0;
+    PROTECTED_END(failed = 1);
+  }
+  (*env)->ReleaseStringCritical(env, value, chars);
+  if (failed) {
+    ON_ERROR();
+  }
+}
+
 /*
  * Class:     Native
  * Method:    _setMemory
@@ -2524,6 +3243,9 @@ JNIEXPORT void JNICALL Java_com_sun_jna_Native_setString
     }
     else {
       str = newCStringEncoding(env, value, jna_encoding);
+      if (str != NULL) {
+        size = (int)strlen((const char*)str) + 1;
+      }
     }
     if (str != NULL) {
       MEMCPY(L2A(addr), str, size);
@@ -2553,6 +3275,177 @@ JNIEXPORT void JNICALL Java_com_sun_jna_Native_free
     free(L2A(ptr));
 }
 
+enum {
+  MAP_ADVICE_NORMAL = com_sun_jna_Native_MAP_ADVICE_NORMAL,
+  MAP_ADVICE_RANDOM = com_sun_jna_Native_MAP_ADVICE_RANDOM,
+  MAP_ADVICE_SEQUENTIAL = com_sun_jna_Native_MAP_ADVICE_SEQUENTIAL,
+  MAP_ADVICE_WILLNEED = com_sun_jna_Native_MAP_ADVICE_WILLNEED,
+  MAP_ADVICE_DONTNEED = com_sun_jna_Native_MAP_ADVICE_DONTNEED,
+};
+
+/* Mappings must start on a multiple of this value */
+static jlong
+map_granularity() {
+#ifdef _WIN32
+  SYSTEM_INFO info;
+  GetSystemInfo(&info);
+  return info.dwAllocationGranularity;
+#else
+  return sysconf(_SC_PAGESIZE);
+#endif
+}
+
+static void
+throw_map_error(JNIEnv *env, const char* op) {
+  char emsg[1024];
+  char msg[1100];
+  int error = GET_LAST_ERROR();
+  snprintf(msg, sizeof(msg), "%s failed: %s", op, STR_ERROR(error, emsg, sizeof(emsg)));
+  throwByName(env, EIOException, msg);
+}
+
+/*
+ * Class:     Native
+ * Method:    mapFile
+ * Signature: (Ljava/lang/String;JJZ)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_mapFile(JNIEnv *env, jclass UNUSED(cls), jstring path, jlong offset, jlong length, jboolean writable)
+{
+#ifdef _WIN32_WCE
+  throwByName(env, EUnsupportedOperation, "Memory-mapped files are not supported");
+  return 0;
+#else
+  jlong delta = offset % map_granularity();
+  jlong start = offset - delta;
+  size_t size = (size_t)(length + delta);
+  const STRTYPE name = NAME2CSTR(env, path);
+  void* base;
+#ifdef _WIN32
+  HANDLE file, mapping;
+#else
+  int fd;
+#endif
+
+  if (name == NULL) {
+    return 0;
+  }
+  if ((jlong)size != length + delta) {
+    free((void *)name);
+    throwByName(env, EIllegalArgument, "Mapped region is too large for this platform");
+    return 0;
+  }
+#ifdef _WIN32
+  file = CreateFileW(name, writable ? GENERIC_READ|GENERIC_WRITE : GENERIC_READ,
+                     FILE_SHARE_READ|FILE_SHARE_WRITE, NULL, OPEN_EXISTING,
+                     FILE_ATTRIBUTE_NORMAL, NULL);
+  free((void *)name);
+  if (file == INVALID_HANDLE_VALUE) {
+    throw_map_error(env, "open");
+    return 0;
+  }
+  mapping = CreateFileMapping(file, NULL, writable ? PAGE_READWRITE : PAGE_READONLY, 0, 0, NULL);
+  // The mapping keeps the file open, and the view keeps the mapping
+  CloseHandle(file);
+  if (mapping == NULL) {
+    throw_map_error(env, "CreateFileMapping");
+    return 0;
+  }
+  base = MapViewOfFile(mapping, writable ? FILE_MAP_WRITE : FILE_MAP_READ,
+                       (DWORD)(start >> 32), (DWORD)start, size);
+  if (base == NULL) {
+    throw_map_error(env, "MapViewOfFile");
+  }
+  CloseHandle(mapping);
+  if (base == NULL) {
+    return 0;
+  }
+#else
+  fd = open(name, writable ? O_RDWR : O_RDONLY);
+  free((void *)name);
+  if (fd == -1) {
+    throw_map_error(env, "open");
+    return 0;
+  }
+  base = mmap(NULL, size, writable ? PROT_READ|PROT_WRITE : PROT_READ,
+              MAP_SHARED, fd, (off_t)start);
+  if (base == MAP_FAILED) {
+    throw_map_error(env, "mmap");
+    close(fd);
+    return 0;
+  }
+  // The mapping remains valid after the descriptor is closed
+  close(fd);
+#endif
+  return A2L(base) + delta;
+#endif
+}
+
+/*
+ * Class:     Native
+ * Method:    unmapFile
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_unmapFile(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong addr, jlong length)
+{
+#ifndef _WIN32_WCE
+  // Mappings start on a granularity boundary less than one unit below
+  // the address returned by mapFile
+  jlong base = addr & ~(map_granularity() - 1);
+#ifdef _WIN32
+  UnmapViewOfFile(L2A(base));
+#else
+  munmap(L2A(base), (size_t)(length + addr - base));
+#endif
+#endif
+}
+
+/*
+ * Class:     Native
+ * Method:    syncMappedFile
+ * Signature: (JJZ)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_syncMappedFile(JNIEnv *env, jclass UNUSED(cls), jlong addr, jlong length, jboolean async)
+{
+#ifdef _WIN32
+#ifndef _WIN32_WCE
+  if (!FlushViewOfFile(L2A(addr), (SIZE_T)length)) {
+    throw_map_error(env, "FlushViewOfFile");
+  }
+#endif
+#else
+  jlong base = addr & ~((jlong)sysconf(_SC_PAGESIZE) - 1);
+  if (msync(L2A(base), (size_t)(length + addr - base), async ? MS_ASYNC : MS_SYNC)) {
+    throw_map_error(env, "msync");
+  }
+#endif
+}
+
+/*
+ * Class:     Native
+ * Method:    adviseMappedFile
+ * Signature: (JJI)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_adviseMappedFile(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong addr, jlong length, jint advice)
+{
+#ifndef _WIN32
+  int flag;
+  jlong base = addr & ~((jlong)sysconf(_SC_PAGESIZE) - 1);
+  switch(advice) {
+  case MAP_ADVICE_RANDOM: flag = MADV_RANDOM; break;
+  case MAP_ADVICE_SEQUENTIAL: flag = MADV_SEQUENTIAL; break;
+  case MAP_ADVICE_WILLNEED: flag = MADV_WILLNEED; break;
+  case MAP_ADVICE_DONTNEED: flag = MADV_DONTNEED; break;
+  default: flag = MADV_NORMAL; break;
+  }
+  // Advice is only a hint, so failures are ignored
+  madvise(L2A(base), (size_t)(length + addr - base), flag);
+#endif
+}
+
 
 /*
  * Class:     Native
@@ -2600,12 +3493,6 @@ Java_com_sun_jna_Native_initIDs(JNIEnv *env, jclass cls) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain global reference for class com.sun.jna.Native");
   }
-  else if (!(MID_Native_updateLastError
-             = (*env)->GetStaticMethodID(env, classNative,
-                                         "updateLastError", "(I)V"))) {
-    throwByName(env, EUnsatisfiedLink,
-                "Can't obtain updateLastError method for class com.sun.jna.Native");
-  }
   else if (!(MID_Native_fromNative
              = (*env)->GetStaticMethodID(env, classNative,
                                          "fromNative", "(Ljava/lang/Class;Ljava/lang/Object;)Lcom/sun/jna/NativeMapped;"))) {
@@ -2972,6 +3859,65 @@ Java_com_sun_jna_Native_isProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp))
   return is_protected();
 }
 
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_setCallbackThreadDetach(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean detach) {
+  callback_set_detach_default(detach);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_sun_jna_Native_isCallbackThreadDetach(JNIEnv *UNUSED(env), jclass UNUSED(classp)) {
+  return callback_get_detach_default();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_getCallbackThreadAttachCount(JNIEnv *UNUSED(env), jclass UNUSED(classp)) {
+  return callback_get_attach_count();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_getCallbackThreadDetachCount(JNIEnv *UNUSED(env), jclass UNUSED(classp)) {
+  return callback_get_detach_count();
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_createCallbackQueue(JNIEnv *env, jclass UNUSED(classp), jint capacity) {
+  void* queue = callback_queue_create(capacity);
+  if (!queue) {
+    throwByName(env, EOutOfMemory, "Can't allocate callback queue");
+  }
+  return A2L(queue);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_freeCallbackQueue(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong queue) {
+  callback_queue_free(L2A(queue));
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_Native_drainCallbackQueue(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong queue, jlong buffer, jint max) {
+  return callback_queue_drain(L2A(queue), L2A(buffer), max);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_waitCallbackQueue(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong queue, jint timeout) {
+  callback_queue_wait(L2A(queue), timeout);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_closeCallbackQueue(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong queue) {
+  callback_queue_close(L2A(queue));
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_clearCallbackQueue(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong cb) {
+  callback_queue_detach((callback*)L2A(cb));
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_getCallbackQueueDropped(JNIEnv *UNUSED(env), jclass UNUSED(classp), jlong queue) {
+  return callback_queue_get_dropped(L2A(queue));
+}
+
 JNIEXPORT void JNICALL
 Java_com_sun_jna_Native_setPreserveLastError(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean preserve) {
   preserve_last_error = preserve;
@@ -2982,9 +3928,18 @@ Java_com_sun_jna_Native_getPreserveLastError(JNIEnv *UNUSED(env), jclass UNUSED(
   return preserve_last_error;
 }
 
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_Native_getLastError(JNIEnv *UNUSED(env), jclass UNUSED(classp)) {
+  int err = GET_LAST_ERROR();
+  int result = PRESERVED_LAST_ERROR();
+  // Avoid disturbing the OS value (TlsGetValue clears it)
+  SET_LAST_ERROR(err);
+  return result;
+}
+
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_setLastError(JNIEnv *env, jclass UNUSED(classp), jint code) {
-  update_last_error(env, code);
+Java_com_sun_jna_Native_setLastError(JNIEnv *UNUSED(env), jclass UNUSED(classp), jint code) {
+  PRESERVE_LAST_ERROR(code);
   SET_LAST_ERROR(code);
 }
 
@@ -3088,11 +4043,39 @@ JNI_OnUnload(JavaVM *vm, void *UNUSED(reserved)) {
     free((void*)jna_encoding);
   }
 
+#ifdef _WIN32
+  TlsFree(last_error_key);
+#else
+  pthread_key_delete(last_error_key);
+#endif
+
+  free_cif_cache();
+  MUTEX_DESTROY(&cif_cache_lock);
+
   if (!attached) {
     (*vm)->DetachCurrentThread(vm);
   }
 }
 
+static void
+free_method_data(JNIEnv* env, method_data* md, int argc) {
+  if (md->to_native) {
+    int i;
+    for (i=0;i < argc;i++) {
+      if (md->to_native[i])
+        (*env)->DeleteWeakGlobalRef(env, md->to_native[i]);
+    }
+    free(md->to_native);
+  }
+  if (md->from_native) (*env)->DeleteWeakGlobalRef(env, md->from_native);
+  if (md->closure_rclass) (*env)->DeleteWeakGlobalRef(env, md->closure_rclass);
+  if (md->resolver) (*env)->DeleteGlobalRef(env, md->resolver);
+  free(md->arg_types);
+  free(md->closure_arg_types);
+  free(md->flags);
+  free(md);
+}
+
 JNIEXPORT void JNICALL
 Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass cls, jlongArray handles) {
   jlong* data = (*env)->GetLongArrayElements(env, handles, NULL);
@@ -3100,19 +4083,7 @@ Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass cls,
 
   while (count-- > 0) {
     method_data* md = (method_data*)L2A(data[count]);
-    if (md->to_native) {
-      unsigned i;
-      for (i=0;i < md->cif.nargs;i++) {
-        if (md->to_native[i])
-          (*env)->DeleteWeakGlobalRef(env, md->to_native[i]);
-      }
-    }
-    if (md->from_native) (*env)->DeleteWeakGlobalRef(env, md->from_native);
-    if (md->closure_rclass) (*env)->DeleteWeakGlobalRef(env, md->closure_rclass);
-    free(md->arg_types);
-    free(md->closure_arg_types);
-    free(md->flags);
-    free(md);
+    free_method_data(env, md, md->cif.nargs);
   }
   (*env)->ReleaseLongArrayElements(env, handles, data, 0);
 
@@ -3138,13 +4109,14 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
                                        jlong function, jint cc,
                                        jboolean throw_last_error,
                                        jobjectArray to_native,
-                                       jobject from_native)
+                                       jobject from_native,
+                                       jobject resolver)
 {
   int argc = atypes ? (*env)->GetArrayLength(env, atypes) : 0;
   const char* cname = newCStringUTF8(env, name);
   const char* sig = newCStringUTF8(env, signature);
   void *code;
-  void *closure;
+  void *closure = NULL;
   method_data* data = malloc(sizeof(method_data));
   ffi_cif* closure_cif = &data->closure_cif;
   int status;
@@ -3192,6 +4164,17 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   if (cvts) (*env)->ReleaseIntArrayElements(env, conversions, cvts, 0);
   data->fptr = L2A(function);
   data->closure_rclass = (*env)->NewWeakGlobalRef(env, closure_rclass);
+  data->resolver = NULL;
+  if (resolver) {
+    if (!MID_FunctionResolver_resolve
+        && !LOAD_MID(env, MID_FunctionResolver_resolve,
+                     (*env)->GetObjectClass(env, resolver), "resolve", "()J")) {
+      throwByName(env, EUnsatisfiedLink, "Can't obtain resolve method for lazy binding");
+      status = FFI_BAD_TYPEDEF;
+      goto cleanup;
+    }
+    data->resolver = (*env)->NewGlobalRef(env, resolver);
+  }
 
   status = ffi_prep_cif(closure_cif, abi, argc+2, closure_rtype, data->closure_arg_types);
   if (ffi_error(env, "Native method mapping", status)) {
@@ -3212,14 +4195,16 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
 
   {
     JNINativeMethod m = { (char*)cname, (char*)sig, code };
-    (*env)->RegisterNatives(env, cls, &m, 1);
+    if ((*env)->RegisterNatives(env, cls, &m, 1) != 0) {
+      // No such method; NoSuchMethodError is pending
+      status = FFI_BAD_TYPEDEF;
+    }
   }
 
  cleanup:
   if (status != FFI_OK) {
-    free(data->arg_types);
-    free(data->flags);
-    free(data);
+    if (closure) ffi_closure_free(closure);
+    free_method_data(env, data, argc);
     data = NULL;
   }
   free((void *)cname);
@@ -60,6 +60,22 @@ typedef enum _callconv {
 /* Maximum number of allowed arguments in libffi. */
 #define MAX_NARGS com_sun_jna_Function_MAX_NARGS
 
+/* Argument encoding for primitive invocations. */
+#define MAX_PRIMITIVE_ARGS com_sun_jna_Native_MAX_PRIMITIVE_ARGS
+#define PT_BITS com_sun_jna_Native_PT_BITS
+#define PT_MASK com_sun_jna_Native_PT_MASK
+#define PT_SHIFT com_sun_jna_Native_PT_SHIFT
+enum {
+  PT_POINTER = com_sun_jna_Native_PT_POINTER,
+  PT_INT8 = com_sun_jna_Native_PT_INT8,
+  PT_INT16 = com_sun_jna_Native_PT_INT16,
+  PT_WCHAR = com_sun_jna_Native_PT_WCHAR,
+  PT_INT32 = com_sun_jna_Native_PT_INT32,
+  PT_INT64 = com_sun_jna_Native_PT_INT64,
+  PT_FLOAT = com_sun_jna_Native_PT_FLOAT,
+  PT_DOUBLE = com_sun_jna_Native_PT_DOUBLE,
+};
+
 enum {
   CVT_DEFAULT = com_sun_jna_Native_CVT_DEFAULT,
   CVT_POINTER = com_sun_jna_Native_CVT_POINTER,
@@ -88,6 +104,7 @@ enum {
 /* callback behavior flags */
 enum {
   CB_HAS_INITIALIZER = com_sun_jna_Native_CB_HAS_INITIALIZER,
+  CB_ASYNC = com_sun_jna_Native_CB_ASYNC,
   THREAD_LEAVE_ATTACHED = com_sun_jna_Native_THREAD_LEAVE_ATTACHED,
   THREAD_DETACH = com_sun_jna_Native_THREAD_DETACH,
 };
@@ -97,6 +114,12 @@ typedef struct _callback {
   void* x_closure;
   /* CallbackReference.setCallbackOptions() expects this field at offset Pointer.SIZE. */
   int behavior_flags;
+  /* CallbackReference.setCallbackQueue() expects these fields at offsets
+     2*Pointer.SIZE and 3*Pointer.SIZE. */
+  void* queue;
+  jint queue_id;
+  /* Number of threads currently queueing an event for this callback. */
+  volatile long producers;
   ffi_closure* closure;
   ffi_cif cif;
   ffi_cif java_cif;
@@ -162,6 +185,7 @@ typedef struct _callback {
 #define ERuntime "java/lang/RuntimeException"
 #define EError "java/lang/Error"
 #define ELastError "com/sun/jna/LastErrorException"
+#define EIOException "java/io/IOException"
 
 extern void throwByName(JNIEnv *env, const char *name, const char *msg);
 extern int get_jtype(JNIEnv*, jclass);
@@ -173,6 +197,17 @@ extern callback* create_callback(JNIEnv*, jobject, jobject,
                                  jobjectArray, jclass,
                                  callconv_t, jint);
 extern void free_callback(JNIEnv*, callback*);
+extern void callback_set_detach_default(jboolean);
+extern jboolean callback_get_detach_default();
+extern jlong callback_get_attach_count();
+extern jlong callback_get_detach_count();
+extern void* callback_queue_create(jint);
+extern void callback_queue_free(void*);
+extern jint callback_queue_drain(void*, void*, jint);
+extern void callback_queue_wait(void*, jint);
+extern void callback_queue_close(void*);
+extern void callback_queue_detach(callback*);
+extern jlong callback_queue_get_dropped(void*);
 extern void extract_value(JNIEnv*, jobject, void*, size_t, jboolean);
 extern jobject new_object(JNIEnv*, char, void*, jboolean);
 extern jboolean is_protected();
@@ -209,6 +244,33 @@ extern void setLastError(int err);
 #define DeleteWeakGlobalRef DeleteGlobalRef
 #endif
 
+/* Minimal locking and memory ordering, used to publish shared data which
+   is subsequently read without locking. */
+#ifdef _WIN32
+typedef CRITICAL_SECTION mutex_t;
+#define MUTEX_INIT(M) InitializeCriticalSection(M)
+#define MUTEX_LOCK(M) EnterCriticalSection(M)
+#define MUTEX_UNLOCK(M) LeaveCriticalSection(M)
+#define MUTEX_DESTROY(M) DeleteCriticalSection(M)
+#if defined(_WIN32_WCE)
+#define MEMORY_BARRIER()
+#else
+#define MEMORY_BARRIER() MemoryBarrier()
+#endif
+#else
+#include <pthread.h>
+typedef pthread_mutex_t mutex_t;
+#define MUTEX_INIT(M) pthread_mutex_init(M, NULL)
+#define MUTEX_LOCK(M) pthread_mutex_lock(M)
+#define MUTEX_UNLOCK(M) pthread_mutex_unlock(M)
+#define MUTEX_DESTROY(M) pthread_mutex_destroy(M)
+#if defined(__GNUC__)
+#define MEMORY_BARRIER() __sync_synchronize()
+#else
+#define MEMORY_BARRIER()
+#endif
+#endif
+
 /* Native memory fault protection */
 #ifdef HAVE_PROTECTION
 #define PROTECT is_protected()
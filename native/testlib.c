@@ -660,6 +660,12 @@ callVoidCallbackThreaded(void (*func)(void), int n, int ms) {
   THREAD_CREATE(&thread, &thread_function, &data);
 }
 
+EXPORT void
+callVoidCallbackWithArgs(void (*func)(int32_t, int64_t, double, void*),
+                         int32_t arg, int64_t arg2, double arg3, void* arg4) {
+  (*func)(arg, arg2, arg3, arg4);
+}
+
 EXPORT int 
 callBooleanCallback(int (*func)(int arg, int arg2),
                     int arg, int arg2) {
@@ -941,6 +947,45 @@ Java_com_sun_jna_DirectTest_00024JNI_cos(JNIEnv *env, jclass cls, jdouble x) {
   return cos(x);
 }
 
+/* Raw JNI baselines for the benchmarks in com.sun.jna.benchmarks */
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_benchmarks_CallBenchmark_00024JNI_returnInt32Argument(JNIEnv *env, jclass cls, jint arg) {
+  return arg;
+}
+
+JNIEXPORT jdouble JNICALL
+Java_com_sun_jna_benchmarks_CallBenchmark_00024JNI_returnDoubleArgument(JNIEnv *env, jclass cls, jdouble arg) {
+  return arg;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_benchmarks_CallBenchmark_00024JNI_returnPointerArgument(JNIEnv *env, jclass cls, jlong arg) {
+  return arg;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_benchmarks_CallBenchmark_00024JNI_returnStringLength(JNIEnv *env, jclass cls, jstring arg) {
+  const char* s = (*env)->GetStringUTFChars(env, arg, NULL);
+  jint len;
+  if (s == NULL) {
+    return -1;
+  }
+  for (len=0;s[len];len++)
+    ;
+  (*env)->ReleaseStringUTFChars(env, arg, s);
+  return len;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_benchmarks_CallBenchmark_00024JNI_fillInt32Array(JNIEnv *env, jclass cls, jintArray buf, jint value) {
+  jsize len = (*env)->GetArrayLength(env, buf);
+  jint* elems = (*env)->GetPrimitiveArrayCritical(env, buf, NULL);
+  if (elems != NULL) {
+    fillInt32Buffer((int32_t*)elems, len, value);
+    (*env)->ReleasePrimitiveArrayCritical(env, buf, elems, 0);
+  }
+}
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,266 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/** Build-time snapshot of the native method bindings of a direct-mapped
+ * class (see {@link Native#register(Class,NativeLibrary)}).  Registering a
+ * class normally examines each <code>native</code> method by reflection to
+ * compute its JNI signature and the conversion and native type of each
+ * argument.  If a snapshot resource generated from the class is found
+ * alongside it, registration instead reads the precomputed bindings and
+ * need only look up each function and register it.<p>
+ * Generate snapshots after compiling, for example with Ant:
+ * <pre><code>
+ * &lt;java classname="com.sun.jna.BindingSnapshot" fork="true" failonerror="true"&gt;
+ *   &lt;classpath&gt;&lt;pathelement path="jna.jar:${classes}"/&gt;&lt;/classpath&gt;
+ *   &lt;arg value="${classes}"/&gt;
+ *   &lt;arg value="com.example.DirectMapped"/&gt;
+ * &lt;/java&gt;
+ * </code></pre>
+ * This writes <code>com/example/DirectMapped.jnabinding</code> under the
+ * given output directory.  Classes are examined without being initialized.
+ * <p>
+ * A snapshot is used only when the library has no {@link TypeMapper} or
+ * {@link FunctionMapper}, since conversions and function names may then
+ * depend on objects created at run time.  Each method's signature is
+ * verified as it is registered; if the snapshot no longer matches the
+ * class's native methods, it is ignored and the class registered as
+ * usual.  Native types depend on the platform (a {@link NativeLong} is
+ * passed as an <code>int</code> or a <code>long</code>, for example), so a
+ * snapshot records the JNA version, native API checksum and native type
+ * sizes it was generated with, and is likewise ignored if any of them
+ * differ at run time.  Set the system property <code>jna.nosnapshot=true</code> to
+ * ignore snapshots entirely.
+ */
+public class BindingSnapshot {
+
+    /** Suffix of the snapshot resource name, following the class name. */
+    public static final String SUFFIX = ".jnabinding";
+
+    private static final String HEADER = "# JNA binding snapshot v2";
+    private static final Map PRIMITIVES = new HashMap();
+    static {
+        Class[] types = {
+            void.class, boolean.class, byte.class, char.class, short.class,
+            int.class, long.class, float.class, double.class,
+        };
+        for (int i=0;i < types.length;i++) {
+            PRIMITIVES.put(types[i].getName(), types[i]);
+        }
+    }
+
+    private BindingSnapshot() { }
+
+    /** Returns the name of the snapshot resource for the given class,
+     * relative to the class.
+     */
+    static String getResourceName(Class cls) {
+        String name = cls.getName();
+        return name.substring(name.lastIndexOf('.') + 1) + SUFFIX;
+    }
+
+    /** Returns a description of the JNA version and native platform which
+     * determine the computed bindings.
+     */
+    static String getPlatform() {
+        return "# " + Native.VERSION + " " + Native.getAPIChecksum()
+            + " pointer=" + Native.POINTER_SIZE + " long=" + Native.LONG_SIZE
+            + " wchar=" + Native.WCHAR_SIZE + " size_t=" + Native.SIZE_T_SIZE;
+    }
+
+    /** Write a snapshot of the bindings of all <code>native</code> methods
+     * declared by the given class.
+     * @throws IllegalArgumentException if a method can't be direct-mapped.
+     */
+    public static void write(Class cls, OutputStream os) throws IOException {
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+        w.println(HEADER);
+        w.println(getPlatform());
+        Method[] methods = cls.getDeclaredMethods();
+        for (int i=0;i < methods.length;i++) {
+            if ((methods[i].getModifiers() & Modifier.NATIVE) == 0) {
+                continue;
+            }
+            Native.MethodBinding b = Native.getBinding(cls, methods[i], null);
+            w.print(b.name + " " + b.signature + " " + b.throwLastError
+                    + " " + b.rconversion + " " + b.rclass.getName()
+                    + " " + b.rtype.getName() + " " + b.closureRtype.getName());
+            for (int t=0;t < b.conversions.length;t++) {
+                w.print(" " + b.conversions[t] + " " + b.argTypes[t].getName()
+                        + " " + b.closureArgTypes[t].getName());
+            }
+            w.println();
+        }
+        w.flush();
+        if (w.checkError()) {
+            throw new IOException("Error writing binding snapshot for " + cls);
+        }
+    }
+
+    /** Read the bindings from a snapshot, resolving types with the given
+     * class's loader.
+     * @throws IOException if the snapshot can't be read, is malformed or
+     * was generated for a different JNA version or platform.
+     */
+    static Native.MethodBinding[] read(Class cls, InputStream is) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        if (!HEADER.equals(r.readLine())) {
+            throw new IOException("Unrecognized binding snapshot for " + cls);
+        }
+        if (!getPlatform().equals(r.readLine())) {
+            throw new IOException("Binding snapshot for " + cls
+                                  + " was generated for a different JNA version or platform");
+        }
+        List bindings = new ArrayList();
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                StringTokenizer st = new StringTokenizer(line, " ");
+                Native.MethodBinding b = new Native.MethodBinding();
+                b.name = st.nextToken();
+                b.signature = st.nextToken();
+                b.throwLastError = "true".equals(st.nextToken());
+                b.rconversion = Integer.parseInt(st.nextToken());
+                b.rclass = getType(cls, st.nextToken());
+                b.rtype = getType(cls, st.nextToken());
+                b.closureRtype = getType(cls, st.nextToken());
+                int count = st.countTokens() / 3;
+                b.conversions = new int[count];
+                b.argTypes = new Class[count];
+                b.closureArgTypes = new Class[count];
+                b.toNative = new ToNativeConverter[count];
+                for (int t=0;t < count;t++) {
+                    b.conversions[t] = Integer.parseInt(st.nextToken());
+                    b.argTypes[t] = getType(cls, st.nextToken());
+                    b.closureArgTypes[t] = getType(cls, st.nextToken());
+                }
+                bindings.add(b);
+            }
+        }
+        catch(RuntimeException e) {
+            throw new IOException("Malformed binding snapshot for " + cls + ": " + e);
+        }
+        catch(ClassNotFoundException e) {
+            throw new IOException("Stale binding snapshot for " + cls + ": " + e);
+        }
+        return (Native.MethodBinding[])bindings.toArray(new Native.MethodBinding[bindings.size()]);
+    }
+
+    private static Class getType(Class cls, String name) throws ClassNotFoundException {
+        Class type = (Class)PRIMITIVES.get(name);
+        return type != null ? type : Class.forName(name, false, cls.getClassLoader());
+    }
+
+    /** Register the given class's native methods from its snapshot resource,
+     * if it has one which may be used with the given library.
+     * @return the registration handles, or null if the class must be
+     * registered by examining its methods.
+     */
+    static long[] register(Class cls, NativeLibrary lib) {
+        Map options = lib.getOptions();
+        if (Boolean.getBoolean("jna.nosnapshot")
+            || options.get(Library.OPTION_TYPE_MAPPER) != null
+            || options.get(Library.OPTION_FUNCTION_MAPPER) != null) {
+            return null;
+        }
+        InputStream is = cls.getResourceAsStream(getResourceName(cls));
+        if (is == null) {
+            return null;
+        }
+        Native.MethodBinding[] bindings;
+        try {
+            try {
+                bindings = read(cls, is);
+            }
+            finally {
+                is.close();
+            }
+        }
+        catch(IOException e) {
+            return null;
+        }
+        // A snapshot which omits a native method would leave it unbound
+        Method[] methods = cls.getDeclaredMethods();
+        int count = 0;
+        for (int i=0;i < methods.length;i++) {
+            if ((methods[i].getModifiers() & Modifier.NATIVE) != 0) {
+                ++count;
+            }
+        }
+        if (count != bindings.length) {
+            return null;
+        }
+        return register(cls, bindings, lib);
+    }
+
+    /** Register the given bindings, or return null after undoing any
+     * registrations if one of them does not match the class.
+     */
+    static long[] register(Class cls, Native.MethodBinding[] bindings, NativeLibrary lib) {
+        long[] handles = new long[bindings.length];
+        for (int i=0;i < bindings.length;i++) {
+            try {
+                handles[i] = Native.registerBinding(cls, bindings[i], lib, bindings[i].name);
+            }
+            catch(UnsatisfiedLinkError e) {
+                // Let the usual registration report the error
+                long[] registered = new long[i];
+                System.arraycopy(handles, 0, registered, 0, i);
+                Native.unregister(cls, registered);
+                return null;
+            }
+        }
+        return handles;
+    }
+
+    /** Generate snapshots for the named classes.
+     * Usage: <code>BindingSnapshot &lt;output directory&gt; &lt;class&gt;...</code>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java " + BindingSnapshot.class.getName()
+                               + " <output directory> <class>...");
+            System.exit(1);
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        for (int i=1;i < args.length;i++) {
+            Class cls = Class.forName(args[i], false, loader);
+            String path = Native.replace(".", File.separator, cls.getName());
+            File file = new File(args[0], path.substring(0, path.lastIndexOf(File.separator) + 1)
+                                 + getResourceName(cls));
+            file.getParentFile().mkdirs();
+            OutputStream os = new FileOutputStream(file);
+            try {
+                write(cls, os);
+            }
+            finally {
+                os.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** Delivers callback invocations asynchronously.  When a callback
+ * registered with {@link Native#setCallbackQueue} is invoked from native
+ * code, its arguments are copied into a bounded native ring buffer and the
+ * native caller returns immediately, without attaching to the VM or running
+ * any Java code.  The queue's threads remove events from the ring in
+ * batches and invoke the corresponding Java callbacks.<p/>
+ *   This suits fire-and-forget notifications such as logging hooks or event
+ * sinks, where native code should not wait on the VM.  Queued callbacks must
+ * return <code>void</code> and may only take primitive (other than
+ * <code>char</code>) and {@link Pointer} arguments, since the arguments are
+ * copied as raw values; any memory referenced by a {@link Pointer} argument
+ * must remain valid until the callback runs.<p/>
+ *   If the ring is full, new events are dropped and counted (see
+ * {@link #getDroppedCount}).  With a single thread, events are delivered in
+ * the order they were queued; with more threads, batches may be processed
+ * concurrently.<p/>
+ */
+public class CallbackQueue {
+
+    /** Default number of events the ring can hold. */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /** Maximum number of events removed from the ring at once. */
+    private static final int BATCH_SIZE = 64;
+    /** Size of each event copied out of the ring. */
+    private static final int EVENT_SIZE = 8 * (Native.CB_QUEUE_MAX_ARGS + 1);
+    /** Longest time, in milliseconds, an idle thread blocks at once. */
+    private static final int WAIT_TIMEOUT = 1000;
+
+    private final Map callbacks = new HashMap();
+    private final Object drainLock = new Object();
+    private final Thread[] threads;
+    private int nextId;
+    private long peer;
+    private long dropped;
+    private volatile boolean disposed;
+
+    /** Create a queue of the default capacity with a single thread. */
+    public CallbackQueue() {
+        this(DEFAULT_CAPACITY, 1);
+    }
+
+    /** Create a queue holding at least <code>capacity</code> events, with
+     * the given number of threads invoking callbacks.
+     */
+    public CallbackQueue(int capacity, int threadCount) {
+        if (capacity < 1 || threadCount < 1) {
+            throw new IllegalArgumentException("Queue capacity and thread count must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        peer = Native.createCallbackQueue(size);
+        threads = new Thread[threadCount];
+        for (int i=0;i < threads.length;i++) {
+            threads[i] = new Thread("JNA Callback Queue " + i) {
+                public void run() {
+                    consume();
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    long getPeer() {
+        return peer;
+    }
+
+    /** Returns an ID for the given callback's queued events. */
+    int register(CallbackReference ref) {
+        synchronized(callbacks) {
+            // Checked under the lock so that dispose() can't miss the
+            // registration when it clears its callbacks
+            if (disposed) {
+                throw new IllegalStateException("Callback queue has been disposed");
+            }
+            int id = ++nextId;
+            callbacks.put(new Integer(id), ref);
+            return id;
+        }
+    }
+
+    void unregister(int id) {
+        synchronized(callbacks) {
+            callbacks.remove(new Integer(id));
+        }
+    }
+
+    /** Returns the number of events dropped because the queue was full. */
+    public long getDroppedCount() {
+        synchronized(drainLock) {
+            return peer != 0 ? Native.getCallbackQueueDropped(peer) : dropped;
+        }
+    }
+
+    private void consume() {
+        Memory buffer = new Memory(BATCH_SIZE * EVENT_SIZE);
+        while (!disposed) {
+            int count;
+            long queue;
+            synchronized(drainLock) {
+                queue = peer;
+                if (queue == 0) {
+                    break;
+                }
+                count = Native.drainCallbackQueue(queue, buffer.peer, BATCH_SIZE);
+            }
+            if (count == 0) {
+                // The queue isn't freed until this thread has exited
+                Native.waitCallbackQueue(queue, WAIT_TIMEOUT);
+                continue;
+            }
+            for (int i=0;i < count;i++) {
+                long offset = i * EVENT_SIZE;
+                CallbackReference ref;
+                synchronized(callbacks) {
+                    ref = (CallbackReference)
+                        callbacks.get(new Integer(buffer.getInt(offset)));
+                }
+                if (ref != null) {
+                    ref.invokeQueued(buffer, offset);
+                }
+            }
+        }
+    }
+
+    /** Stop the queue's threads and free its native memory.  Registered
+     * callbacks revert to synchronous invocation, and any pending events are
+     * discarded.  Native code may continue to invoke the callbacks while the
+     * queue is disposed; the native memory is freed only once no invocation
+     * is still being queued.  A queue's threads keep it alive until it is
+     * disposed.
+     */
+    public synchronized void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        List refs;
+        synchronized(callbacks) {
+            refs = new ArrayList(callbacks.values());
+            callbacks.clear();
+        }
+        for (Iterator i=refs.iterator();i.hasNext();) {
+            ((CallbackReference)i.next()).clearCallbackQueue();
+        }
+        synchronized(drainLock) {
+            Native.closeCallbackQueue(peer);
+        }
+        for (int i=0;i < threads.length;i++) {
+            if (threads[i] != Thread.currentThread()) {
+                try {
+                    threads[i].join();
+                }
+                catch(InterruptedException e) {
+                }
+            }
+        }
+        synchronized(drainLock) {
+            if (peer != 0) {
+                dropped = Native.getCallbackQueueDropped(peer);
+                Native.freeCallbackQueue(peer);
+                peer = 0;
+            }
+        }
+    }
+}
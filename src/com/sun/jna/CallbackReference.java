@@ -59,6 +59,57 @@ class CallbackReference extends WeakReference {
         }
     }
 
+    private static final Map queues = new WeakHashMap();
+    static void setCallbackQueue(Callback cb, CallbackQueue queue) {
+        if (queue != null) {
+            checkQueuedCallback(cb);
+        }
+        synchronized(callbackMap) {
+            if (queue != null) {
+                queues.put(cb, queue);
+            }
+            else {
+                queues.remove(cb);
+            }
+        }
+    }
+
+    /** Queued callbacks are invoked after the native caller has returned,
+     * so may only take arguments which can be copied as raw values, and may
+     * not return a value.
+     */
+    private static void checkQueuedCallback(Callback cb) {
+        Class[] types;
+        Class returnType;
+        if (cb instanceof CallbackProxy) {
+            types = ((CallbackProxy)cb).getParameterTypes();
+            returnType = ((CallbackProxy)cb).getReturnType();
+        }
+        else {
+            Method m = getCallbackMethod(cb);
+            types = m.getParameterTypes();
+            returnType = m.getReturnType();
+        }
+        if (returnType != void.class) {
+            throw new IllegalArgumentException("Queued callback must return void: " + cb);
+        }
+        if (types.length > Native.CB_QUEUE_MAX_ARGS) {
+            throw new IllegalArgumentException("Queued callback may have at most "
+                                               + Native.CB_QUEUE_MAX_ARGS
+                                               + " arguments: " + cb);
+        }
+        TypeMapper mapper = Native.getTypeMapper(cb.getClass());
+        for (int i=0;i < types.length;i++) {
+            if ((!types[i].isPrimitive() && types[i] != Pointer.class)
+                || types[i] == char.class
+                || (mapper != null
+                    && mapper.getFromNativeConverter(types[i]) != null)) {
+                throw new IllegalArgumentException("Queued callback argument "
+                                                   + types[i] + " is not a primitive or Pointer: " + cb);
+            }
+        }
+    }
+
     static class AttachOptions extends Structure {
         public boolean daemon;
         public boolean detach;
@@ -325,6 +376,56 @@ class CallbackReference extends WeakReference {
         cbstruct.setInt(Pointer.SIZE, options);
     }
 
+    private CallbackQueue queue;
+    private int queueId;
+
+    /** Deliver native invocations of this callback through the given queue. */
+    private synchronized void setCallbackQueue(CallbackQueue queue) {
+        queueId = queue.register(this);
+        this.queue = queue;
+        cbstruct.setPointer(Pointer.SIZE * 2, new Pointer(queue.getPeer()));
+        cbstruct.setInt(Pointer.SIZE * 3, queueId);
+    }
+
+    /** Revert to synchronous invocation when the queue is disposed.  Once
+     * this returns, native code no longer refers to the queue.
+     */
+    synchronized void clearCallbackQueue() {
+        if (cbstruct != null) {
+            Native.clearCallbackQueue(cbstruct.peer);
+        }
+        queue = null;
+    }
+
+    /** Invoke this callback with the arguments of a queued event. */
+    void invokeQueued(Pointer event, long offset) {
+        Callback cb = getCallback();
+        if (cb == null) {
+            return;
+        }
+        Class[] types = proxy != null
+            ? proxy.getParameterTypes() : method.getParameterTypes();
+        Object[] args = new Object[types.length];
+        // Each argument has an 8-byte slot following the callback ID
+        for (int i=0;i < types.length;i++) {
+            args[i] = event.getValue(offset + 8 * (i + 1), types[i], null);
+        }
+        try {
+            if (proxy != null) {
+                proxy.callback(args);
+            }
+            else {
+                method.invoke(cb, args);
+            }
+        }
+        catch (InvocationTargetException e) {
+            Native.getCallbackExceptionHandler().uncaughtException(cb, e.getTargetException());
+        }
+        catch (Throwable e) {
+            Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+        }
+    }
+
     /** Obtain a pointer to the native glue code for this callback. */
     public Pointer getTrampoline() {
         return cbstruct.getPointer(0);
@@ -337,6 +438,11 @@ class CallbackReference extends WeakReference {
     
     /** Free native resources associated with this callback. */
     protected synchronized void dispose() {
+        if (queue != null) {
+            CallbackQueue q = queue;
+            clearCallbackQueue();
+            q.unregister(queueId);
+        }
         if (cbstruct != null) {
             Native.freeNativeCallback(cbstruct.peer);
             cbstruct.peer = 0;
@@ -385,8 +491,17 @@ class CallbackReference extends WeakReference {
             if (cbref == null) {
                 cbref = new CallbackReference(cb, callingConvention, direct);
                 map.put(cb, cbref);
+                int options = 0;
                 if (initializers.containsKey(cb)) {
-                    cbref.setCallbackOptions(Native.CB_HAS_INITIALIZER);
+                    options |= Native.CB_HAS_INITIALIZER;
+                }
+                CallbackQueue queue = (CallbackQueue)queues.get(cb);
+                if (queue != null) {
+                    cbref.setCallbackQueue(queue);
+                    options |= Native.CB_ASYNC;
+                }
+                if (options != 0) {
+                    cbref.setCallbackOptions(options);
                 }
             }
             return cbref.getTrampoline();
@@ -28,7 +28,9 @@ package com.sun.jna;
  * the same allocated thread object each time the thread is attached.<p/>
  *   A single initializer may be used for multiple callbacks, one initializer
  * per callback, or you may subclass the initializer to provide different
- * initializer settings depending on the callback.<p/>
+ * initializer settings depending on the callback.  An initializer overrides
+ * the default policy set by {@link Native#setCallbackThreadDetach} for the
+ * callbacks it is registered with.<p/>
  */
 public class CallbackThreadInitializer {
     private boolean daemon;
@@ -0,0 +1,371 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Minimal writer for the class files JNA generates at runtime.  Classes
+ * are written as version 48 (1.4), so no stack map frames are required.
+ * Callers are responsible for providing correct bytecode and stack sizes.
+ */
+final class ClassFileWriter {
+
+    /** Access flags and opcodes used by generated classes. */
+    interface Opcodes {
+        int ACC_PUBLIC = 0x0001;
+        int ACC_STATIC = 0x0008;
+        int ACC_FINAL = 0x0010;
+        int ACC_SUPER = 0x0020;
+        int ACC_NATIVE = 0x0100;
+
+        int ICONST_M1 = 0x02;
+        int ICONST_0 = 0x03;
+        int ICONST_1 = 0x04;
+        int BIPUSH = 0x10;
+        int SIPUSH = 0x11;
+        int LDC_W = 0x13;
+        int ILOAD = 0x15;
+        int LLOAD = 0x16;
+        int FLOAD = 0x17;
+        int DLOAD = 0x18;
+        int ALOAD = 0x19;
+        int ALOAD_0 = 0x2a;
+        int AALOAD = 0x32;
+        int ASTORE = 0x3a;
+        int AASTORE = 0x53;
+        int POP = 0x57;
+        int DUP = 0x59;
+        int I2L = 0x85;
+        int IFEQ = 0x99;
+        int GOTO = 0xa7;
+        int IRETURN = 0xac;
+        int LRETURN = 0xad;
+        int FRETURN = 0xae;
+        int DRETURN = 0xaf;
+        int ARETURN = 0xb0;
+        int RETURN = 0xb1;
+        int GETSTATIC = 0xb2;
+        int GETFIELD = 0xb4;
+        int PUTFIELD = 0xb5;
+        int INVOKEVIRTUAL = 0xb6;
+        int INVOKESPECIAL = 0xb7;
+        int NEW = 0xbb;
+        int ANEWARRAY = 0xbd;
+        int CHECKCAST = 0xc0;
+        int WIDE = 0xc4;
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map entries = new HashMap();
+    private int count = 1;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+    private int fieldCount;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount;
+
+    /** Start a class with the given internal names. */
+    ClassFileWriter(int access, String className, String superName,
+                    String[] interfaceNames) {
+        this.access = access;
+        this.thisClass = classRef(className);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i=0;i < interfaceNames.length;i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    /** Internal name used to refer to the given class in a class file. */
+    static String getInternalName(Class cls) {
+        if (cls.isArray()) {
+            return Native.getSignature(cls);
+        }
+        return cls.getName().replace('.', '/');
+    }
+
+    private Integer lookup(String key) {
+        return (Integer)entries.get(key);
+    }
+
+    private int add(String key, int slots) {
+        entries.put(key, new Integer(count));
+        int index = count;
+        count += slots;
+        return index;
+    }
+
+    int utf8(String s) {
+        Integer index = lookup("U" + s);
+        if (index != null) return index.intValue();
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return add("U" + s, 1);
+    }
+
+    int integer(int value) {
+        Integer index = lookup("I" + value);
+        if (index != null) return index.intValue();
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return add("I" + value, 1);
+    }
+
+    int classRef(String name) {
+        Integer index = lookup("C" + name);
+        if (index != null) return index.intValue();
+        int utf8 = utf8(name);
+        try {
+            poolOut.writeByte(7);
+            poolOut.writeShort(utf8);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return add("C" + name, 1);
+    }
+
+    private int nameAndType(String name, String desc) {
+        String key = "N" + name + " " + desc;
+        Integer index = lookup(key);
+        if (index != null) return index.intValue();
+        int n = utf8(name);
+        int d = utf8(desc);
+        try {
+            poolOut.writeByte(12);
+            poolOut.writeShort(n);
+            poolOut.writeShort(d);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return add(key, 1);
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+        String key = tag + owner + "." + name + " " + desc;
+        Integer index = lookup(key);
+        if (index != null) return index.intValue();
+        int c = classRef(owner);
+        int nt = nameAndType(name, desc);
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(c);
+            poolOut.writeShort(nt);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return add(key, 1);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return memberRef(9, owner, name, desc);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return memberRef(10, owner, name, desc);
+    }
+
+    void addField(int access, String name, String desc) {
+        try {
+            fieldsOut.writeShort(access);
+            fieldsOut.writeShort(utf8(name));
+            fieldsOut.writeShort(utf8(desc));
+            fieldsOut.writeShort(0);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        ++fieldCount;
+    }
+
+    /** Add a method; <code>code</code> may be <code>null</code> for
+     * native methods.
+     */
+    void addMethod(int access, String name, String desc, Code code,
+                   int maxStack, int maxLocals) {
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(desc));
+            if (code == null) {
+                methodsOut.writeShort(0);
+            }
+            else {
+                byte[] bytes = code.toByteArray();
+                methodsOut.writeShort(1);
+                methodsOut.writeShort(utf8("Code"));
+                methodsOut.writeInt(12 + bytes.length);
+                methodsOut.writeShort(maxStack);
+                methodsOut.writeShort(maxLocals);
+                methodsOut.writeInt(bytes.length);
+                methodsOut.write(bytes);
+                methodsOut.writeShort(0);
+                methodsOut.writeShort(0);
+            }
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        ++methodCount;
+    }
+
+    /** Add a public no-argument constructor which calls the superclass
+     * constructor.
+     */
+    void addDefaultConstructor(String superName) {
+        Code code = new Code();
+        code.op(Opcodes.ALOAD_0);
+        code.op(Opcodes.INVOKESPECIAL, methodRef(superName, "<init>", "()V"));
+        code.op(Opcodes.RETURN);
+        addMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", code, 1, 1);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(48);
+            out.writeShort(count);
+            out.write(pool.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i=0;i < interfaces.length;i++) {
+                out.writeShort(interfaces[i]);
+            }
+            out.writeShort(fieldCount);
+            out.write(fields.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray());
+            out.writeShort(0);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected error writing class file: " + e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Define the class in a new class loader with the given parent. */
+    static Class define(ClassLoader parent, String name, byte[] bytes) {
+        return new Loader(parent).define(name, bytes);
+    }
+
+    /** Accumulates the bytecode for a single method. */
+    final class Code {
+        private byte[] code = new byte[64];
+        private int size;
+
+        private void write(int b) {
+            if (size == code.length) {
+                byte[] buf = new byte[code.length * 2];
+                System.arraycopy(code, 0, buf, 0, size);
+                code = buf;
+            }
+            code[size++] = (byte)b;
+        }
+
+        void op(int op) {
+            write(op);
+        }
+
+        void op(int op, int index) {
+            write(op);
+            write(index >> 8);
+            write(index);
+        }
+
+        /** Push an int constant. */
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(Opcodes.ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(Opcodes.BIPUSH);
+                write(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(Opcodes.SIPUSH, value);
+            }
+            else {
+                op(Opcodes.LDC_W, integer(value));
+            }
+        }
+
+        /** Load or store a local variable. */
+        void load(int op, int slot) {
+            if (slot > 0xFF) {
+                write(Opcodes.WIDE);
+                op(op, slot);
+            }
+            else {
+                write(op);
+                write(slot);
+            }
+        }
+
+        /** Emit a branch with an unresolved target, returning its position
+         * for {@link #resolve}.
+         */
+        int branch(int op) {
+            int pos = size;
+            op(op, 0);
+            return pos;
+        }
+
+        /** Set the target of the given branch to the current position. */
+        void resolve(int branch) {
+            int offset = size - branch;
+            code[branch + 1] = (byte)(offset >> 8);
+            code[branch + 2] = (byte)offset;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+            System.arraycopy(code, 0, bytes, 0, size);
+            return bytes;
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+        Class define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -13,9 +13,12 @@
 
 package com.sun.jna;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /** Provide custom mappings to and from native types.  The default lookup
  * checks classes corresponding to converters in the order added; if the
@@ -28,7 +31,9 @@ import java.util.List;
  * Object type and vice versa (i.e. you don't have to register both 
  * <code>int.class</code> and <code>Integer.class</code>).
  * If you want different mapping behavior than the default, simply override
- * {@link #getToNativeConverter} and {@link #getFromNativeConverter}.
+ * {@link #getToNativeConverter} and {@link #getFromNativeConverter}.<p>
+ * The converter resolved for each class, or the absence of one, is cached
+ * until another converter is added.
  * @see Library#OPTION_TYPE_MAPPER 
  */
 public class DefaultTypeMapper implements TypeMapper {
@@ -40,8 +45,25 @@ public class DefaultTypeMapper implements TypeMapper {
             this.converter = converter;
         }
     }
+    /** Cached converter for a class, which does not keep the class
+     * reachable.
+     */
+    private static class CachedConverter {
+        public final WeakReference type;
+        public final Object converter;
+        public CachedConverter(Class type, Object converter) {
+            this.type = new WeakReference(type);
+            this.converter = converter;
+        }
+    }
+    /** Cached result for classes without a converter. */
+    private static final Object NO_CONVERTER = new Object();
     private List toNativeConverters = new ArrayList();
     private List fromNativeConverters = new ArrayList();
+    // Copy-on-write maps of class name to CachedConverter; read without
+    // locking
+    private volatile Map toNativeCache = new HashMap();
+    private volatile Map fromNativeCache = new HashMap();
     private Class getAltClass(Class cls) {
         if (cls == Boolean.class) {
             return boolean.class;
@@ -98,20 +120,26 @@ public class DefaultTypeMapper implements TypeMapper {
      * checked for in the order added.
      */
     public void addToNativeConverter(Class cls, ToNativeConverter converter) {
-        toNativeConverters.add(new Entry(cls, converter));
-        Class alt = getAltClass(cls);
-        if (alt != null) {
-            toNativeConverters.add(new Entry(alt, converter));
+        synchronized(toNativeConverters) {
+            toNativeConverters.add(new Entry(cls, converter));
+            Class alt = getAltClass(cls);
+            if (alt != null) {
+                toNativeConverters.add(new Entry(alt, converter));
+            }
+            toNativeCache = new HashMap();
         }
     }
     /** Add a {@link FromNativeConverter} to convert a native result type into the 
      * given Java type.  Converters are checked for in the order added.
      */
     public void addFromNativeConverter(Class cls, FromNativeConverter converter) {
-        fromNativeConverters.add(new Entry(cls, converter));
-        Class alt = getAltClass(cls);
-        if (alt != null) {
-            fromNativeConverters.add(new Entry(alt, converter));
+        synchronized(fromNativeConverters) {
+            fromNativeConverters.add(new Entry(cls, converter));
+            Class alt = getAltClass(cls);
+            if (alt != null) {
+                fromNativeConverters.add(new Entry(alt, converter));
+            }
+            fromNativeCache = new HashMap();
         }
     }
     /** Add a {@link TypeConverter} to provide bidirectional mapping between
@@ -122,25 +150,55 @@ public class DefaultTypeMapper implements TypeMapper {
         addToNativeConverter(cls, converter);
     }
     
-    private Object lookupConverter(Class javaClass, List converters) {
-        for (Iterator i=converters.iterator();i.hasNext();) {
-            Entry entry = (Entry)i.next();
-            if (entry.type.isAssignableFrom(javaClass)) {
-                return entry.converter;
+    /** Cache hits take no lock; a miss scans the converters and publishes
+     * a new copy of the cache while holding the converter list's lock.
+     */
+    private Object lookupConverter(Class javaClass, boolean toNative) {
+        Object converter = lookupCache(toNative ? toNativeCache : fromNativeCache, javaClass);
+        if (converter == null) {
+            List converters = toNative ? toNativeConverters : fromNativeConverters;
+            synchronized(converters) {
+                Map cache = toNative ? toNativeCache : fromNativeCache;
+                converter = lookupCache(cache, javaClass);
+                if (converter == null) {
+                    converter = NO_CONVERTER;
+                    for (Iterator i=converters.iterator();i.hasNext();) {
+                        Entry entry = (Entry)i.next();
+                        if (entry.type.isAssignableFrom(javaClass)) {
+                            converter = entry.converter;
+                            break;
+                        }
+                    }
+                    cache = new HashMap(cache);
+                    cache.put(javaClass.getName(), new CachedConverter(javaClass, converter));
+                    if (toNative) {
+                        toNativeCache = cache;
+                    }
+                    else {
+                        fromNativeCache = cache;
+                    }
+                }
             }
         }
-        return null;
+        return converter == NO_CONVERTER ? null : converter;
+    }
+    /** Classes of the same name from different class loaders replace each
+     * other's entries.
+     */
+    private static Object lookupCache(Map cache, Class javaClass) {
+        CachedConverter cached = (CachedConverter)cache.get(javaClass.getName());
+        return cached != null && cached.type.get() == javaClass ? cached.converter : null;
     }
     /* (non-Javadoc)
      * @see com.sun.jna.TypeMapper#getFromNativeConverter(java.lang.Class)
      */
     public FromNativeConverter getFromNativeConverter(Class javaType) {
-        return (FromNativeConverter)lookupConverter(javaType, fromNativeConverters);
+        return (FromNativeConverter)lookupConverter(javaType, false);
     }
     /* (non-Javadoc)
      * @see com.sun.jna.TypeMapper#getToNativeConverter(java.lang.Class)
      */
     public ToNativeConverter getToNativeConverter(Class javaType) {
-        return (ToNativeConverter)lookupConverter(javaType, toNativeConverters);
+        return (ToNativeConverter)lookupConverter(javaType, true);
     }
 }
@@ -0,0 +1,303 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Generates classes implementing {@link Library} interfaces as an
+ * alternative to {@link java.lang.reflect.Proxy}.  Each interface method is
+ * either declared <code>native</code> and bound with direct mapping (see
+ * {@link Native#register(Class,NativeLibrary)}), or, if direct mapping
+ * can't support it, implemented by delegating to the library's
+ * {@link Library.Handler}.<p>
+ * Generated classes are defined in their own class loader, since each is
+ * bound to a particular {@link NativeLibrary} and set of options.  A class
+ * stays registered with its library, so it is generated once for each
+ * interface and library instance and reused by later loads.
+ * @see Library#OPTION_DIRECT_MAPPING
+ */
+final class DirectLibraryGenerator implements ClassFileWriter.Opcodes {
+
+    private static final String HANDLER_FIELD = "handler";
+    private static final String METHODS_FIELD = "methods";
+    private static final String HANDLER_TYPE = "com/sun/jna/Library$Handler";
+    private static final String OBJECT_TYPE = "java/lang/Object";
+    private static final String INVOKE_SIGNATURE =
+        "(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private static int counter;
+    // List of interface class and NativeLibrary to generated class
+    private static final Map generated = new HashMap();
+
+    private DirectLibraryGenerator() { }
+
+    /** Create an instance of a generated class implementing the given
+     * interface, using the given handler for any methods which are not
+     * directly mapped.  Returns <code>null</code> if the interface can't be
+     * implemented by a generated class.  Since a library instance is
+     * specific to a set of options, the handler of the first instance
+     * created for a library serves all later ones.
+     */
+    static Object newInstance(Class interfaceClass, Library.Handler handler) {
+        if (!isAccessible(interfaceClass)) {
+            return null;
+        }
+        List key = Arrays.asList(new Object[] {
+            interfaceClass, handler.getNativeLibrary()
+        });
+        Class cls;
+        synchronized(generated) {
+            cls = (Class)generated.get(key);
+            if (cls == null) {
+                cls = define(interfaceClass, handler);
+                if (cls == null) {
+                    return null;
+                }
+                generated.put(key, cls);
+            }
+        }
+        try {
+            return cls.newInstance();
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Generated library class is invalid: " + e);
+        }
+        catch(InstantiationException e) {
+            throw new Error("Generated library class is invalid: " + e);
+        }
+    }
+
+    /** Define and register a class implementing the given interface, or
+     * return <code>null</code> if it can't be implemented.
+     */
+    private static Class define(Class interfaceClass, Library.Handler handler) {
+        NativeLibrary lib = handler.getNativeLibrary();
+        TypeMapper mapper = (TypeMapper)lib.getOptions().get(Library.OPTION_TYPE_MAPPER);
+        InvocationMapper invocationMapper = handler.getInvocationMapper();
+
+        Method[] methods = getMethods(interfaceClass);
+        boolean[] direct = new boolean[methods.length];
+        List directMethods = new ArrayList();
+        List names = new ArrayList();
+        for (int i=0;i < methods.length;i++) {
+            Method m = methods[i];
+            if (invocationMapper != null
+                && invocationMapper.getInvocationHandler(lib, m) != null) {
+                continue;
+            }
+            if (!Native.isDirectMappable(m, mapper)) {
+                Class rtype = m.getReturnType();
+                if (!rtype.isPrimitive() && !isAccessible(rtype)) {
+                    // Generated code can't cast to an inaccessible type
+                    return null;
+                }
+                continue;
+            }
+            String name = handler.getFunctionName(m);
+            try {
+                // Missing symbols are reported when the method is invoked
+                Function f = lib.getFunction(name, m);
+                if (f.getClass() != Function.class) {
+                    // Preserve any customized invocation
+                    continue;
+                }
+            }
+            catch(UnsatisfiedLinkError e) {
+                continue;
+            }
+            direct[i] = true;
+            directMethods.add(m);
+            names.add(name);
+        }
+
+        String className = interfaceClass.getName() + "$$DirectMapped" + (++counter);
+        byte[] bytes = generate(className.replace('.', '/'), interfaceClass,
+                                methods, direct);
+        ClassLoader parent = interfaceClass.getClassLoader();
+        if (parent == null) {
+            parent = Library.class.getClassLoader();
+        }
+        Class cls = ClassFileWriter.define(parent, className, bytes);
+        try {
+            cls.getField(HANDLER_FIELD).set(null, handler);
+            cls.getField(METHODS_FIELD).set(null, methods);
+            Native.register(cls,
+                            (Method[])directMethods.toArray(new Method[directMethods.size()]),
+                            (String[])names.toArray(new String[names.size()]),
+                            lib);
+            return cls;
+        }
+        catch(NoSuchFieldException e) {
+            throw new Error("Generated library class is invalid: " + e);
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Generated library class is invalid: " + e);
+        }
+    }
+
+    /** Whether a class in another class loader may refer to the given
+     * class.
+     */
+    private static boolean isAccessible(Class cls) {
+        while (cls.isArray()) {
+            cls = cls.getComponentType();
+        }
+        for (;cls != null;cls = cls.getDeclaringClass()) {
+            if (!cls.isPrimitive() && !Modifier.isPublic(cls.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the interface methods to implement, omitting duplicates
+     * inherited from more than one interface.
+     */
+    private static Method[] getMethods(Class interfaceClass) {
+        Method[] all = interfaceClass.getMethods();
+        List methods = new ArrayList();
+        Set signatures = new HashSet();
+        for (int i=0;i < all.length;i++) {
+            if (signatures.add(all[i].getName() + getDescriptor(all[i]))) {
+                methods.add(all[i]);
+            }
+        }
+        return (Method[])methods.toArray(new Method[methods.size()]);
+    }
+
+    private static String getDescriptor(Method m) {
+        StringBuffer buf = new StringBuffer("(");
+        Class[] ptypes = m.getParameterTypes();
+        for (int i=0;i < ptypes.length;i++) {
+            buf.append(Native.getSignature(ptypes[i]));
+        }
+        buf.append(")");
+        buf.append(Native.getSignature(m.getReturnType()));
+        return buf.toString();
+    }
+
+    /** Generate the class file. */
+    private static byte[] generate(String className, Class interfaceClass,
+                                   Method[] methods, boolean[] direct) {
+        String[] interfaces = {
+            ClassFileWriter.getInternalName(interfaceClass)
+        };
+        ClassFileWriter cfw = new ClassFileWriter(ACC_PUBLIC|ACC_FINAL|ACC_SUPER,
+                                                  className, OBJECT_TYPE,
+                                                  interfaces);
+        cfw.addField(ACC_PUBLIC|ACC_STATIC, HANDLER_FIELD, "L" + HANDLER_TYPE + ";");
+        cfw.addField(ACC_PUBLIC|ACC_STATIC, METHODS_FIELD, "[Ljava/lang/reflect/Method;");
+        cfw.addDefaultConstructor(OBJECT_TYPE);
+        for (int i=0;i < methods.length;i++) {
+            Method m = methods[i];
+            String desc = getDescriptor(m);
+            if (direct[i]) {
+                cfw.addMethod(ACC_PUBLIC|ACC_NATIVE, m.getName(), desc, null, 0, 0);
+            }
+            else {
+                ClassFileWriter.Code code = cfw.new Code();
+                int locals = generateDelegate(cfw, code, className, i, m);
+                cfw.addMethod(ACC_PUBLIC, m.getName(), desc, code, 10, locals);
+            }
+        }
+        return cfw.toByteArray();
+    }
+
+    /** Generate the equivalent of
+     * <code>return handler.invoke(this, methods[index], new Object[] { args })</code>,
+     * with boxing and unboxing as required.  Returns the number of local
+     * variable slots used.
+     */
+    private static int generateDelegate(ClassFileWriter cfw, ClassFileWriter.Code code,
+                                        String className, int index, Method m) {
+        Class[] ptypes = m.getParameterTypes();
+        code.op(GETSTATIC, cfw.fieldRef(className, HANDLER_FIELD, "L" + HANDLER_TYPE + ";"));
+        code.op(ALOAD_0);
+        code.op(GETSTATIC, cfw.fieldRef(className, METHODS_FIELD, "[Ljava/lang/reflect/Method;"));
+        code.push(index);
+        code.op(AALOAD);
+        code.push(ptypes.length);
+        code.op(ANEWARRAY, cfw.classRef(OBJECT_TYPE));
+        int slot = 1;
+        for (int i=0;i < ptypes.length;i++) {
+            Class type = ptypes[i];
+            code.op(DUP);
+            code.push(i);
+            if (type.isPrimitive()) {
+                String wrapper = getWrapper(type);
+                String sig = Native.getSignature(type);
+                code.op(NEW, cfw.classRef(wrapper));
+                code.op(DUP);
+                code.load(getLoadOp(type), slot);
+                code.op(INVOKESPECIAL, cfw.methodRef(wrapper, "<init>", "(" + sig + ")V"));
+            }
+            else {
+                code.load(ALOAD, slot);
+            }
+            code.op(AASTORE);
+            slot += (type == long.class || type == double.class) ? 2 : 1;
+        }
+        code.op(INVOKEVIRTUAL, cfw.methodRef(HANDLER_TYPE, "invoke", INVOKE_SIGNATURE));
+
+        Class rtype = m.getReturnType();
+        if (rtype == void.class) {
+            code.op(POP);
+            code.op(RETURN);
+        }
+        else if (rtype.isPrimitive()) {
+            String wrapper = getWrapper(rtype);
+            String sig = Native.getSignature(rtype);
+            code.op(CHECKCAST, cfw.classRef(wrapper));
+            code.op(INVOKEVIRTUAL, cfw.methodRef(wrapper, rtype.getName() + "Value", "()" + sig));
+            code.op(getReturnOp(rtype));
+        }
+        else {
+            if (rtype != Object.class) {
+                code.op(CHECKCAST, cfw.classRef(ClassFileWriter.getInternalName(rtype)));
+            }
+            code.op(ARETURN);
+        }
+        return slot;
+    }
+
+    private static String getWrapper(Class type) {
+        if (type == boolean.class) return "java/lang/Boolean";
+        if (type == byte.class) return "java/lang/Byte";
+        if (type == short.class) return "java/lang/Short";
+        if (type == char.class) return "java/lang/Character";
+        if (type == int.class) return "java/lang/Integer";
+        if (type == long.class) return "java/lang/Long";
+        if (type == float.class) return "java/lang/Float";
+        return "java/lang/Double";
+    }
+
+    private static int getLoadOp(Class type) {
+        if (type == long.class) return LLOAD;
+        if (type == float.class) return FLOAD;
+        if (type == double.class) return DLOAD;
+        return ILOAD;
+    }
+
+    private static int getReturnOp(Class type) {
+        if (type == long.class) return LRETURN;
+        if (type == float.class) return FRETURN;
+        if (type == double.class) return DRETURN;
+        return IRETURN;
+    }
+}
@@ -57,7 +57,7 @@ public class Function extends Pointer {
     /** First alternate convention (currently used only for w32 stdcall). */
     public static final int ALT_CONVENTION = 1;
 
-    private static final int MASK_CC = 0x3;
+    static final int MASK_CC = 0x3;
     /** Whether to throw an exception if last error is non-zero after call. */
     public static final int THROW_LAST_ERROR = (1<<2);
 
@@ -239,6 +239,19 @@ public class Function extends Pointer {
      * native result as an Object.
      */
     public Object invoke(Class returnType, Object[] inArgs, Map options) {
+        // Temporary native memory for arguments is valid until the call
+        // returns
+        ScratchArena arena = ScratchArena.get();
+        long mark = arena.mark();
+        try {
+            return convertAndInvoke(returnType, inArgs, options);
+        }
+        finally {
+            arena.release(mark);
+        }
+    }
+
+    private Object convertAndInvoke(Class returnType, Object[] inArgs, Map options) {
         // Clone the argument array to obtain a scratch space for modified
         // types/values
         Object[] args = { };
@@ -290,112 +303,459 @@ public class Function extends Pointer {
         // Sync all memory which might have been modified by the native call
         if (inArgs != null) {
             for (int i=0; i < inArgs.length; i++) {
-                Object inArg = inArgs[i];
-                if (inArg == null)
-                    continue;
-                if (inArg instanceof Structure) {
-                    if (!(inArg instanceof Structure.ByValue)) {
-                        ((Structure)inArg).autoRead();
-                    }
+                readArgument(inArgs[i], args[i]);
+            }
+        }
+                        
+        return result;
+    }
+
+    /** Invoke the native function for a method described by the given
+     * conversion plan, converting arguments and result as
+     * {@link #invoke(Class,Object[],Map)} would.
+     */
+    Object invoke(ConversionPlan plan, Object[] inArgs) {
+        ScratchArena arena = ScratchArena.get();
+        long mark = arena.mark();
+        try {
+            return convertAndInvoke(plan, inArgs, arena);
+        }
+        finally {
+            arena.release(mark);
+        }
+    }
+
+    private Object convertAndInvoke(ConversionPlan plan, Object[] inArgs,
+                                    ScratchArena arena) {
+        Object[] args = { };
+        if (inArgs != null) {
+            if (inArgs.length > MAX_NARGS) {
+                throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
+            }
+            args = new Object[inArgs.length];
+            System.arraycopy(inArgs, 0, args, 0, args.length);
+        }
+
+        Method invokingMethod = plan.method;
+        // Whether the arguments still match the plan's primitive signature
+        boolean planned = plan.signature != -1;
+        for (int i=0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                continue;
+            }
+            switch(plan.getConversion(i, arg)) {
+            case ConversionPlan.NONE:
+                break;
+            case ConversionPlan.BOOLEAN:
+                args[i] = ((Boolean)arg).booleanValue() ? INTEGER_TRUE : INTEGER_FALSE;
+                break;
+            case ConversionPlan.STRING:
+                args[i] = arena.newString((String)arg, false);
+                break;
+            case ConversionPlan.WSTRING:
+                args[i] = arena.newString(arg.toString(), true);
+                break;
+            case ConversionPlan.STRUCTURE:
+                ((Structure)arg).autoWrite();
+                args[i] = ((Structure)arg).getPointer();
+                break;
+            case ConversionPlan.STRUCTURE_BYVAL:
+                ((Structure)arg).autoWrite();
+                break;
+            case ConversionPlan.CALLBACK:
+                args[i] = CallbackReference.getFunctionPointer((Callback)arg);
+                break;
+            case ConversionPlan.NATIVE_MAPPED:
+                // NativeMappedConverter does not use its context
+                args[i] = toNativeArgument(((NativeMapped)arg).toNative(), i,
+                                           invokingMethod, plan.allowObjects);
+                break;
+            case ConversionPlan.CONVERTED:
+                ToNativeContext context =
+                    new MethodParameterContext(this, args, i, invokingMethod);
+                args[i] = toNativeArgument(plan.converters[i].toNative(arg, context),
+                                           i, invokingMethod, plan.allowObjects);
+                break;
+            default:
+                args[i] = convertArgument(args, i, invokingMethod,
+                                          plan.mapper, plan.allowObjects);
+                planned = false;
+                break;
+            }
+        }
+
+        int signature = planned
+            ? plan.signature : Native.getPrimitiveSignature(args);
+        Object result = invoke(args, plan.nativeReturnType, plan.returnKind,
+                               signature, plan.allowObjects);
+
+        if (plan.resultConverter != null) {
+            FromNativeContext context =
+                new MethodResultContext(plan.returnType, this, inArgs, invokingMethod);
+            result = plan.resultConverter.fromNative(result, context);
+        }
+
+        if (inArgs != null) {
+            for (int i=0; i < inArgs.length; i++) {
+                if (plan.isReadRequired(i, inArgs[i])) {
+                    readArgument(inArgs[i], args[i]);
                 }
-                else if (args[i] instanceof PostCallRead) {
-                    ((PostCallRead)args[i]).read();
-                    if (args[i] instanceof PointerArray) {
-                        PointerArray array = (PointerArray)args[i];
-                        if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
-                            Class type = inArg.getClass().getComponentType();
-                            Structure[] ss = (Structure[])inArg;
-                            for (int si=0;si < ss.length;si++) {
-                                Pointer p = array.getPointer(Pointer.SIZE * si);
-                                ss[si] = Structure.updateStructureByReference(type, ss[si], p);
-                            }
-                        }
-                    }
+            }
+        }
+        return result;
+    }
+
+    /** Describes the conversions needed to invoke a native function for a
+     * particular {@link Method} with a given set of options.  Each parameter
+     * gets a conversion which applies to arguments of the parameter's
+     * declared type, so that calls after the first need not look up
+     * converters or test the argument type against each supported type.
+     * Arguments of any other type are converted as usual.  The return
+     * dispatch and, where the parameter types determine it, the primitive
+     * argument signature are also computed once.  A plan is
+     * immutable and may be shared among threads.
+     */
+    static final class ConversionPlan {
+        /** Convert as {@link Function#invoke(Class,Object[],Map)} would. */
+        static final int DEFAULT = 0;
+        /** Pass the argument unchanged. */
+        static final int NONE = 1;
+        static final int BOOLEAN = 2;
+        static final int STRING = 3;
+        static final int WSTRING = 4;
+        static final int STRUCTURE = 5;
+        static final int STRUCTURE_BYVAL = 6;
+        static final int CALLBACK = 7;
+        static final int NATIVE_MAPPED = 8;
+        static final int CONVERTED = 9;
+
+        final Method method;
+        final Class returnType;
+        final Class nativeReturnType;
+        /** One of the <code>RT_</code> return kinds. */
+        final int returnKind;
+        /** Primitive signature shared by all calls, or -1. */
+        final int signature;
+        final FromNativeConverter resultConverter;
+        final TypeMapper mapper;
+        final boolean allowObjects;
+        /** Argument class to which each conversion applies. */
+        private final Class[] types;
+        private final int[] conversions;
+        final ToNativeConverter[] converters;
+        /** Whether subclasses of the argument class may use the conversion. */
+        private final boolean[] subclasses;
+        /** Whether the argument may need reading after the call. */
+        private final boolean[] reads;
+
+        ConversionPlan(Method method, Map options) {
+            this.method = method;
+            this.mapper = (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+            this.allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+
+            returnType = method.getReturnType();
+            Class nativeType = returnType;
+            FromNativeConverter resultConverter = null;
+            if (NativeMapped.class.isAssignableFrom(returnType)) {
+                NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
+                resultConverter = tc;
+                nativeType = tc.nativeType();
+            }
+            else if (mapper != null) {
+                resultConverter = mapper.getFromNativeConverter(returnType);
+                if (resultConverter != null) {
+                    nativeType = resultConverter.nativeType();
+                }
+            }
+            this.nativeReturnType = nativeType;
+            this.resultConverter = resultConverter;
+            this.returnKind = getReturnKind(nativeType);
+
+            Class[] ptypes = method.getParameterTypes();
+            // Trailing varargs are expanded into individual arguments
+            int count = isVarArgs(method) ? ptypes.length - 1 : ptypes.length;
+            types = new Class[count];
+            conversions = new int[count];
+            converters = new ToNativeConverter[count];
+            subclasses = new boolean[count];
+            reads = new boolean[count];
+            for (int i=0;i < count;i++) {
+                Class type = ptypes[i];
+                if (type.isPrimitive()) {
+                    type = getWrapperClass(type);
+                }
+                types[i] = type;
+                reads[i] = true;
+                if (NativeMapped.class.isAssignableFrom(type)) {
+                    conversions[i] = NATIVE_MAPPED;
+                }
+                else if (mapper != null
+                         && (converters[i] = mapper.getToNativeConverter(type)) != null) {
+                    conversions[i] = CONVERTED;
                 }
-                else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
-                    Structure.autoRead((Structure[])inArg);
+                else if (type.isArray() && type.getComponentType().isPrimitive()) {
+                    conversions[i] = NONE;
+                    reads[i] = false;
+                }
+                else if (Structure.class.isAssignableFrom(type)) {
+                    conversions[i] = Structure.ByValue.class.isAssignableFrom(type)
+                        ? STRUCTURE_BYVAL : STRUCTURE;
+                    reads[i] = conversions[i] == STRUCTURE;
+                    subclasses[i] = mapper == null;
+                }
+                else if (Callback.class.isAssignableFrom(type)) {
+                    conversions[i] = CALLBACK;
+                    reads[i] = false;
+                    subclasses[i] = mapper == null;
+                }
+                else if (type == String.class) {
+                    conversions[i] = STRING;
+                    reads[i] = false;
+                }
+                else if (type == WString.class) {
+                    conversions[i] = WSTRING;
+                    reads[i] = false;
+                }
+                else if (type == Boolean.class) {
+                    conversions[i] = BOOLEAN;
+                    reads[i] = false;
+                }
+                else if (Pointer.class.isAssignableFrom(type)) {
+                    // Pointer arguments may implement PostCallRead
+                    conversions[i] = NONE;
+                    subclasses[i] = mapper == null;
+                }
+                else if (type == Byte.class || type == Short.class
+                         || type == Character.class || type == Integer.class
+                         || type == Long.class || type == Float.class
+                         || type == Double.class) {
+                    conversions[i] = NONE;
+                    reads[i] = false;
+                }
+                else {
+                    conversions[i] = DEFAULT;
+                    types[i] = null;
+                }
+            }
+            int signature = count == ptypes.length
+                ? Native.getPrimitiveSignature(ptypes) : -1;
+            for (int i=0;i < count && signature != -1;i++) {
+                if (conversions[i] != NONE && conversions[i] != BOOLEAN) {
+                    signature = -1;
                 }
             }
+            this.signature = signature;
+        }
+
+        private static Class getWrapperClass(Class type) {
+            if (type == boolean.class) return Boolean.class;
+            if (type == byte.class) return Byte.class;
+            if (type == short.class) return Short.class;
+            if (type == char.class) return Character.class;
+            if (type == int.class) return Integer.class;
+            if (type == long.class) return Long.class;
+            if (type == float.class) return Float.class;
+            if (type == double.class) return Double.class;
+            return type;
+        }
+
+        /** Returns the conversion to use for the given non-null argument. */
+        int getConversion(int index, Object arg) {
+            return applies(index, arg) ? conversions[index] : DEFAULT;
+        }
+
+        /** Returns whether the given argument may need to be read after the
+         * native call.
+         */
+        boolean isReadRequired(int index, Object arg) {
+            return arg != null && (!applies(index, arg) || reads[index]);
+        }
+
+        private boolean applies(int index, Object arg) {
+            if (index >= types.length) {
+                return false;
+            }
+            Class cls = arg.getClass();
+            if (cls == types[index]) {
+                return true;
+            }
+            // Without a type mapper, only NativeMapped changes how a
+            // subclass is converted
+            return subclasses[index]
+                && types[index].isInstance(arg)
+                && !(arg instanceof NativeMapped)
+                && (conversions[index] != CALLBACK || !(arg instanceof Structure));
         }
-                        
-        return result;
     }
 
-    /** @see NativeLibrary#NativeLibrary(String,String,long,Map) implementation */
-    Object invoke(Object[] args, Class returnType, boolean allowObjects) {
-        Object result = null;
+    // Return dispatch kinds, precomputed per method by ConversionPlan
+    static final int RT_OTHER = 0;
+    static final int RT_VOID = 1;
+    static final int RT_BOOLEAN = 2;
+    static final int RT_BYTE = 3;
+    static final int RT_SHORT = 4;
+    static final int RT_CHAR = 5;
+    static final int RT_INT = 6;
+    static final int RT_LONG = 7;
+    static final int RT_FLOAT = 8;
+    static final int RT_DOUBLE = 9;
+    static final int RT_STRING = 10;
+    static final int RT_WSTRING = 11;
+    static final int RT_POINTER = 12;
+    static final int RT_STRUCTURE = 13;
+    static final int RT_STRUCTURE_BYVAL = 14;
+    static final int RT_CALLBACK = 15;
+    static final int RT_STRING_ARRAY = 16;
+    static final int RT_WSTRING_ARRAY = 17;
+    static final int RT_POINTER_ARRAY = 18;
+
+    /** Returns the kind of dispatch used for the given native return
+     * type.
+     */
+    static int getReturnKind(Class returnType) {
         if (returnType == null || returnType==void.class || returnType==Void.class) {
-            Native.invokeVoid(peer, callFlags, args);
-            result = null;
+            return RT_VOID;
+        }
+        if (returnType==boolean.class || returnType==Boolean.class) {
+            return RT_BOOLEAN;
+        }
+        if (returnType==byte.class || returnType==Byte.class) {
+            return RT_BYTE;
+        }
+        if (returnType==short.class || returnType==Short.class) {
+            return RT_SHORT;
+        }
+        if (returnType==char.class || returnType==Character.class) {
+            return RT_CHAR;
         }
-        else if (returnType==boolean.class || returnType==Boolean.class) {
-            result = valueOf(Native.invokeInt(peer, callFlags, args) != 0);
+        if (returnType==int.class || returnType==Integer.class) {
+            return RT_INT;
         }
-        else if (returnType==byte.class || returnType==Byte.class) {
-            result = new Byte((byte)Native.invokeInt(peer, callFlags, args));
+        if (returnType==long.class || returnType==Long.class) {
+            return RT_LONG;
         }
-        else if (returnType==short.class || returnType==Short.class) {
-            result = new Short((short)Native.invokeInt(peer, callFlags, args));
+        if (returnType==float.class || returnType==Float.class) {
+            return RT_FLOAT;
         }
-        else if (returnType==char.class || returnType==Character.class) {
-            result = new Character((char)Native.invokeInt(peer, callFlags, args));
+        if (returnType==double.class || returnType==Double.class) {
+            return RT_DOUBLE;
         }
-        else if (returnType==int.class || returnType==Integer.class) {
-            result = new Integer(Native.invokeInt(peer, callFlags, args));
+        if (returnType==String.class) {
+            return RT_STRING;
         }
-        else if (returnType==long.class || returnType==Long.class) {
-            result = new Long(Native.invokeLong(peer, callFlags, args));
+        if (returnType==WString.class) {
+            return RT_WSTRING;
         }
-        else if (returnType==float.class || returnType==Float.class) {
-            result = new Float(Native.invokeFloat(peer, callFlags, args));
+        if (Pointer.class.isAssignableFrom(returnType)) {
+            return RT_POINTER;
         }
-        else if (returnType==double.class || returnType==Double.class) {
-            result = new Double(Native.invokeDouble(peer, callFlags, args));
+        if (Structure.class.isAssignableFrom(returnType)) {
+            return Structure.ByValue.class.isAssignableFrom(returnType)
+                ? RT_STRUCTURE_BYVAL : RT_STRUCTURE;
         }
-        else if (returnType==String.class) {
-            result = invokeString(callFlags, args, false);
+        if (Callback.class.isAssignableFrom(returnType)) {
+            return RT_CALLBACK;
         }
-        else if (returnType==WString.class) {
-            String s = invokeString(callFlags, args, true);
+        if (returnType==String[].class) {
+            return RT_STRING_ARRAY;
+        }
+        if (returnType==WString[].class) {
+            return RT_WSTRING_ARRAY;
+        }
+        if (returnType==Pointer[].class) {
+            return RT_POINTER_ARRAY;
+        }
+        return RT_OTHER;
+    }
+
+    /** @see NativeLibrary#NativeLibrary(String,String,long,Map) implementation */
+    Object invoke(Object[] args, Class returnType, boolean allowObjects) {
+        // Arguments which are all primitives or pointers may be passed
+        // without boxing or type checks in native code
+        return invoke(args, returnType, getReturnKind(returnType),
+                      Native.getPrimitiveSignature(args), allowObjects);
+    }
+
+    /** Invoke with a precomputed return kind and primitive argument
+     * signature (-1 if the arguments must be passed as objects).
+     */
+    private Object invoke(Object[] args, Class returnType, int returnKind,
+                          int signature, boolean allowObjects) {
+        Object result = null;
+        switch(returnKind) {
+        case RT_VOID:
+            Native.invokeVoid(peer, callFlags, signature, args);
+            break;
+        case RT_BOOLEAN:
+            result = valueOf(Native.invokeInt(peer, callFlags, signature, args) != 0);
+            break;
+        case RT_BYTE:
+            result = new Byte((byte)Native.invokeInt(peer, callFlags, signature, args));
+            break;
+        case RT_SHORT:
+            result = new Short((short)Native.invokeInt(peer, callFlags, signature, args));
+            break;
+        case RT_CHAR:
+            result = new Character((char)Native.invokeInt(peer, callFlags, signature, args));
+            break;
+        case RT_INT:
+            result = new Integer(Native.invokeInt(peer, callFlags, signature, args));
+            break;
+        case RT_LONG:
+            result = new Long(Native.invokeLong(peer, callFlags, signature, args));
+            break;
+        case RT_FLOAT:
+            result = new Float(Native.invokeFloat(peer, callFlags, signature, args));
+            break;
+        case RT_DOUBLE:
+            result = new Double(Native.invokeDouble(peer, callFlags, signature, args));
+            break;
+        case RT_STRING:
+            result = invokeString(callFlags, signature, args, false);
+            break;
+        case RT_WSTRING: {
+            String s = invokeString(callFlags, signature, args, true);
             if (s != null) {
                 result = new WString(s);
             }
+            break;
         }
-        else if (Pointer.class.isAssignableFrom(returnType)) {
-            return invokePointer(callFlags, args);
+        case RT_POINTER:
+            result = invokePointer(callFlags, signature, args);
+            break;
+        case RT_STRUCTURE_BYVAL: {
+            Structure s = 
+                Native.invokeStructure(peer, callFlags, args,
+                                       Structure.newInstance(returnType));
+            s.autoRead();
+            result = s;
+            break;
         }
-        else if (Structure.class.isAssignableFrom(returnType)) {
-            if (Structure.ByValue.class.isAssignableFrom(returnType)) {
-                Structure s = 
-                    Native.invokeStructure(peer, callFlags, args,
-                                           Structure.newInstance(returnType));
+        case RT_STRUCTURE:
+            result = invokePointer(callFlags, signature, args);
+            if (result != null) {
+                Structure s = Structure.newInstance(returnType);
+                s.useMemory((Pointer)result);
                 s.autoRead();
                 result = s;
             }
-            else {
-                result = invokePointer(callFlags, args);
-                if (result != null) {
-                    Structure s = Structure.newInstance(returnType);
-                    s.useMemory((Pointer)result);
-                    s.autoRead();
-                    result = s;
-                }
-            }
-        }
-        else if (Callback.class.isAssignableFrom(returnType)) {
-            result = invokePointer(callFlags, args);
+            break;
+        case RT_CALLBACK:
+            result = invokePointer(callFlags, signature, args);
             if (result != null) {
                 result = CallbackReference.getCallback(returnType, (Pointer)result);
             }
-        }
-        else if (returnType==String[].class) {
-            Pointer p = invokePointer(callFlags, args);
+            break;
+        case RT_STRING_ARRAY: {
+            Pointer p = invokePointer(callFlags, signature, args);
             if (p != null) {
                 result = p.getStringArray(0);
             }
+            break;
         }
-        else if (returnType==WString[].class) {
-            Pointer p = invokePointer(callFlags, args);
+        case RT_WSTRING_ARRAY: {
+            Pointer p = invokePointer(callFlags, signature, args);
             if (p != null) {
                 String[] arr = p.getStringArray(0, true);
                 WString[] warr = new WString[arr.length];
@@ -404,14 +764,21 @@ public class Function extends Pointer {
                 }
                 result = warr;
             }
+            break;
         }
-        else if (returnType==Pointer[].class) {
-            Pointer p = invokePointer(callFlags, args);
+        case RT_POINTER_ARRAY: {
+            Pointer p = invokePointer(callFlags, signature, args);
             if (p != null) {
                 result = p.getPointerArray(0);
             }
+            break;
         }
-        else if (allowObjects) {
+        default:
+            if (!allowObjects) {
+                throw new IllegalArgumentException("Unsupported return type "
+                                                   + returnType
+                                                   + " in function " + getName());
+            }
             result = Native.invokeObject(peer, callFlags, args);
             if (result != null
                 && !returnType.isAssignableFrom(result.getClass())) {
@@ -419,17 +786,13 @@ public class Function extends Pointer {
                                              + " does not match result "
                                              + result.getClass());
             }
-        }
-        else {
-            throw new IllegalArgumentException("Unsupported return type "
-                                               + returnType
-                                               + " in function " + getName());
+            break;
         }
         return result;
     }
     
-    private Pointer invokePointer(int callFlags, Object[] args) {
-        long ptr = Native.invokePointer(peer, callFlags, args);
+    private Pointer invokePointer(int callFlags, int signature, Object[] args) {
+        long ptr = Native.invokePointer(peer, callFlags, signature, args);
         return ptr == 0 ? null : new Pointer(ptr);
     }
 
@@ -457,6 +820,15 @@ public class Function extends Pointer {
                 arg = converter.toNative(arg, context);
             }
         }
+        return toNativeArgument(arg, index, invokingMethod, allowObjects);
+    }
+
+    /** Convert an argument of a type supported by JNA into the form
+     * expected by native dispatch.
+     */
+    private Object toNativeArgument(Object arg, int index,
+                                    Method invokingMethod,
+                                    boolean allowObjects) {
         if (arg == null || isPrimitiveArray(arg.getClass())) { 
             return arg;
         }
@@ -500,11 +872,11 @@ public class Function extends Pointer {
         // this method returns.  
         // Convert String to native pointer (const)
         else if (arg instanceof String) {
-            return new NativeString((String)arg, false).getPointer();
+            return ScratchArena.get().newString((String)arg, false);
         }
         // Convert WString to native pointer (const)
         else if (arg instanceof WString) {
-            return new NativeString(arg.toString(), true).getPointer();
+            return ScratchArena.get().newString(arg.toString(), true);
         }
         // Default conversion of boolean to int; if you want something
         // different, use a ToNativeConverter
@@ -512,10 +884,10 @@ public class Function extends Pointer {
             return Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
         }
         else if (String[].class == argClass) {
-            return new StringArray((String[])arg);
+            return new StringArrayArgument((String[])arg, false);
         }
         else if (WString[].class == argClass) {
-            return new StringArray((WString[])arg);
+            return new StringArrayArgument((WString[])arg, true);
         }
         else if (Pointer[].class == argClass) {
             return new PointerArray((Pointer[])arg);
@@ -563,6 +935,39 @@ public class Function extends Pointer {
         return arg;
     }
 
+    /** Sync the given argument with any native memory which might have been
+     * modified by the native call.
+     * @param inArg original argument
+     * @param arg argument as converted for the native call
+     */
+    private static void readArgument(Object inArg, Object arg) {
+        if (inArg == null) {
+            return;
+        }
+        if (inArg instanceof Structure) {
+            if (!(inArg instanceof Structure.ByValue)) {
+                ((Structure)inArg).autoRead();
+            }
+        }
+        else if (arg instanceof PostCallRead) {
+            ((PostCallRead)arg).read();
+            if (arg instanceof PointerArray) {
+                PointerArray array = (PointerArray)arg;
+                if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
+                    Class type = inArg.getClass().getComponentType();
+                    Structure[] ss = (Structure[])inArg;
+                    for (int si=0;si < ss.length;si++) {
+                        Pointer p = array.getPointer(Pointer.SIZE * si);
+                        ss[si] = Structure.updateStructureByReference(type, ss[si], p);
+                    }
+                }
+            }
+        }
+        else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
+            Structure.autoRead((Structure[])inArg);
+        }
+    }
+
     private boolean isPrimitiveArray(Class argClass) {
         return argClass.isArray() 
             && argClass.getComponentType().isPrimitive();
@@ -583,14 +988,15 @@ public class Function extends Pointer {
      * Call the native function being represented by this object
      *
      * @param   callFlags calling convention to be used
+     * @param   signature primitive argument signature, or -1
      * @param	args
      *			Arguments to pass to the native function
      * @param   wide whether the native string uses <code>wchar_t</code>;
      * if false, <code>char</code> is assumed
      * @return	The value returned by the target native function, as a String
      */
-    private String invokeString(int callFlags, Object[] args, boolean wide) {
-        Pointer ptr = invokePointer(callFlags, args);
+    private String invokeString(int callFlags, int signature, Object[] args, boolean wide) {
+        Pointer ptr = invokePointer(callFlags, signature, args);
         String s = null;
         if (ptr != null) {
             if (wide)
@@ -716,16 +1122,27 @@ public class Function extends Pointer {
         return inArgs;
     }
 
-    /** Varargs are only supported on 1.5+. */
-    static boolean isVarArgs(Method m) {
+    private static final Method IS_VARARGS;
+    static {
+        Method isVarArgs = null;
         try {
-            Method v = m.getClass().getMethod("isVarArgs", new Class[0]);
-            return Boolean.TRUE.equals(v.invoke(m, new Object[0]));
+            isVarArgs = Method.class.getMethod("isVarArgs", new Class[0]);
         }
         catch (SecurityException e) {
         }
         catch (NoSuchMethodException e) {
         }
+        IS_VARARGS = isVarArgs;
+    }
+
+    /** Varargs are only supported on 1.5+. */
+    static boolean isVarArgs(Method m) {
+        if (IS_VARARGS == null) {
+            return false;
+        }
+        try {
+            return Boolean.TRUE.equals(IS_VARARGS.invoke(m, new Object[0]));
+        }
         catch (IllegalArgumentException e) {
         }
         catch (IllegalAccessException e) {
@@ -735,6 +1152,24 @@ public class Function extends Pointer {
         return false;
     }
     
+    /** Whether the given function's class overrides
+     * {@link #invoke(Class,Object[],Map)}, in which case calls must go
+     * through that method rather than a {@link ConversionPlan}.
+     */
+    static boolean isInvokeOverridden(Function f) {
+        Class cls = f.getClass();
+        if (cls == Function.class) {
+            return false;
+        }
+        try {
+            Method m = cls.getMethod("invoke", new Class[] { Class.class, Object[].class, Map.class });
+            return m.getDeclaringClass() != Function.class;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
     private static class NativeMappedArray extends Memory implements PostCallRead {
         private final NativeMapped[] original;
         public NativeMappedArray(NativeMapped[] arg) {
@@ -747,11 +1182,20 @@ public class Function extends Pointer {
         }
     }
 
-    private static class PointerArray extends Memory implements PostCallRead {
+    /** NULL-terminated native array of pointers, valid until the call
+     * returns.
+     */
+    private static class PointerArray extends Pointer implements PostCallRead {
         private final Pointer[] original;
+        // Keep the native memory reachable
+        private final Pointer memory;
         public PointerArray(Pointer[] arg) {
-            super(Pointer.SIZE * (arg.length+1));
+            this(arg, ScratchArena.get().allocate(Pointer.SIZE * (arg.length+1)));
+        }
+        private PointerArray(Pointer[] arg, Pointer memory) {
+            super(memory.peer);
             this.original = arg;
+            this.memory = memory;
             for (int i=0;i < arg.length;i++) {
                 setPointer(i*Pointer.SIZE, arg[i]);
             }
@@ -761,6 +1205,51 @@ public class Function extends Pointer {
             read(0, original, 0, original.length);
         }
     }
+
+    /** NULL-terminated native array of strings, valid until the call
+     * returns.  Like {@link StringArray}, updates the original array after
+     * the call.
+     */
+    private static class StringArrayArgument extends Pointer implements PostCallRead {
+        private final Object[] original;
+        private final boolean wide;
+        // Keep the native memory reachable
+        private final Pointer memory;
+        private final Pointer[] strings;
+        public StringArrayArgument(Object[] arg, boolean wide) {
+            this(arg, wide, ScratchArena.get());
+        }
+        private StringArrayArgument(Object[] arg, boolean wide, ScratchArena arena) {
+            this(arg, wide, arena, arena.allocate(Pointer.SIZE * (arg.length+1)));
+        }
+        private StringArrayArgument(Object[] arg, boolean wide,
+                                    ScratchArena arena, Pointer memory) {
+            super(memory.peer);
+            this.original = arg;
+            this.wide = wide;
+            this.memory = memory;
+            this.strings = new Pointer[arg.length];
+            for (int i=0;i < arg.length;i++) {
+                if (arg[i] != null) {
+                    strings[i] = arena.newString(arg[i].toString(), wide);
+                }
+                setPointer(i*Pointer.SIZE, strings[i]);
+            }
+            setPointer(Pointer.SIZE*arg.length, null);
+        }
+        public void read() {
+            boolean returnWide = original instanceof WString[];
+            for (int i=0;i < original.length;i++) {
+                Pointer p = getPointer(i * Pointer.SIZE);
+                Object s = null;
+                if (p != null) {
+                    s = p.getString(0, wide);
+                    if (returnWide) s = new WString((String)s);
+                }
+                original[i] = s;
+            }
+        }
+    }
     
     /** Implementation of Boolean.valueOf for older VMs. */
     static Boolean valueOf(boolean b) {
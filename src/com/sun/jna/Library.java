@@ -15,7 +15,6 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /** Derive from this interface for all native library definitions.
  *
@@ -83,6 +82,28 @@ public interface Library {
     String OPTION_CALLING_CONVENTION = "calling-convention";
     /** Flags to use when opening the native library (see {@link Native#open(String,int)}) */
     String OPTION_OPEN_FLAGS = "open-flags";
+    /** Option key for a boolean flag to implement the library interface with
+        a generated class instead of a {@link java.lang.reflect.Proxy}.
+        Methods of the generated class are bound using direct mapping
+        (see {@link Native#register(Class,NativeLibrary)}), avoiding
+        reflection and argument boxing.  Methods which direct mapping can't
+        support (varargs, arrays of non-primitives, primitive wrapper types
+        or methods handled by an {@link InvocationMapper}, for example) are
+        still dispatched through the usual invocation handler.
+        <p>
+        The interface must be public; if it is not, or the class can't be
+        generated, a proxy is used.  The result is not a proxy, so it may not
+        be passed to {@link Native#synchronizedLibrary}.
+    */
+    String OPTION_DIRECT_MAPPING = "direct-mapping";
+    /** Option key for a boolean flag to look up the function bound to each
+        direct-mapped method (see {@link Native#register(Class,NativeLibrary)})
+        when the method is first invoked, rather than when the class is
+        registered.  A missing function then throws
+        {@link UnsatisfiedLinkError} only from calls to its method, so that
+        optional functions may be declared alongside the others.
+    */
+    String OPTION_LAZY_BINDING = "lazy-binding";
 
     static class Handler implements InvocationHandler {
         
@@ -121,7 +142,8 @@ public interface Library {
         private final Map options;
         private FunctionMapper functionMapper;
         private final InvocationMapper invocationMapper;
-        private final Map functions = new WeakHashMap();
+        // Copy-on-write map of Method to FunctionInfo; read without locking
+        private volatile Map functions = new HashMap();
         public Handler(String libname, Class interfaceClass, Map options) {
 
             if (libname != null && "".equals(libname.trim())) {
@@ -159,12 +181,28 @@ public interface Library {
         public Class getInterfaceClass() {
             return interfaceClass;
         }
+
+        InvocationMapper getInvocationMapper() {
+            return invocationMapper;
+        }
+
+        /** Returns the name of the native function for the given method. */
+        String getFunctionName(Method method) {
+            String methodName = 
+                functionMapper.getFunctionName(nativeLibrary, method);
+            if (methodName == null) {
+                // Just in case the function mapper screwed up
+                methodName = method.getName();
+            }
+            return methodName;
+        }
         
         private static class FunctionInfo {
             InvocationHandler handler;
             Function function;
-            boolean isVarArgs;
+            Function.ConversionPlan plan;
             Map options;
+            boolean isVarArgs;
         }
 
         public Object invoke(Object proxy, Method method, Object[] inArgs)
@@ -185,29 +223,9 @@ public interface Library {
                 return Boolean.FALSE;
             }
             
-            FunctionInfo f = null;
-            synchronized(functions) {
-                f = (FunctionInfo)functions.get(method);
-                if (f == null) {
-                    f = new FunctionInfo();
-                    f.isVarArgs = Function.isVarArgs(method);
-                    if (invocationMapper != null) {
-                        f.handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
-                    }
-                    if (f.handler == null) {
-                        // Find the function to invoke
-                        String methodName = 
-                            functionMapper.getFunctionName(nativeLibrary, method);
-                        if (methodName == null) {
-                            // Just in case the function mapper screwed up
-                            methodName = method.getName();
-                        }
-                        f.function = nativeLibrary.getFunction(methodName, method);
-                        f.options = new HashMap(this.options);
-                        f.options.put(Function.OPTION_INVOKING_METHOD, method);
-                    }
-                    functions.put(method, f);
-                }
+            FunctionInfo f = (FunctionInfo)functions.get(method);
+            if (f == null) {
+                f = getFunctionInfo(method);
             }
             if (f.isVarArgs) {
                 inArgs = Function.concatenateVarArgs(inArgs);
@@ -215,7 +233,40 @@ public interface Library {
             if (f.handler != null) {
                 return f.handler.invoke(proxy, method, inArgs);
             }
+            if (f.plan != null) {
+                return f.function.invoke(f.plan, inArgs);
+            }
             return f.function.invoke(method.getReturnType(), inArgs, f.options);
         }
+
+        /** Look up or create the {@link FunctionInfo} for the given method.
+         * Lookups after the first for a given method are made by
+         * {@link #invoke} without locking.
+         */
+        private synchronized FunctionInfo getFunctionInfo(Method method) {
+            FunctionInfo f = (FunctionInfo)functions.get(method);
+            if (f == null) {
+                f = new FunctionInfo();
+                f.isVarArgs = Function.isVarArgs(method);
+                if (invocationMapper != null) {
+                    f.handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
+                }
+                if (f.handler == null) {
+                    // Find the function to invoke
+                    f.function = nativeLibrary.getFunction(getFunctionName(method), method);
+                    if (Function.isInvokeOverridden(f.function)) {
+                        f.options = new HashMap(options);
+                        f.options.put(Function.OPTION_INVOKING_METHOD, method);
+                    }
+                    else {
+                        f.plan = new Function.ConversionPlan(method, options);
+                    }
+                }
+                Map map = new HashMap(functions);
+                map.put(method, f);
+                functions = map;
+            }
+            return f;
+        }
     }
 }
@@ -0,0 +1,159 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.File;
+import java.io.IOException;
+
+/** {@link Memory} backed by a region of a file mapped into the address
+ * space with <code>mmap</code> (or <code>MapViewOfFile</code> on Windows).
+ * Unlike {@link java.nio.MappedByteBuffer}, the region is addressed with
+ * <code>long</code> offsets and may exceed 2GB where the platform allows,
+ * so a {@link Structure} or array of structures may be laid directly over
+ * a large file:
+ * <pre><code>
+ * MappedMemory m = new MappedMemory(file, true);
+ * Record r = new Record(m.share(index * recordSize));
+ * </code></pre>
+ * Accesses are bounds-checked as for any other {@link Memory}.  The
+ * mapping is released when this object is no longer referenced, or
+ * immediately by {@link #close}, after which any views obtained from
+ * {@link #share} become invalid.  Writing to a read-only mapping, or
+ * accessing a region of the file which has been truncated, causes a memory
+ * fault.<p>
+ * Modifications made through a writable mapping are shared with the file
+ * and with other mappings of it; use {@link #sync} to write them to
+ * storage.
+ */
+public class MappedMemory extends Memory {
+
+    /** No particular access pattern is expected. */
+    public static final int ADVICE_NORMAL = Native.MAP_ADVICE_NORMAL;
+    /** Pages will be accessed in random order. */
+    public static final int ADVICE_RANDOM = Native.MAP_ADVICE_RANDOM;
+    /** Pages will be accessed in order, and may be read ahead. */
+    public static final int ADVICE_SEQUENTIAL = Native.MAP_ADVICE_SEQUENTIAL;
+    /** Pages will be accessed soon, and may be read ahead. */
+    public static final int ADVICE_WILLNEED = Native.MAP_ADVICE_WILLNEED;
+    /** Pages will not be accessed soon. */
+    public static final int ADVICE_DONTNEED = Native.MAP_ADVICE_DONTNEED;
+
+    /** Unmaps the region once its owning object is unreachable or
+     * closed.
+     */
+    private static class Mapping extends Allocation {
+        private final long length;
+        Mapping(Memory m, long peer, long length) {
+            super(m, peer, length, -1);
+            this.length = length;
+        }
+        protected void release(long peer, boolean reclaimed) {
+            Native.unmapFile(peer, length);
+        }
+    }
+
+    private final File file;
+    private final long offset;
+    private final boolean writable;
+
+    /** Map the entire contents of the given file for reading. */
+    public MappedMemory(File file) throws IOException {
+        this(file, false);
+    }
+
+    /** Map the entire contents of the given file. */
+    public MappedMemory(File file, boolean writable) throws IOException {
+        this(file, 0, file.length(), writable);
+    }
+
+    /** Map <code>length</code> bytes of the given file, starting at
+     * <code>offset</code>, which need not be aligned to a page boundary.
+     * @throws IllegalArgumentException if the region is empty or extends
+     * beyond the end of the file.
+     * @throws IOException if the file can not be opened or mapped.
+     */
+    public MappedMemory(File file, long offset, long length, boolean writable) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid file offset: " + offset);
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("Mapped length must be greater than zero");
+        }
+        if (offset + length > file.length()) {
+            throw new IllegalArgumentException("Mapped region " + offset + "+" + length
+                                               + " exceeds the length of " + file);
+        }
+        this.file = file;
+        this.offset = offset;
+        this.writable = writable;
+        this.size = length;
+        this.peer = Native.mapFile(file.getAbsolutePath(), offset, length, writable);
+        this.allocation = new Mapping(this, peer, length);
+    }
+
+    /** Returns the mapped file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the offset within the file of the start of this mapping. */
+    public long getOffset() {
+        return offset;
+    }
+
+    /** Returns whether this mapping may be modified. */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    private void checkMapped() {
+        if (peer == 0) {
+            throw new IllegalStateException("Mapping has been closed");
+        }
+    }
+
+    /** Write any modifications to storage, waiting for completion. */
+    public void sync() throws IOException {
+        sync(0, size, false);
+    }
+
+    /** Write any modifications to the given range to storage.  If
+     * <code>async</code> is true, the write is scheduled and this method
+     * returns without waiting for it to complete.
+     */
+    public void sync(long off, long length, boolean async) throws IOException {
+        boundsCheck(off, length);
+        checkMapped();
+        Native.syncMappedFile(peer + off, length, async);
+    }
+
+    /** Advise the system how the entire mapping will be accessed.
+     * @param advice one of the <code>ADVICE_</code> constants
+     */
+    public void advise(int advice) {
+        advise(0, size, advice);
+    }
+
+    /** Advise the system how the given range will be accessed.  The advice
+     * is only a hint, and is ignored where unsupported.
+     * @param advice one of the <code>ADVICE_</code> constants
+     */
+    public void advise(long off, long length, int advice) {
+        boundsCheck(off, length);
+        checkMapped();
+        Native.adviseMappedFile(peer + off, length, advice);
+    }
+
+    public String toString() {
+        return "mapped@0x" + Long.toHexString(peer) + " (" + size + " bytes of "
+            + file + " at " + offset + (writable ? ", writable)" : ")");
+    }
+}
@@ -10,10 +10,14 @@
  */
 package com.sun.jna;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 /**
@@ -29,8 +33,14 @@ import java.util.WeakHashMap;
  *		free(buf);
  * </pre>
  *
- * <p>The {@link #finalize} method will free allocated memory when
- * this object is no longer referenced.
+ * <p>Allocated memory is freed when this object is no longer referenced,
+ * by a reclaimer thread which tracks each allocation with a
+ * {@link PhantomReference}.  Call {@link #close()} to free the memory
+ * immediately.  A subclass which overrides {@link #dispose} has it called
+ * when no longer referenced, as it would be by <code>finalize</code>.
+ *
+ * <p>Small allocations may instead be served from a {@link MemoryPool},
+ * if enabled.
  *
  * @author Sheng Liang, originator
  * @author Todd Fast, suitability modifications
@@ -52,9 +62,218 @@ public class Memory extends Pointer {
     */
     public static void purge() {
         buffers.size();
+        Allocation.drain();
+    }
+
+    /** Returns the number of bytes currently allocated by
+     * <code>Memory</code> objects which have not yet been freed.
+     */
+    public static long getOutstandingBytes() {
+        return Allocation.getOutstandingBytes();
+    }
+
+    /** Returns the number of <code>Memory</code> allocations which have not
+     * yet been freed.
+     */
+    public static long getOutstandingAllocations() {
+        return Allocation.getOutstandingAllocations();
     }
 
     protected long size; // Size of the malloc'ed space
+    // Frees the memory once this object is unreachable
+    Allocation allocation;
+    // Set only for subclasses which override dispose()
+    private DisposeGuardian guardian;
+
+    /** Tracks a block of native memory, freeing it once its owning
+     * {@link Memory} is no longer reachable or is explicitly closed.
+     */
+    static class Allocation extends PhantomReference {
+        private static final ReferenceQueue queue = new ReferenceQueue();
+        // Allocations are spread across stripes, each with its own lock, so
+        // that threads allocating and freeing concurrently rarely contend
+        private static final Stripe[] stripes = new Stripe[16];
+        static {
+            for (int i=0;i < stripes.length;i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        private static class Stripe {
+            // Keep the references themselves reachable until freed
+            final Set allocations = new HashSet();
+            long bytes;
+            long count;
+        }
+
+        // Runs only while allocations are outstanding, so that it doesn't
+        // prevent JNA classes from being unloaded
+        private static volatile Thread reclaimer;
+
+        private static synchronized void startReclaimer() {
+            if (reclaimer != null) {
+                return;
+            }
+            reclaimer = new Thread("JNA Memory Reclaimer") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Allocation a = (Allocation)queue.remove(1000);
+                            if (a != null) {
+                                a.free(true);
+                            }
+                            else if (!keepReclaiming(this)) {
+                                return;
+                            }
+                        }
+                        catch(InterruptedException e) {
+                        }
+                    }
+                }
+            };
+            reclaimer.setDaemon(true);
+            reclaimer.start();
+        }
+
+        /** Returns whether the given idle reclaimer thread should keep
+         * running, or stops it if no allocations remain.
+         */
+        private static synchronized boolean keepReclaiming(Thread thread) {
+            // Cleared before counting, so that an allocation the count
+            // misses will find no reclaimer and start another
+            reclaimer = null;
+            if (getOutstandingAllocations() == 0) {
+                return false;
+            }
+            reclaimer = thread;
+            return true;
+        }
+
+        private long peer;
+        private final long size;
+        // MemoryPool size class, or -1 if allocated with malloc
+        private final int sizeClass;
+        private final Stripe stripe;
+
+        Allocation(Memory m, long peer, long size, int sizeClass) {
+            super(m, queue);
+            this.peer = peer;
+            this.size = size;
+            this.sizeClass = sizeClass;
+            stripe = stripes[System.identityHashCode(this) & (stripes.length - 1)];
+            synchronized(stripe) {
+                stripe.allocations.add(this);
+                stripe.bytes += size;
+                ++stripe.count;
+            }
+            if (reclaimer == null) {
+                startReclaimer();
+            }
+        }
+
+        /** Free the memory, if not already freed.  Pooled memory freed by
+         * the reclaimer thread is returned to the pool's shared list.
+         */
+        void free(boolean reclaimed) {
+            synchronized(this) {
+                if (peer == 0) {
+                    return;
+                }
+                release(peer, reclaimed);
+                peer = 0;
+            }
+            clear();
+            synchronized(stripe) {
+                stripe.allocations.remove(this);
+                stripe.bytes -= size;
+                --stripe.count;
+            }
+        }
+
+        /** Return the memory to the system or the pool it came from. */
+        protected void release(long peer, boolean reclaimed) {
+            if (sizeClass >= 0) {
+                MemoryPool.release(peer, sizeClass, reclaimed);
+            }
+            else {
+                Memory.free(peer);
+            }
+        }
+
+        /** Free any unreachable memory without waiting for the reclaimer
+         * thread.
+         */
+        static void drain() {
+            Allocation a;
+            while ((a = (Allocation)queue.poll()) != null) {
+                a.free(false);
+            }
+        }
+
+        static long getOutstandingBytes() {
+            long total = 0;
+            for (int i=0;i < stripes.length;i++) {
+                synchronized(stripes[i]) {
+                    total += stripes[i].bytes;
+                }
+            }
+            return total;
+        }
+
+        static long getOutstandingAllocations() {
+            long total = 0;
+            for (int i=0;i < stripes.length;i++) {
+                synchronized(stripes[i]) {
+                    total += stripes[i].count;
+                }
+            }
+            return total;
+        }
+    }
+
+    /** Calls {@link #dispose} on a subclass which overrides it once the
+     * subclass instance is no longer referenced, as <code>finalize</code>
+     * once did.  Only such subclasses pay the cost of finalization.
+     */
+    private static class DisposeGuardian {
+        private final Memory memory;
+        DisposeGuardian(Memory memory) {
+            this.memory = memory;
+        }
+        protected void finalize() {
+            memory.dispose();
+        }
+    }
+
+    // Class to Boolean, whether the class overrides dispose()
+    private static final Map disposeOverrides = new WeakHashMap();
+
+    /** Returns whether the given class overrides {@link #dispose}.
+     * {@link StringArray} is excluded, since its override only frees other
+     * <code>Memory</code>, which is reclaimed independently.
+     */
+    private static boolean overridesDispose(Class cls) {
+        synchronized(disposeOverrides) {
+            Boolean overrides = (Boolean)disposeOverrides.get(cls);
+            if (overrides == null) {
+                overrides = Boolean.FALSE;
+                for (Class c=cls;c != Memory.class;c=c.getSuperclass()) {
+                    if (c == StringArray.class) {
+                        continue;
+                    }
+                    try {
+                        c.getDeclaredMethod("dispose", new Class[0]);
+                        overrides = Boolean.TRUE;
+                        break;
+                    }
+                    catch(NoSuchMethodException e) {
+                    }
+                }
+                disposeOverrides.put(cls, overrides);
+            }
+            return overrides.booleanValue();
+        }
+    }
 
     /** Provide a view into the original memory.  Keeps an implicit reference
      * to the original to prevent GC.
@@ -78,7 +297,9 @@ public class Memory extends Pointer {
     }
     
     /**
-     * Allocate space in the native heap via a call to C's <code>malloc</code>.
+     * Allocate space in the native heap via a call to C's <code>malloc</code>,
+     * or from the {@link MemoryPool} if it is enabled and the size is small
+     * enough.
      *
      * @param size number of <em>bytes</em> of space to allocate
      */
@@ -87,9 +308,16 @@ public class Memory extends Pointer {
         if (size <= 0) {
             throw new IllegalArgumentException("Allocation size must be greater than zero");
         } 
-        peer = malloc(size);
+        // Free unreachable memory promptly when allocating
+        Allocation.drain();
+        int sizeClass = MemoryPool.getSizeClass(size);
+        peer = sizeClass >= 0 ? MemoryPool.allocate(sizeClass) : malloc(size);
         if (peer == 0) 
             throw new OutOfMemoryError("Cannot allocate " + size + " bytes");
+        allocation = new Allocation(this, peer, size, sizeClass);
+        if (getClass() != Memory.class && overridesDispose(getClass())) {
+            guardian = new DisposeGuardian(this);
+        }
     }
 
     protected Memory() { }
@@ -146,14 +374,28 @@ public class Memory extends Pointer {
         throw new IllegalArgumentException("Byte boundary must be a power of two");
     }
 
-    /** Properly dispose of native memory when this object is GC'd. */
+    /** Retained so that subclasses calling <code>super.finalize()</code>
+     * still compile.  Native memory is freed by the reclaimer instead.
+     */
     protected void finalize() {
+    }
+
+    /** Free the native memory immediately, rather than when this object
+     * is no longer referenced.  Any views obtained from {@link #share} become
+     * invalid.  Has no effect if the memory has already been freed.
+     */
+    public void close() {
         dispose();
     }
 
     /** Free the native memory and set peer to zero */
     protected void dispose() {
-        free(peer);
+        if (allocation != null) {
+            allocation.free(false);
+        }
+        else if (peer != 0) {
+            free(peer);
+        }
         peer = 0;
     }
 
@@ -557,6 +799,15 @@ public class Memory extends Pointer {
         return super.getString(offset, wide);
     }
 
+    /** Copy native memory to a Java String, as in
+     * {@link Pointer#getString(long)}, checking that the string starts
+     * within bounds.
+     */
+    public String getString(long offset) {
+        boundsCheck(offset, 0);
+        return super.getString(offset);
+    }
+
     //////////////////////////////////////////////////////////////////////////
     // Java type write methods
     //////////////////////////////////////////////////////////////////////////
@@ -685,10 +936,22 @@ public class Memory extends Pointer {
         if (wide)
             boundsCheck(offset, (value.length() + 1L) * Native.WCHAR_SIZE);
         else
-            boundsCheck(offset, value.getBytes().length + 1L);
+            boundsCheck(offset, Native.getEncodedLength(value) + 1L);
         super.setString(offset, value, wide);
     }
 
+    /**
+     * Copy string <code>value</code> to the location being pointed to,
+     * using <code>jna.encoding</code> or the default platform encoding.
+     * Checks the boundaries before writing.
+     *
+     * @see Pointer#setString(long,String)
+     */
+    public void setString(long offset, String value) {
+        boundsCheck(offset, Native.getEncodedLength(value) + 1L);
+        super.setString(offset, value);
+    }
+
     public String toString() {
         return "allocated@0x" + Long.toHexString(peer) + " ("
             + size + " bytes)";
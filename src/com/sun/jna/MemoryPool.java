@@ -0,0 +1,377 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Optional pooled allocator for small {@link Memory} objects.  When
+ * enabled, allocations of up to {@link #MAX_SIZE} bytes are rounded up to
+ * a power-of-two size class and served from blocks carved out of larger
+ * native slabs, instead of calling <code>malloc</code> and
+ * <code>free</code> for each one.  Each thread keeps a small cache of free
+ * blocks per size class, so most allocations and explicit
+ * {@link Memory#close closes} take no lock shared by the pool.  Like any
+ * other {@link Memory}, a pooled block is still tracked so that it may be
+ * freed once unreachable, which briefly takes one of several striped locks.
+ * Blocks freed once their {@link Memory} is unreachable, or left in the
+ * cache of a thread which has exited, are returned to a shared free list.<p>
+ * Slabs are retained for reuse and are not returned to the system.  Pooled
+ * memory, like <code>malloc</code>ed memory, is not initialized.<p>
+ * Enable the pool with {@link #setEnabled} or the system property
+ * <code>jna.memory.pool=true</code>.  Memory allocated from the pool is
+ * returned to it even if the pool is subsequently disabled.
+ */
+public final class MemoryPool {
+
+    /** Smallest size class, in bytes. */
+    public static final int MIN_SIZE = 16;
+    /** Largest pooled allocation, in bytes. */
+    public static final int MAX_SIZE = 512;
+    /** Size of each block of native memory divided into size classes. */
+    static final int SLAB_SIZE = 64 * 1024;
+    /** Maximum number of free blocks a thread keeps per size class. */
+    static final int CACHE_SIZE = 64;
+    /** Number of blocks moved between a thread cache and the shared list. */
+    static final int BATCH_SIZE = CACHE_SIZE / 2;
+
+    private static final int CLASS_COUNT;
+    private static final SizeClass[] classes;
+    // Thread caches, so that blocks left by exited threads may be recovered.
+    // Entries hold their threads strongly, since a cache must be retired
+    // rather than dropped; exited threads are pruned whenever a thread
+    // registers its cache and before each new slab is carved.
+    private static final Map caches = new HashMap();
+    private static volatile boolean enabled = Boolean.getBoolean("jna.memory.pool");
+
+    static {
+        int count = 0;
+        for (int size=MIN_SIZE;size <= MAX_SIZE;size <<= 1) {
+            ++count;
+        }
+        CLASS_COUNT = count;
+        classes = new SizeClass[CLASS_COUNT];
+        for (int i=0;i < CLASS_COUNT;i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    private static final ThreadLocal threadCache = new ThreadLocal() {
+        protected Object initialValue() {
+            Cache cache = new Cache();
+            synchronized(caches) {
+                reclaimExitedThreads();
+                caches.put(Thread.currentThread(), cache);
+            }
+            return cache;
+        }
+    };
+
+    /** Free blocks and counters shared by all threads for one size class. */
+    private static class SizeClass {
+        final int size;
+        long[] free = new long[CACHE_SIZE];
+        int count;
+        long reserved;
+        // Counters folded in from the reclaimer and from exited threads
+        long allocations;
+        long hits;
+        long releases;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        /** Move up to <code>max</code> free blocks into the given array,
+         * carving a new slab if none are free.
+         */
+        synchronized int take(long[] dst, int max) {
+            if (count == 0) {
+                int n = SLAB_SIZE / size;
+                long slab = Native.malloc(SLAB_SIZE);
+                if (slab == 0) {
+                    throw new OutOfMemoryError("Cannot allocate " + SLAB_SIZE + " bytes");
+                }
+                reserved += SLAB_SIZE;
+                ensureCapacity(n);
+                for (int i=n-1;i >= 0;i--) {
+                    free[count++] = slab + (long)i * size;
+                }
+            }
+            int n = Math.min(max, count);
+            count -= n;
+            System.arraycopy(free, count, dst, 0, n);
+            return n;
+        }
+
+        synchronized void put(long[] src, int offset, int n) {
+            ensureCapacity(n);
+            System.arraycopy(src, offset, free, count, n);
+            count += n;
+        }
+
+        synchronized void put(long block) {
+            ensureCapacity(1);
+            free[count++] = block;
+            ++releases;
+        }
+
+        private void ensureCapacity(int n) {
+            if (count + n > free.length) {
+                long[] grown = new long[Math.max(free.length * 2, count + n)];
+                System.arraycopy(free, 0, grown, 0, count);
+                free = grown;
+            }
+        }
+    }
+
+    /** Free blocks and counters belonging to a single thread. */
+    private static class Cache {
+        final long[][] blocks = new long[CLASS_COUNT][CACHE_SIZE];
+        final int[] counts = new int[CLASS_COUNT];
+        final long[] allocations = new long[CLASS_COUNT];
+        final long[] hits = new long[CLASS_COUNT];
+        final long[] releases = new long[CLASS_COUNT];
+
+        long allocate(int cls) {
+            ++allocations[cls];
+            long[] free = blocks[cls];
+            if (counts[cls] > 0) {
+                ++hits[cls];
+                return free[--counts[cls]];
+            }
+            SizeClass sc = classes[cls];
+            int n;
+            synchronized(sc) {
+                n = sc.count;
+            }
+            if (n == 0) {
+                // Recover blocks left by exited threads before carving
+                // another slab
+                reclaimExitedThreads();
+            }
+            counts[cls] = sc.take(free, BATCH_SIZE);
+            return free[--counts[cls]];
+        }
+
+        void release(long block, int cls) {
+            ++releases[cls];
+            long[] free = blocks[cls];
+            if (counts[cls] == CACHE_SIZE) {
+                counts[cls] -= BATCH_SIZE;
+                classes[cls].put(free, counts[cls], BATCH_SIZE);
+            }
+            free[counts[cls]++] = block;
+        }
+
+        /** Return all free blocks and counters to the shared lists. */
+        void retire() {
+            for (int i=0;i < CLASS_COUNT;i++) {
+                SizeClass sc = classes[i];
+                synchronized(sc) {
+                    sc.put(blocks[i], 0, counts[i]);
+                    sc.allocations += allocations[i];
+                    sc.hits += hits[i];
+                    sc.releases += releases[i];
+                }
+                counts[i] = 0;
+            }
+        }
+    }
+
+    private static void reclaimExitedThreads() {
+        synchronized(caches) {
+            for (Iterator i=caches.entrySet().iterator();i.hasNext();) {
+                Map.Entry e = (Map.Entry)i.next();
+                if (!((Thread)e.getKey()).isAlive()) {
+                    ((Cache)e.getValue()).retire();
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private MemoryPool() { }
+
+    /** Enable or disable pooling of subsequent allocations. */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /** Returns whether small allocations are currently pooled. */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the size class for an allocation of the given size, or -1
+     * if it should not be pooled.
+     */
+    static int getSizeClass(long size) {
+        if (!enabled || size > MAX_SIZE) {
+            return -1;
+        }
+        int cls = 0;
+        while ((MIN_SIZE << cls) < size) {
+            ++cls;
+        }
+        return cls;
+    }
+
+    /** Allocate a block from the given size class. */
+    static long allocate(int cls) {
+        return ((Cache)threadCache.get()).allocate(cls);
+    }
+
+    /** Return a block to the pool.  Blocks freed by the memory reclaimer
+     * go directly to the shared list, where any thread may reuse them.
+     */
+    static void release(long block, int cls, boolean shared) {
+        if (shared) {
+            classes[cls].put(block);
+        }
+        else {
+            ((Cache)threadCache.get()).release(block, cls);
+        }
+    }
+
+    /** Returns a snapshot of the pool's usage.  Counts are approximate
+     * while other threads are allocating.
+     */
+    public static Statistics getStatistics() {
+        reclaimExitedThreads();
+        Statistics stats = new Statistics();
+        synchronized(caches) {
+            for (int i=0;i < CLASS_COUNT;i++) {
+                SizeClass sc = classes[i];
+                synchronized(sc) {
+                    stats.reserved[i] = sc.reserved;
+                    stats.allocations[i] = sc.allocations;
+                    stats.hits[i] = sc.hits;
+                    stats.releases[i] = sc.releases;
+                }
+                for (Iterator c=caches.values().iterator();c.hasNext();) {
+                    Cache cache = (Cache)c.next();
+                    stats.allocations[i] += cache.allocations[i];
+                    stats.hits[i] += cache.hits[i];
+                    stats.releases[i] += cache.releases[i];
+                }
+            }
+        }
+        return stats;
+    }
+
+    /** Usage of the pool at a point in time.  A hit is an allocation
+     * satisfied from the allocating thread's cache, without taking a
+     * lock shared by the pool.
+     */
+    public static class Statistics {
+        private final long[] reserved = new long[CLASS_COUNT];
+        private final long[] allocations = new long[CLASS_COUNT];
+        private final long[] hits = new long[CLASS_COUNT];
+        private final long[] releases = new long[CLASS_COUNT];
+
+        private Statistics() { }
+
+        /** Returns the number of size classes. */
+        public int getSizeClassCount() {
+            return CLASS_COUNT;
+        }
+
+        /** Returns the block size of the given size class. */
+        public int getBlockSize(int sizeClass) {
+            return classes[sizeClass].size;
+        }
+
+        /** Returns the number of bytes of native memory obtained for
+         * the given size class.
+         */
+        public long getBytesReserved(int sizeClass) {
+            return reserved[sizeClass];
+        }
+
+        /** Returns the number of bytes of native memory obtained for all
+         * size classes.
+         */
+        public long getBytesReserved() {
+            long total = 0;
+            for (int i=0;i < CLASS_COUNT;i++) {
+                total += getBytesReserved(i);
+            }
+            return total;
+        }
+
+        /** Returns the number of bytes in blocks of the given size class
+         * which are currently allocated.
+         */
+        public long getBytesInUse(int sizeClass) {
+            return (allocations[sizeClass] - releases[sizeClass]) * getBlockSize(sizeClass);
+        }
+
+        /** Returns the number of bytes in all blocks currently allocated. */
+        public long getBytesInUse() {
+            long total = 0;
+            for (int i=0;i < CLASS_COUNT;i++) {
+                total += getBytesInUse(i);
+            }
+            return total;
+        }
+
+        /** Returns the number of allocations made from the given size
+         * class.
+         */
+        public long getAllocationCount(int sizeClass) {
+            return allocations[sizeClass];
+        }
+
+        /** Returns the number of allocations made from the pool. */
+        public long getAllocationCount() {
+            long total = 0;
+            for (int i=0;i < CLASS_COUNT;i++) {
+                total += getAllocationCount(i);
+            }
+            return total;
+        }
+
+        /** Returns the fraction of allocations from the given size class
+         * which were satisfied from a thread cache.
+         */
+        public double getHitRate(int sizeClass) {
+            return allocations[sizeClass] == 0
+                ? 0 : (double)hits[sizeClass] / allocations[sizeClass];
+        }
+
+        /** Returns the fraction of all allocations which were satisfied
+         * from a thread cache.
+         */
+        public double getHitRate() {
+            long total = 0;
+            for (int i=0;i < CLASS_COUNT;i++) {
+                total += hits[i];
+            }
+            long count = getAllocationCount();
+            return count == 0 ? 0 : (double)total / count;
+        }
+
+        public String toString() {
+            StringBuffer buf = new StringBuffer("MemoryPool: ");
+            buf.append(getBytesInUse() + " bytes in use of " + getBytesReserved()
+                       + " reserved, hit rate " + getHitRate());
+            for (int i=0;i < CLASS_COUNT;i++) {
+                buf.append("\n  " + getBlockSize(i) + ": " + getBytesInUse(i)
+                           + " bytes in use of " + getBytesReserved(i)
+                           + ", " + getAllocationCount(i) + " allocations, hit rate "
+                           + getHitRate(i));
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -22,9 +22,11 @@ import java.nio.ByteBuffer;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
@@ -37,6 +39,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -73,7 +77,13 @@ import com.sun.jna.Structure.FFIType;
  * relying on JNA to extract the library  from its own jar file.<p/>
  * To avoid the automatic unpacking (in situations where you want to force a
  * failure if the JNA native library is not properly installed on the system),
- * set the system property <code>jna.nounpack=true</code>.
+ * set the system property <code>jna.nounpack=true</code>.<p/>
+ * Normally the library is extracted anew by each VM, and deleted once loaded.
+ * To extract it once and share it with every VM which uses the same JNA
+ * build, set the system property <code>jna.boot.library.cache</code> to a
+ * directory.  The library is kept in that directory under a name derived
+ * from its checksum, and is extracted again only if the cached copy no longer
+ * matches.  The directory should be writable only by the user.<p/>
  * NOTE: all native functions are provided within this class to ensure that
  * all other JNA-provided classes and objects are GC'd and/or
  * finalized/disposed before this class is disposed and/or removed from
@@ -86,7 +96,7 @@ import com.sun.jna.Structure.FFIType;
  */
 public final class Native {
 
-    private static final String VERSION = "3.5.2-SNAPSHOT";
+    static final String VERSION = "3.5.2-SNAPSHOT";
 // TODO: update *ALL* binaries before activate following code.
 //    private static final String VERSION_NATIVE = "3.5.0";
 
@@ -138,6 +148,9 @@ public final class Native {
         if (Boolean.getBoolean("jna.protected")) {
             setProtected(true);
         }
+        if ("false".equals(System.getProperty("jna.callback.detach"))) {
+            setCallbackThreadDetach(false);
+        }
 //        String version = getNativeVersion();
 //        if (!VERSION_NATIVE.equals(version)) {
 //            String LS = System.getProperty("line.separator");
@@ -369,10 +382,16 @@ public final class Native {
                                      Map options) {
         Library.Handler handler = 
             new Library.Handler(name, interfaceClass, options);
-        ClassLoader loader = interfaceClass.getClassLoader();
-        Library proxy = (Library)
-            Proxy.newProxyInstance(loader, new Class[] {interfaceClass},
-                                   handler);
+        Library proxy = null;
+        if (Boolean.TRUE.equals(options.get(Library.OPTION_DIRECT_MAPPING))) {
+            proxy = (Library)DirectLibraryGenerator.newInstance(interfaceClass, handler);
+        }
+        if (proxy == null) {
+            ClassLoader loader = interfaceClass.getClassLoader();
+            proxy = (Library)
+                Proxy.newProxyInstance(loader, new Class[] {interfaceClass},
+                                       handler);
+        }
         cacheOptions(interfaceClass, options, proxy);
         return proxy;
     }
@@ -539,6 +558,91 @@ public final class Native {
         }
     }
 
+    /** Encoding types which are converted directly by native code and
+        {@link #getEncodedLength(String,int)}, rather than through
+        {@link String#getBytes}.
+     */
+    static final int ENCODING_OTHER = 0;
+    static final int ENCODING_UTF8 = 1;
+    static final int ENCODING_ASCII = 2;
+    static final int ENCODING_LATIN1 = 3;
+    private static final int DEFAULT_ENCODING_TYPE =
+        getCharsetType(System.getProperty("file.encoding"));
+
+    /** Returns the encoding type of the given charset name, or of the
+        platform default encoding if <code>null</code>.
+     */
+    static int getEncodingType(String encoding) {
+        return encoding == null ? DEFAULT_ENCODING_TYPE : getCharsetType(encoding);
+    }
+
+    private static int getCharsetType(String encoding) {
+        if (encoding == null) {
+            return ENCODING_OTHER;
+        }
+        StringBuffer buf = new StringBuffer(encoding.length());
+        for (int i=0;i < encoding.length();i++) {
+            char ch = encoding.charAt(i);
+            if (ch != '-' && ch != '_') {
+                buf.append(Character.toUpperCase(ch));
+            }
+        }
+        String name = buf.toString();
+        if ("UTF8".equals(name)) {
+            return ENCODING_UTF8;
+        }
+        if ("USASCII".equals(name) || "ASCII".equals(name)
+            || "ANSIX3.41968".equals(name)) {
+            return ENCODING_ASCII;
+        }
+        if ("ISO88591".equals(name) || "88591".equals(name)
+            || "LATIN1".equals(name)) {
+            return ENCODING_LATIN1;
+        }
+        return ENCODING_OTHER;
+    }
+
+    /** Returns the number of bytes in the native encoding of the given
+        String, excluding the NUL terminator, using <code>jna.encoding</code>
+        or the default platform encoding if that property is not set.
+     */
+    static int getEncodedLength(String s) {
+        int type = getEncodingType(System.getProperty("jna.encoding"));
+        if (type == ENCODING_OTHER) {
+            return getBytes(s).length;
+        }
+        return getEncodedLength(s, type);
+    }
+
+    /** Returns the number of bytes in the given encoding type of the given
+        String, as written by {@link #encodeString}.  Unmappable characters
+        and unpaired surrogates are each encoded as a single '?', as with
+        {@link String#getBytes}.
+     */
+    static int getEncodedLength(String s, int encodingType) {
+        int len = s.length();
+        int size = 0;
+        for (int i=0;i < len;i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ++size;
+            }
+            else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len
+                     && s.charAt(i+1) >= 0xDC00 && s.charAt(i+1) <= 0xDFFF) {
+                size += encodingType == ENCODING_UTF8 ? 4 : 1;
+                ++i;
+            }
+            else if (encodingType != ENCODING_UTF8
+                     || (c >= 0xD800 && c <= 0xDFFF)) {
+                ++size;
+            }
+            else {
+                size += c < 0x800 ? 2 : 3;
+            }
+        }
+        return size;
+    }
+
     /** Return a byte array corresponding to the given String, using the given
         encoding.
     */
@@ -647,8 +751,6 @@ public final class Native {
      * jar file.
      */
     private static void loadNativeLibrary() {
-        removeTemporaryFiles();
-
         String libName = System.getProperty("jna.boot.library.name", "jnidispatch");
         String bootPath = System.getProperty("jna.boot.library.path");
         if (bootPath != null) {
@@ -750,6 +852,19 @@ public final class Native {
             }
         }
         else {
+            String cacheDir = System.getProperty("jna.boot.library.cache");
+            if (cacheDir != null) {
+                try {
+                    lib = getCachedLibrary(url, resourceName.substring(resourceName.lastIndexOf('/') + 1),
+                                           new File(cacheDir));
+                }
+                catch(IOException e) {
+                    // Fall back to a temporary copy
+                }
+            }
+        }
+        if (lib == null) {
+            removeTemporaryFiles();
             InputStream is = Native.class.getResourceAsStream(resourceName);
             if (is == null) {
                 throw new Error("Can't obtain jnidispatch InputStream");
@@ -764,11 +879,7 @@ public final class Native {
                 lib = File.createTempFile("jna", Platform.isWindows()?".dll":null, dir);
                 lib.deleteOnExit();
                 fos = new FileOutputStream(lib);
-                int count;
-                byte[] buf = new byte[1024];
-                while ((count = is.read(buf, 0, buf.length)) > 0) {
-                    fos.write(buf, 0, count);
-                }
+                copy(is, fos, null);
                 unpacked = true;
             }
             catch(IOException e) {
@@ -792,6 +903,101 @@ public final class Native {
         }
     }
 
+    /** Returns the copy of the given library resource in the given cache
+     * directory, first extracting it if there is none.  The copy is named
+     * after the resource, with the SHA-256 digest of its content inserted
+     * before the extension.  It is written to a temporary file, verified
+     * against the digest and renamed into place, so concurrent VMs never
+     * load a partial or corrupt copy.  Since its name identifies its
+     * content, an existing copy of the right size is used without reading
+     * it again.
+     * @throws IOException if the library can't be extracted
+     */
+    static File getCachedLibrary(URL url, String libname, File dir) throws IOException {
+        MessageDigest digest = getDigest();
+        long size;
+        InputStream is = url.openStream();
+        try {
+            size = copy(is, null, digest);
+        }
+        finally {
+            is.close();
+        }
+        String hash = toHex(digest.digest());
+        int dot = libname.lastIndexOf('.');
+        if (dot == -1) {
+            dot = libname.length();
+        }
+        String name = libname.substring(0, dot) + "-" + hash + libname.substring(dot);
+        File lib = new File(dir, name);
+        if (lib.isFile() && lib.length() == size) {
+            return lib;
+        }
+        dir.mkdirs();
+        File tmp = File.createTempFile(name, ".tmp", dir);
+        try {
+            is = url.openStream();
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                copy(is, os, digest);
+            }
+            finally {
+                is.close();
+                os.close();
+            }
+            if (!hash.equals(toHex(digest.digest()))) {
+                throw new IOException("Checksum mismatch extracting " + url);
+            }
+            // Windows won't rename over an existing file
+            if (!tmp.renameTo(lib)
+                && !(lib.delete() && tmp.renameTo(lib))
+                && !(lib.isFile() && lib.length() == size)) {
+                throw new IOException("Can't rename " + tmp + " to " + lib);
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+        return lib;
+    }
+
+    private static MessageDigest getDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer buf = new StringBuffer(bytes.length * 2);
+        for (int i=0;i < bytes.length;i++) {
+            buf.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            buf.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return buf.toString();
+    }
+
+    /** Copy the given stream to the given output and digest, either of
+     * which may be null, returning the number of bytes copied.
+     */
+    private static long copy(InputStream is, OutputStream os, MessageDigest digest) throws IOException {
+        byte[] buf = new byte[65536];
+        long total = 0;
+        int count;
+        while ((count = is.read(buf, 0, buf.length)) > 0) {
+            if (os != null) {
+                os.write(buf, 0, count);
+            }
+            if (digest != null) {
+                digest.update(buf, 0, count);
+            }
+            total += count;
+        }
+        return total;
+    }
+
     /**
      * Initialize field and method IDs for native methods of this class. 
      * Returns the size of a native pointer.
@@ -799,14 +1005,8 @@ public final class Native {
     private static native int sizeof(int type);
 
     private static native String getNativeVersion();
-    private static native String getAPIChecksum();
+    static native String getAPIChecksum();
 
-    private static final ThreadLocal lastError = new ThreadLocal() {
-        protected synchronized Object initialValue() {
-            return new Integer(0);
-        }
-    };
-    
     /** Retrieve the last error set by the OS.  This corresponds to
      * <code>GetLastError()</code> on Windows, and <code>errno</code> on
      * most other platforms.  The value is preserved per-thread, but whether 
@@ -815,24 +1015,17 @@ public final class Native {
      * <code>false</code>.<p>
      * The preferred method of obtaining the last error result is
      * to declare your mapped method to throw {@link LastErrorException}
-     * instead. 
+     * instead.<p>
+     * The value is kept in native thread-local storage after each native
+     * call, so preserving it requires no additional call into the VM.
      */
-    public static int getLastError() {
-        return ((Integer)lastError.get()).intValue();
-    }
+    public static native int getLastError();
     
     /** Set the OS last error code.  Whether the setting is per-thread
      * or global depends on the underlying OS.
      */
     public static native void setLastError(int code);
 
-    /** Update the last error value (called from native code). */
-    // This has to be called immediately after a native call to ensure that
-    // subsequent VM operations don't overwrite the last error value
-    static void updateLastError(int e) {
-        lastError.set(new Integer(e));
-    }
-
     /**
      * Returns a synchronized (thread-safe) library backed by the specified
      * library.  This wrapping will prevent simultaneous invocations of any
@@ -864,6 +1057,36 @@ public final class Native {
                                                cls.getInterfaces(),
                                                newHandler);
     }
+
+    /**
+     * Returns a synchronized library backed by the specified library, which
+     * serializes only those calls that share a lock group.  Methods may be
+     * assigned to lock groups, given their own lock, left unsynchronized, or
+     * marked as taking their group's lock in shared mode; see
+     * {@link SynchronizedLibrary} for the available options.  With no
+     * options, every call is serialized on a single lock, as by
+     * {@link #synchronizedLibrary(Library)}, though the two methods do not
+     * share locks with each other.
+     * @param library the library to be "wrapped" in a synchronized library.
+     * @param options lock group options, keyed by the
+     * <code>SynchronizedLibrary.OPTION_</code> constants.
+     * @return a synchronized view of the specified library.
+     */
+    public static Library synchronizedLibrary(Library library, Map options) {
+        Class cls = library.getClass();
+        if (!Proxy.isProxyClass(cls)) {
+            throw new IllegalArgumentException("Library must be a proxy class");
+        }
+        InvocationHandler ih = Proxy.getInvocationHandler(library);
+        if (!(ih instanceof Library.Handler)) {
+            throw new IllegalArgumentException("Unrecognized proxy handler: " + ih);
+        }
+        InvocationHandler newHandler =
+            new SynchronizedLibrary(library, (Library.Handler)ih, options);
+        return (Library)Proxy.newProxyInstance(cls.getClassLoader(),
+                                               cls.getInterfaces(),
+                                               newHandler);
+    }
     
     /** If running web start, determine the location of a given native 
      * library.  This value may be used to properly set 
@@ -1117,6 +1340,21 @@ public final class Native {
         CallbackReference.setCallbackThreadInitializer(cb, initializer);
     }
 
+    /** Deliver invocations of the given callback asynchronously through the
+        given queue.  Native callers return immediately, and the callback is
+        invoked later on one of the queue's threads.  This must be set before
+        the callback is first passed to native code; use <code>null</code>
+        to restore synchronous invocation for callbacks not yet passed to
+        native code.
+        @throws IllegalArgumentException if the callback does not return
+        <code>void</code> or has arguments other than primitives and
+        {@link Pointer}
+        @see CallbackQueue
+     */
+    public static void setCallbackQueue(Callback cb, CallbackQueue queue) {
+        CallbackReference.setCallbackQueue(cb, queue);
+    }
+
 
     private static Map registeredClasses = new HashMap();
     private static Map registeredLibraries = new HashMap();
@@ -1155,9 +1393,9 @@ public final class Native {
     }
 
     /** Unregister the native methods for the given class. */
-    private static native void unregister(Class cls, long[] handles);
+    static native void unregister(Class cls, long[] handles);
 
-    private static String getSignature(Class cls) {
+    static String getSignature(Class cls) {
         if (cls.isArray()) {
             return "[" + getSignature(cls.getComponentType());
         }
@@ -1195,6 +1433,10 @@ public final class Native {
 
     /** Indicates whether the callback has an initializer. */
     static final int CB_HAS_INITIALIZER = 1;
+    /** Indicates the callback is queued for asynchronous invocation. */
+    static final int CB_ASYNC = 2;
+    /** Maximum number of arguments to an asynchronous callback. */
+    static final int CB_QUEUE_MAX_ARGS = 8;
 
     private static final int CVT_UNSUPPORTED = -1;
     private static final int CVT_DEFAULT = 0;
@@ -1220,7 +1462,7 @@ public final class Native {
     private static final int CVT_POINTER_TYPE = 20;
     private static final int CVT_TYPE_MAPPER = 21;
 
-    private static int getConversion(Class type, TypeMapper mapper) {
+    static int getConversion(Class type, TypeMapper mapper) {
         if (type == Boolean.class) type = boolean.class;
         else if (type == Byte.class) type = byte.class;
         else if (type == Short.class) type = short.class;
@@ -1286,135 +1528,284 @@ public final class Native {
         return CVT_UNSUPPORTED;
     }
 
+    /** Returns whether the given method can be bound by
+     * {@link #register(Class,Method[],String[],NativeLibrary)} and behave as
+     * it would when invoked through a {@link Library} proxy.
+     */
+    static boolean isDirectMappable(Method method, TypeMapper mapper) {
+        if (Function.isVarArgs(method)
+            || !isDirectMappable(method.getReturnType(), mapper, true)) {
+            return false;
+        }
+        Class[] ptypes = method.getParameterTypes();
+        for (int i=0;i < ptypes.length;i++) {
+            if (!isDirectMappable(ptypes[i], mapper, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDirectMappable(Class type, TypeMapper mapper, boolean isReturn) {
+        switch(getConversion(type, mapper)) {
+        case CVT_UNSUPPORTED:
+        case CVT_ARRAY_BOOLEAN:
+            return false;
+        case CVT_DEFAULT:
+        case CVT_BOOLEAN:
+            // Primitive wrapper types are not converted by direct mapping
+            return type.isPrimitive();
+        case CVT_BUFFER:
+        case CVT_ARRAY_BYTE:
+        case CVT_ARRAY_SHORT:
+        case CVT_ARRAY_CHAR:
+        case CVT_ARRAY_INT:
+        case CVT_ARRAY_LONG:
+        case CVT_ARRAY_FLOAT:
+        case CVT_ARRAY_DOUBLE:
+            return !isReturn;
+        default:
+            return true;
+        }
+    }
+
     /** When called from a class static initializer, maps all native methods
      * found within that class to native libraries via the JNA raw calling
-     * interface.
+     * interface.  Functions are looked up when the class is registered,
+     * unless the library has the {@link Library#OPTION_LAZY_BINDING} option.
      * @param lib library to which functions should be bound
      */
     // TODO: derive options from annotations (per-class or per-method)
     // options: read parameter type mapping (long/native long),
     // method name, library name, call conv
     public static void register(Class cls, NativeLibrary lib) {
+        long[] handles = BindingSnapshot.register(cls, lib);
+        if (handles != null) {
+            registered(cls, lib, handles);
+            return;
+        }
         Method[] methods = cls.getDeclaredMethods();
         List mlist = new ArrayList();
-        TypeMapper mapper = (TypeMapper)
-            lib.getOptions().get(Library.OPTION_TYPE_MAPPER);
 
         for (int i=0;i < methods.length;i++) {
             if ((methods[i].getModifiers() & Modifier.NATIVE) != 0) {
                 mlist.add(methods[i]);
             }
         }
-        long[] handles = new long[mlist.size()];
+        methods = (Method[])mlist.toArray(new Method[mlist.size()]);
+        String[] names = new String[methods.length];
+        FunctionMapper fmapper = (FunctionMapper)lib.getOptions().get(Library.OPTION_FUNCTION_MAPPER);
+        for (int i=0;i < methods.length;i++) {
+            names[i] = methods[i].getName();
+            if (fmapper != null) {
+                names[i] = fmapper.getFunctionName(lib, methods[i]);
+            }
+        }
+        register(cls, methods, names, lib);
+    }
+
+    /** Bind each of the given methods to the correspondingly named function
+     * in the given library.  The methods must be declared <code>native</code>
+     * by the given class, or be equivalent (same name and signature) to
+     * <code>native</code> methods it declares, e.g. interface methods which
+     * the class implements natively.
+     */
+    static void register(Class cls, Method[] methods, String[] names, NativeLibrary lib) {
+        TypeMapper mapper = (TypeMapper)
+            lib.getOptions().get(Library.OPTION_TYPE_MAPPER);
+        long[] handles = new long[methods.length];
         for (int i=0;i < handles.length;i++) {
-            Method method = (Method)mlist.get(i);
-            String sig = "(";
-            Class rclass = method.getReturnType();
-            long rtype, closure_rtype;
-            Class[] ptypes = method.getParameterTypes();
-            long[] atypes = new long[ptypes.length];
-            long[] closure_atypes = new long[ptypes.length];
-            int[] cvt = new int[ptypes.length];
-            ToNativeConverter[] toNative = new ToNativeConverter[ptypes.length];
-            FromNativeConverter fromNative = null;
-            int rcvt = getConversion(rclass, mapper);
-            boolean throwLastError = false;
-            switch (rcvt) {
-            case CVT_UNSUPPORTED:
-                throw new IllegalArgumentException(rclass + " is not a supported return type (in method " + method.getName() + " in " + cls + ")");
-            case CVT_TYPE_MAPPER:
-                fromNative = mapper.getFromNativeConverter(rclass);
-                closure_rtype = FFIType.get(rclass).peer;
-                rtype = FFIType.get(fromNative.nativeType()).peer;
-                break;
-            case CVT_NATIVE_MAPPED:
+            MethodBinding binding = getBinding(cls, methods[i], mapper);
+            handles[i] = registerBinding(cls, binding, lib, names[i]);
+        }
+        registered(cls, lib, handles);
+    }
+
+    /** Conversions and native types with which a direct-mapped method is
+     * registered, independent of the function to which it is bound.
+     */
+    static class MethodBinding {
+        String name;
+        String signature;
+        int rconversion;
+        Class rclass;
+        Class rtype;
+        Class closureRtype;
+        int[] conversions;
+        Class[] argTypes;
+        Class[] closureArgTypes;
+        boolean throwLastError;
+        ToNativeConverter[] toNative;
+        FromNativeConverter fromNative;
+    }
+
+    /** Determine how the given method's arguments and return value are to
+     * be converted.
+     */
+    static MethodBinding getBinding(Class cls, Method method, TypeMapper mapper) {
+        MethodBinding b = new MethodBinding();
+        String sig = "(";
+        Class rclass = method.getReturnType();
+        Class rtype, closure_rtype;
+        Class[] ptypes = method.getParameterTypes();
+        Class[] atypes = new Class[ptypes.length];
+        Class[] closure_atypes = new Class[ptypes.length];
+        int[] cvt = new int[ptypes.length];
+        ToNativeConverter[] toNative = new ToNativeConverter[ptypes.length];
+        FromNativeConverter fromNative = null;
+        int rcvt = getConversion(rclass, mapper);
+        boolean throwLastError = false;
+        switch (rcvt) {
+        case CVT_UNSUPPORTED:
+            throw new IllegalArgumentException(rclass + " is not a supported return type (in method " + method.getName() + " in " + cls + ")");
+        case CVT_TYPE_MAPPER:
+            fromNative = mapper.getFromNativeConverter(rclass);
+            closure_rtype = rclass;
+            rtype = fromNative.nativeType();
+            break;
+        case CVT_NATIVE_MAPPED:
+        case CVT_INTEGER_TYPE:
+        case CVT_POINTER_TYPE:
+            closure_rtype = Pointer.class;
+            rtype = NativeMappedConverter.getInstance(rclass).nativeType();
+            break;
+        case CVT_STRUCTURE:
+            closure_rtype = rtype = Pointer.class;
+            break;
+        case CVT_STRUCTURE_BYVAL:
+            closure_rtype = Pointer.class;
+            rtype = rclass;
+            break;
+        default:
+            closure_rtype = rtype = rclass;
+            break;
+        }
+        for (int t=0;t < ptypes.length;t++) {
+            Class type = ptypes[t];
+            sig += getSignature(type);
+            cvt[t] = getConversion(type, mapper);
+            if (cvt[t] == CVT_UNSUPPORTED) {
+                throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
+            }
+            if (cvt[t] == CVT_NATIVE_MAPPED
+                || cvt[t] == CVT_INTEGER_TYPE) {
+                type = NativeMappedConverter.getInstance(type).nativeType();
+            }
+            else if (cvt[t] == CVT_TYPE_MAPPER) {
+                toNative[t] = mapper.getToNativeConverter(type);
+            }
+            // Determine the type that will be passed to the native
+            // function, as well as the type to be passed
+            // from Java initially
+            switch(cvt[t]) {
+            case CVT_STRUCTURE_BYVAL:
             case CVT_INTEGER_TYPE:
             case CVT_POINTER_TYPE:
-                closure_rtype = FFIType.get(Pointer.class).peer;
-                rtype = FFIType.get(NativeMappedConverter.getInstance(rclass).nativeType()).peer;
+            case CVT_NATIVE_MAPPED:
+                atypes[t] = type;
+                closure_atypes[t] = Pointer.class;
                 break;
-            case CVT_STRUCTURE:
-                closure_rtype = rtype = FFIType.get(Pointer.class).peer;
+            case CVT_TYPE_MAPPER:
+                if (type.isPrimitive())
+                    closure_atypes[t] = type;
+                else
+                    closure_atypes[t] = Pointer.class;
+                atypes[t] = toNative[t].nativeType();
                 break;
-            case CVT_STRUCTURE_BYVAL:
-                closure_rtype = FFIType.get(Pointer.class).peer;
-                rtype = FFIType.get(rclass).peer;
+            case CVT_DEFAULT:
+                closure_atypes[t] = atypes[t] = type;
                 break;
             default:
-                closure_rtype = rtype = FFIType.get(rclass).peer;
+                closure_atypes[t] = atypes[t] = Pointer.class;
                 break;
             }
-            for (int t=0;t < ptypes.length;t++) {
-                Class type = ptypes[t];
-                sig += getSignature(type);
-                cvt[t] = getConversion(type, mapper);
-                if (cvt[t] == CVT_UNSUPPORTED) {
-                    throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
-                }
-                if (cvt[t] == CVT_NATIVE_MAPPED
-                    || cvt[t] == CVT_INTEGER_TYPE) {
-                    type = NativeMappedConverter.getInstance(type).nativeType();
-                }
-                else if (cvt[t] == CVT_TYPE_MAPPER) {
-                    toNative[t] = mapper.getToNativeConverter(type);
-                }
-                // Determine the type that will be passed to the native
-                // function, as well as the type to be passed
-                // from Java initially
-                switch(cvt[t]) {
-                case CVT_STRUCTURE_BYVAL:
-                case CVT_INTEGER_TYPE:
-                case CVT_POINTER_TYPE:
-                case CVT_NATIVE_MAPPED:
-                    atypes[t] = FFIType.get(type).peer;
-                    closure_atypes[t] = FFIType.get(Pointer.class).peer;
-                    break;
-                case CVT_TYPE_MAPPER:
-                    if (type.isPrimitive())
-                        closure_atypes[t] = FFIType.get(type).peer;
-                    else
-                        closure_atypes[t] = FFIType.get(Pointer.class).peer;
-                    atypes[t] = FFIType.get(toNative[t].nativeType()).peer;
-                    break;
-                case CVT_DEFAULT:
-                    closure_atypes[t] = atypes[t] = FFIType.get(type).peer;
-                    break;
-                default:
-                    closure_atypes[t] = atypes[t] = FFIType.get(Pointer.class).peer;
-                    break;
-                }
-            }
-            sig += ")";
-            sig += getSignature(rclass);
-            
-            Class[] etypes = method.getExceptionTypes();
-            for (int e=0;e < etypes.length;e++) {
-                if (LastErrorException.class.isAssignableFrom(etypes[e])) {
-                    throwLastError = true;
-                    break;
-                }
-            }
+        }
+        sig += ")";
+        sig += getSignature(rclass);
 
-            String name = method.getName();
-            FunctionMapper fmapper = (FunctionMapper)lib.getOptions().get(Library.OPTION_FUNCTION_MAPPER);
-            if (fmapper != null) {
-                name = fmapper.getFunctionName(lib, method);
-            }
-            Function f = lib.getFunction(name, method);
-            try {
-                handles[i] = registerMethod(cls, method.getName(),
-                                            sig, cvt,
-                                            closure_atypes, atypes, rcvt,
-                                            closure_rtype, rtype, 
-                                            rclass,
-                                            f.peer, f.getCallingConvention(),
-                                            throwLastError,
-                                            toNative, fromNative);
-            }
-            catch(NoSuchMethodError e) {
-                throw new UnsatisfiedLinkError("No method " + method.getName() + " with signature " + sig + " in " + cls);
+        Class[] etypes = method.getExceptionTypes();
+        for (int e=0;e < etypes.length;e++) {
+            if (LastErrorException.class.isAssignableFrom(etypes[e])) {
+                throwLastError = true;
+                break;
             }
         }
+        b.name = method.getName();
+        b.signature = sig;
+        b.rconversion = rcvt;
+        b.rclass = rclass;
+        b.rtype = rtype;
+        b.closureRtype = closure_rtype;
+        b.conversions = cvt;
+        b.argTypes = atypes;
+        b.closureArgTypes = closure_atypes;
+        b.throwLastError = throwLastError;
+        b.toNative = toNative;
+        b.fromNative = fromNative;
+        return b;
+    }
+
+    /** Looks up a lazily bound function on its first invocation. */
+    static class FunctionResolver {
+        private final NativeLibrary lib;
+        private final String name;
+        private final int flags;
+
+        FunctionResolver(NativeLibrary lib, String name, int flags) {
+            this.lib = lib;
+            this.name = name;
+            this.flags = flags;
+        }
+
+        // Called from native code
+        long resolve() {
+            return lib.getFunction(name, flags).peer;
+        }
+    }
+
+    /** Register a native method with the given binding to the named
+     * function, returning the handle needed to unregister it.  If the
+     * library has the {@link Library#OPTION_LAZY_BINDING} option, the
+     * function is looked up when the method is first invoked.
+     */
+    static long registerBinding(Class cls, MethodBinding b, NativeLibrary lib, String name) {
+        int flags = lib.callFlags;
+        if (b.throwLastError) {
+            flags |= Function.THROW_LAST_ERROR;
+        }
+        long fptr = 0;
+        FunctionResolver resolver = null;
+        if (Boolean.TRUE.equals(lib.getOptions().get(Library.OPTION_LAZY_BINDING))) {
+            resolver = new FunctionResolver(lib, name, flags);
+        }
+        else {
+            fptr = lib.getFunction(name, flags).peer;
+        }
+        long[] atypes = new long[b.argTypes.length];
+        long[] closure_atypes = new long[b.argTypes.length];
+        for (int t=0;t < atypes.length;t++) {
+            atypes[t] = FFIType.get(b.argTypes[t]).peer;
+            closure_atypes[t] = FFIType.get(b.closureArgTypes[t]).peer;
+        }
+        try {
+            return registerMethod(cls, b.name,
+                                  b.signature, b.conversions,
+                                  closure_atypes, atypes, b.rconversion,
+                                  FFIType.get(b.closureRtype).peer,
+                                  FFIType.get(b.rtype).peer,
+                                  b.rclass,
+                                  fptr, flags & Function.MASK_CC,
+                                  b.throwLastError,
+                                  b.toNative, b.fromNative,
+                                  resolver);
+        }
+        catch(NoSuchMethodError e) {
+            throw new UnsatisfiedLinkError("No method " + b.name + " with signature " + b.signature + " in " + cls);
+        }
+    }
+
+    /** Record the registration of the given class's native methods. */
+    static void registered(Class cls, NativeLibrary lib, long[] handles) {
         synchronized(registeredClasses) {
             registeredClasses.put(cls, handles);
             registeredLibraries.put(cls, lib);
@@ -1467,7 +1858,8 @@ public final class Native {
                                               int callingConvention,
                                               boolean throwLastError,
                                               ToNativeConverter[] toNative,
-                                              FromNativeConverter fromNative);
+                                              FromNativeConverter fromNative,
+                                              FunctionResolver resolver);
     
 
     // Called from native code
@@ -1532,6 +1924,42 @@ public final class Native {
     /** Free the given callback trampoline. */
     static synchronized native void freeNativeCallback(long ptr);
 
+    /** Allocate a queue of asynchronous callback events with the given
+        capacity, which must be a power of two.
+     */
+    static native long createCallbackQueue(int capacity);
+
+    /** Free the given callback queue. */
+    static native void freeCallbackQueue(long queue);
+
+    /** Remove up to <code>max</code> events from the given callback queue,
+        copying them into the given buffer, and return the number of events
+        removed.  Each event is an <code>int</code> callback ID followed by
+        {@link #CB_QUEUE_MAX_ARGS} 8-byte argument slots, starting at an
+        8-byte boundary.  Only one thread may drain a given queue at a time.
+     */
+    static native int drainCallbackQueue(long queue, long buffer, int max);
+
+    /** Block for up to <code>timeout</code> milliseconds until an event may
+        be drained from the given callback queue or the queue is closed.
+     */
+    static native void waitCallbackQueue(long queue, int timeout);
+
+    /** Wake all threads waiting on the given callback queue.  Subsequent
+        waits return immediately.
+     */
+    static native void closeCallbackQueue(long queue);
+
+    /** Stop queueing invocations of the given native callback, which is
+        invoked synchronously thereafter.  Returns once no thread is still
+        queueing an invocation, after which the callback no longer refers
+        to its queue.
+     */
+    static native void clearCallbackQueue(long callback);
+
+    /** Returns the number of events dropped because the queue was full. */
+    static native long getCallbackQueueDropped(long queue);
+
     /** Use direct mapping for callback. */
     static final int CB_OPTION_DIRECT = 1;
     /** Return a DLL-resident fucntion pointer. */
@@ -1649,6 +2077,300 @@ public final class Native {
      */
     static native Object invokeObject(long fp, int callFlags, Object[] args);
 
+    /** Maximum number of arguments supported by the primitive invocation
+     * entry points.
+     */
+    static final int MAX_PRIMITIVE_ARGS = 6;
+
+    // Argument type codes for primitive invocation signatures
+    private static final int PT_POINTER = 0;
+    private static final int PT_INT8 = 1;
+    private static final int PT_INT16 = 2;
+    private static final int PT_WCHAR = 3;
+    private static final int PT_INT32 = 4;
+    private static final int PT_INT64 = 5;
+    private static final int PT_FLOAT = 6;
+    private static final int PT_DOUBLE = 7;
+    private static final int PT_BITS = 4;
+    private static final int PT_MASK = 0xF;
+    private static final int PT_SHIFT = 4;
+
+    /** Returns an encoding of the argument count and argument types
+     * suitable for the primitive invocation entry points, or -1 if any
+     * argument requires conversion in native code.  Arguments must already
+     * be converted by {@link Function}, so only <code>null</code>,
+     * {@link Pointer} and primitive wrapper values qualify.
+     */
+    static int getPrimitiveSignature(Object[] args) {
+        if (args.length > MAX_PRIMITIVE_ARGS) {
+            return -1;
+        }
+        int signature = args.length;
+        for (int i=0;i < args.length;i++) {
+            Object arg = args[i];
+            int type;
+            if (arg == null || arg instanceof Pointer) {
+                type = PT_POINTER;
+            }
+            else if (arg instanceof Integer || arg instanceof Boolean) {
+                type = PT_INT32;
+            }
+            else if (arg instanceof Long) {
+                type = PT_INT64;
+            }
+            else if (arg instanceof Double) {
+                type = PT_DOUBLE;
+            }
+            else if (arg instanceof Float) {
+                type = PT_FLOAT;
+            }
+            else if (arg instanceof Byte) {
+                type = PT_INT8;
+            }
+            else if (arg instanceof Short) {
+                type = PT_INT16;
+            }
+            else if (arg instanceof Character) {
+                type = PT_WCHAR;
+            }
+            else {
+                return -1;
+            }
+            signature |= type << (PT_SHIFT + i * PT_BITS);
+        }
+        return signature;
+    }
+
+    /** Returns the primitive invocation signature shared by all calls with
+     * arguments of the given declared types, or -1 if the signature depends
+     * on the argument values.  Only primitive types and {@link Pointer}
+     * qualify; <code>boolean</code> arguments must be converted to
+     * {@link Integer} before the call.
+     */
+    static int getPrimitiveSignature(Class[] types) {
+        if (types.length > MAX_PRIMITIVE_ARGS) {
+            return -1;
+        }
+        int signature = types.length;
+        for (int i=0;i < types.length;i++) {
+            Class cls = types[i];
+            int type;
+            if (cls == Pointer.class) {
+                type = PT_POINTER;
+            }
+            else if (cls == int.class || cls == boolean.class) {
+                type = PT_INT32;
+            }
+            else if (cls == long.class) {
+                type = PT_INT64;
+            }
+            else if (cls == double.class) {
+                type = PT_DOUBLE;
+            }
+            else if (cls == float.class) {
+                type = PT_FLOAT;
+            }
+            else if (cls == byte.class) {
+                type = PT_INT8;
+            }
+            else if (cls == short.class) {
+                type = PT_INT16;
+            }
+            else if (cls == char.class) {
+                type = PT_WCHAR;
+            }
+            else {
+                return -1;
+            }
+            signature |= type << (PT_SHIFT + i * PT_BITS);
+        }
+        return signature;
+    }
+
+    /** Returns the raw bits of the given argument as passed to the
+     * primitive invocation entry points.  The argument must be of the type
+     * recorded for it in the given signature.
+     */
+    private static long getPrimitiveValue(Object[] args, int index, int signature) {
+        if (index >= (signature & PT_MASK)) {
+            return 0;
+        }
+        Object arg = args[index];
+        switch((signature >> (PT_SHIFT + index * PT_BITS)) & PT_MASK) {
+        case PT_POINTER:
+            return arg == null ? 0 : ((Pointer)arg).peer;
+        case PT_INT32:
+            if (arg instanceof Boolean) {
+                return ((Boolean)arg).booleanValue() ? 1 : 0;
+            }
+            return ((Integer)arg).intValue();
+        case PT_INT64:
+            return ((Long)arg).longValue();
+        case PT_DOUBLE:
+            return Double.doubleToRawLongBits(((Double)arg).doubleValue());
+        case PT_FLOAT:
+            return Float.floatToRawIntBits(((Float)arg).floatValue());
+        case PT_INT8:
+            return ((Byte)arg).byteValue();
+        case PT_INT16:
+            return ((Short)arg).shortValue();
+        default:
+            return ((Character)arg).charValue();
+        }
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static int invokeInt(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            return invokeInt(fp, callFlags, args);
+        }
+        return invokePrimitiveInt(fp, callFlags, signature, args,
+                                  getPrimitiveValue(args, 0, signature),
+                                  getPrimitiveValue(args, 1, signature),
+                                  getPrimitiveValue(args, 2, signature),
+                                  getPrimitiveValue(args, 3, signature),
+                                  getPrimitiveValue(args, 4, signature),
+                                  getPrimitiveValue(args, 5, signature));
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static long invokeLong(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            return invokeLong(fp, callFlags, args);
+        }
+        return invokePrimitiveLong(fp, callFlags, signature, args,
+                                   getPrimitiveValue(args, 0, signature),
+                                   getPrimitiveValue(args, 1, signature),
+                                   getPrimitiveValue(args, 2, signature),
+                                   getPrimitiveValue(args, 3, signature),
+                                   getPrimitiveValue(args, 4, signature),
+                                   getPrimitiveValue(args, 5, signature));
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static void invokeVoid(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            invokeVoid(fp, callFlags, args);
+        }
+        else {
+            invokePrimitiveVoid(fp, callFlags, signature, args,
+                                getPrimitiveValue(args, 0, signature),
+                                getPrimitiveValue(args, 1, signature),
+                                getPrimitiveValue(args, 2, signature),
+                                getPrimitiveValue(args, 3, signature),
+                                getPrimitiveValue(args, 4, signature),
+                                getPrimitiveValue(args, 5, signature));
+        }
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static float invokeFloat(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            return invokeFloat(fp, callFlags, args);
+        }
+        return invokePrimitiveFloat(fp, callFlags, signature, args,
+                                    getPrimitiveValue(args, 0, signature),
+                                    getPrimitiveValue(args, 1, signature),
+                                    getPrimitiveValue(args, 2, signature),
+                                    getPrimitiveValue(args, 3, signature),
+                                    getPrimitiveValue(args, 4, signature),
+                                    getPrimitiveValue(args, 5, signature));
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static double invokeDouble(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            return invokeDouble(fp, callFlags, args);
+        }
+        return invokePrimitiveDouble(fp, callFlags, signature, args,
+                                     getPrimitiveValue(args, 0, signature),
+                                     getPrimitiveValue(args, 1, signature),
+                                     getPrimitiveValue(args, 2, signature),
+                                     getPrimitiveValue(args, 3, signature),
+                                     getPrimitiveValue(args, 4, signature),
+                                     getPrimitiveValue(args, 5, signature));
+    }
+
+    /** Call the native function, passing arguments as primitive values if
+     * <code>signature</code> is not -1.
+     * @see #getPrimitiveSignature
+     */
+    static long invokePointer(long fp, int callFlags, int signature, Object[] args) {
+        if (signature == -1) {
+            return invokePointer(fp, callFlags, args);
+        }
+        return invokePrimitivePointer(fp, callFlags, signature, args,
+                                      getPrimitiveValue(args, 0, signature),
+                                      getPrimitiveValue(args, 1, signature),
+                                      getPrimitiveValue(args, 2, signature),
+                                      getPrimitiveValue(args, 3, signature),
+                                      getPrimitiveValue(args, 4, signature),
+                                      getPrimitiveValue(args, 5, signature));
+    }
+
+    /**
+     * Call the native function with up to {@link #MAX_PRIMITIVE_ARGS}
+     * arguments already reduced to primitive values, avoiding type checks
+     * and field access on boxed arguments in native code.
+     * @param fp function pointer
+     * @param callFlags calling convention to be used
+     * @param signature argument count and types, from
+     * {@link #getPrimitiveSignature}
+     * @param args original arguments, kept reachable for the duration of
+     * the call
+     * @param a0 first argument; integers are passed sign-extended, floating
+     * point values as their raw bits and pointers as their address
+     *
+     * @return The value returned by the target native function
+     */
+    private static native int invokePrimitiveInt(long fp, int callFlags, int signature, Object[] args,
+                                                 long a0, long a1, long a2, long a3, long a4, long a5);
+
+    /**
+     * @see #invokePrimitiveInt
+     */
+    private static native long invokePrimitiveLong(long fp, int callFlags, int signature, Object[] args,
+                                                   long a0, long a1, long a2, long a3, long a4, long a5);
+
+    /**
+     * @see #invokePrimitiveInt
+     */
+    private static native void invokePrimitiveVoid(long fp, int callFlags, int signature, Object[] args,
+                                                   long a0, long a1, long a2, long a3, long a4, long a5);
+
+    /**
+     * @see #invokePrimitiveInt
+     */
+    private static native float invokePrimitiveFloat(long fp, int callFlags, int signature, Object[] args,
+                                                     long a0, long a1, long a2, long a3, long a4, long a5);
+
+    /**
+     * @see #invokePrimitiveInt
+     */
+    private static native double invokePrimitiveDouble(long fp, int callFlags, int signature, Object[] args,
+                                                       long a0, long a1, long a2, long a3, long a4, long a5);
+
+    /**
+     * @see #invokePrimitiveInt
+     */
+    private static native long invokePrimitivePointer(long fp, int callFlags, int signature, Object[] args,
+                                                      long a0, long a1, long a2, long a3, long a4, long a5);
+
     /** Open the requested native library with default options. */
     static long open(String name) {
         return open(name, -1);
@@ -1694,6 +2416,18 @@ public final class Native {
 
     static native void write(long addr, double[] buf, int index, int length);
 
+    /** Copy <code>length</code> elements of <code>size</code> bytes, spaced
+     * <code>stride</code> bytes apart in native memory, into the given
+     * primitive array.
+     */
+    static native void gather(long addr, long stride, int size, Object buf, int index, int length);
+
+    /** Copy <code>length</code> elements of <code>size</code> bytes from the
+     * given primitive array into native memory, spaced <code>stride</code>
+     * bytes apart.
+     */
+    static native void scatter(long addr, long stride, int size, Object buf, int index, int length);
+
     static native byte getByte(long addr);
 
     static native char getChar(long addr);
@@ -1717,6 +2451,18 @@ public final class Native {
 
     static native String getString(long addr, boolean wide);
 
+    /** Decode a NUL-terminated native string in the given encoding type,
+        which must not be {@link #ENCODING_OTHER}.
+     */
+    static native String decodeString(long addr, int encodingType);
+
+    /** Encode a string as a NUL-terminated native string in the given
+        encoding type, which must not be {@link #ENCODING_OTHER}.  The
+        destination must have room for
+        {@link #getEncodedLength(String,int)} bytes plus the terminator.
+     */
+    static native void encodeString(long addr, String value, int encodingType);
+
     static native void setMemory(long addr, long length, byte value);
 
     static native void setByte(long addr, byte value);
@@ -1752,6 +2498,30 @@ public final class Native {
      */
     public static native void free(long ptr);
 
+    /** Usage advice for {@link #adviseMappedFile}. */
+    static final int MAP_ADVICE_NORMAL = 0;
+    static final int MAP_ADVICE_RANDOM = 1;
+    static final int MAP_ADVICE_SEQUENTIAL = 2;
+    static final int MAP_ADVICE_WILLNEED = 3;
+    static final int MAP_ADVICE_DONTNEED = 4;
+
+    /** Map <code>length</code> bytes of a file, starting at the given
+     * offset, which need not be page-aligned.
+     * @return the address corresponding to <code>offset</code>
+     */
+    static native long mapFile(String path, long offset, long length, boolean writable) throws IOException;
+
+    /** Unmap a region returned by {@link #mapFile}. */
+    static native void unmapFile(long addr, long length);
+
+    /** Write changes within a mapped region back to the file. */
+    static native void syncMappedFile(long addr, long length, boolean async) throws IOException;
+
+    /** Advise the system how a mapped region will be accessed.  The advice
+     * may be ignored.
+     */
+    static native void adviseMappedFile(long addr, long length, int advice);
+
     /**
      * Get a direct ByteBuffer mapped to the memory pointed to by the pointer.
      * This method calls through to the JNA NewDirectByteBuffer method.
@@ -1777,6 +2547,36 @@ public final class Native {
         setLastError(detach ? THREAD_DETACH : THREAD_LEAVE_ATTACHED);
     }
 
+    /** Set the default attachment policy for native threads which invoke a
+        callback without already being attached to the VM.  If
+        <code>true</code> (the default), the thread is attached before and
+        detached after each callback invocation.  If <code>false</code>, the
+        thread is attached once, as a daemon thread, and remains attached
+        until the native thread exits, avoiding the cost of attaching on
+        every invocation.<p/>
+        A {@link CallbackThreadInitializer} registered for a callback
+        overrides this policy for that callback, and {@link #detach} may
+        override it for a single invocation.  The default may also be set
+        with the system property <code>jna.callback.detach=false</code>.
+     */
+    public static native void setCallbackThreadDetach(boolean detach);
+
+    /** Returns the default attachment policy for native callback threads.
+        @see #setCallbackThreadDetach
+     */
+    public static native boolean isCallbackThreadDetach();
+
+    /** Returns the number of times a native thread has been attached to the
+        VM in order to invoke a callback.
+     */
+    public static native long getCallbackThreadAttachCount();
+
+    /** Returns the number of times a native thread attached for a callback
+        has been detached from the VM, either when the callback returned or
+        when the native thread exited.
+     */
+    public static native long getCallbackThreadDetachCount();
+
     private static class Buffers {
         static boolean isBuffer(Class cls) {
             return Buffer.class.isAssignableFrom(cls);
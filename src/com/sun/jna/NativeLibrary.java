@@ -15,7 +15,12 @@
 package com.sun.jna;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.lang.ref.Reference;
 import java.lang.reflect.Method;
@@ -28,6 +33,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -46,6 +52,13 @@ import java.util.StringTokenizer;
  * <code>/System/Library/Frameworks</code> will be searched for a framework
  * with a name corresponding to that requested.
  * </ol>
+ * If the system property <code>jna.library.cache</code> names a file, the
+ * paths found by searching are recorded there and reused, in this and
+ * later processes, until the library or a directory on the search path is
+ * modified.
+ * <p>
+ * Libraries are located and opened without a global lock, so different
+ * libraries may be loaded concurrently.
  * @author Wayne Meissner, split library loading from Function.java
  * @author twall
  */
@@ -59,6 +72,8 @@ public class NativeLibrary {
     final Map options;
 
     private static final Map libraries = new HashMap();
+    // Locks for libraries being loaded, keyed as for libraries
+    private static final Map loading = new HashMap();
     private static final Map searchPaths = Collections.synchronizedMap(new HashMap());
     private static final List librarySearchPath = new LinkedList();
 
@@ -128,6 +143,28 @@ public class NativeLibrary {
         }
 
         searchPath.addAll(initPaths("jna.library.path"));
+
+        // Use a previously resolved path if nothing on the search path
+        // has changed since
+        ResolutionCache cache = new File(libraryName).isAbsolute()
+            ? null : ResolutionCache.getInstance();
+        List fullSearchPath = new ArrayList(searchPath);
+        fullSearchPath.addAll(librarySearchPath);
+        if (cache != null) {
+            String cachedPath = cache.lookup(libraryName, fullSearchPath);
+            if (cachedPath != null) {
+                try {
+                    long handle = Native.open(cachedPath, openFlags);
+                    if (handle != 0) {
+                        return new NativeLibrary(libraryName, cachedPath, handle, options);
+                    }
+                }
+                catch(UnsatisfiedLinkError e) {
+                }
+                cache.remove(libraryName, fullSearchPath);
+            }
+        }
+
         String libraryPath = findLibraryPath(libraryName, searchPath);
         long handle = 0;
         //
@@ -142,6 +179,9 @@ public class NativeLibrary {
             // Add the system paths back for all fallback searching
             searchPath.addAll(librarySearchPath);
         }
+        // Paths found by the fallbacks below depend on the system loader
+        // having failed to find the library
+        boolean fallback = handle == 0;
         try {
             if (handle == 0) {
                 libraryPath = findLibraryPath(libraryName, searchPath);
@@ -195,9 +235,264 @@ public class NativeLibrary {
                                                + e.getMessage());
             }
         }
+        // Paths left to the system loader are resolved quickly by it
+        if (cache != null && new File(libraryPath).isAbsolute()) {
+            cache.store(libraryName, fullSearchPath, libraryPath, fallback);
+        }
         return new NativeLibrary(libraryName, libraryPath, handle, options);
     }
 
+    /** Persistent record of the paths to which library names have been
+     * resolved, so that subsequent runs need not search for them.  Each
+     * entry is keyed by the library name and search path, and is valid
+     * only while the resolved file and the directories searched for it
+     * have the same modification times as when it was recorded.  A path
+     * found on the first attempt depends only on the directories up to
+     * the one holding it.  A path found by the fallbacks depends on the
+     * system loader having failed, so its entry also checks every
+     * directory on the search path and the loader's environment.  The
+     * directory holding the cache file is not checked, since writing the
+     * cache changes it.
+     */
+    static class ResolutionCache {
+        private static ResolutionCache instance;
+
+        private final File file;
+        private final File dir;
+        private final Properties entries = new Properties();
+        private int hits;
+        private int misses;
+
+        /** Returns the cache named by <code>jna.library.cache</code>, or
+         * null if none is configured.
+         */
+        static synchronized ResolutionCache getInstance() {
+            String path = System.getProperty("jna.library.cache", "");
+            if ("".equals(path)) {
+                return null;
+            }
+            File file = new File(path).getAbsoluteFile();
+            if (instance == null || !instance.file.equals(file)) {
+                instance = new ResolutionCache(file);
+            }
+            return instance;
+        }
+
+        private ResolutionCache(File file) {
+            this.file = file;
+            this.dir = file.getParentFile();
+            // Create the directory before any entry records the
+            // modification time of its parent
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            read(entries);
+        }
+
+        private void read(Properties props) {
+            if (!file.exists()) {
+                return;
+            }
+            try {
+                InputStream is = new FileInputStream(file);
+                try {
+                    props.load(is);
+                }
+                finally {
+                    is.close();
+                }
+            }
+            catch(IOException e) {
+                // Treat an unreadable cache as empty
+            }
+            catch(IllegalArgumentException e) {
+            }
+        }
+
+        private static String key(String libraryName, List searchPath) {
+            StringBuffer buf = new StringBuffer(libraryName);
+            for (Iterator i=searchPath.iterator();i.hasNext();) {
+                buf.append(File.pathSeparator);
+                buf.append(i.next());
+            }
+            return buf.toString();
+        }
+
+        /** Adding, removing or renaming a library changes the modification
+         * time of its directory.  Only the first <code>count</code>
+         * directories are checked; the count and whether the loader's
+         * environment is included are recorded in the stamp itself.
+         */
+        private String stamp(List searchPath, int count, boolean loader) {
+            StringBuffer buf = new StringBuffer(String.valueOf(count));
+            if (loader) {
+                buf.append("+");
+                buf.append(loaderStamp());
+            }
+            buf.append(":");
+            for (Iterator i=searchPath.iterator();i.hasNext() && count-- > 0;) {
+                File path = new File((String)i.next()).getAbsoluteFile();
+                buf.append(path.equals(dir) ? "-" : String.valueOf(path.lastModified()));
+                buf.append(",");
+            }
+            return buf.toString();
+        }
+
+        /** Recompute a stamp with the same scope as the given one. */
+        private String stamp(List searchPath, String old) {
+            int end = old.indexOf(':');
+            if (end == -1) {
+                return null;
+            }
+            int plus = old.indexOf('+');
+            boolean loader = plus != -1 && plus < end;
+            try {
+                int count = Integer.parseInt(old.substring(0, loader ? plus : end));
+                return stamp(searchPath, count, loader);
+            }
+            catch(NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /** Whatever determines where the system loader looks. */
+        private static String loaderStamp() {
+            String[] vars;
+            if (Platform.isWindows()) {
+                vars = new String[] { "PATH" };
+            }
+            else if (Platform.isMac()) {
+                vars = new String[] { "DYLD_LIBRARY_PATH", "DYLD_FALLBACK_LIBRARY_PATH" };
+            }
+            else {
+                vars = new String[] { "LD_LIBRARY_PATH" };
+            }
+            StringBuffer buf = new StringBuffer();
+            for (int i=0;i < vars.length;i++) {
+                String value = null;
+                try {
+                    value = System.getenv(vars[i]);
+                }
+                catch(Error e) {
+                    // Not supported prior to 1.5
+                }
+                buf.append(value != null ? value : "");
+                buf.append(File.pathSeparator);
+            }
+            if (Platform.isLinux()) {
+                // Updated by ldconfig
+                buf.append(new File("/etc/ld.so.cache").lastModified());
+            }
+            return buf.toString();
+        }
+
+        /** The number of directories which could hold a library found by
+         * the given search without the system loader.
+         */
+        private static int searched(List searchPath, String path) {
+            File parent = new File(path).getAbsoluteFile().getParentFile();
+            int count = 0;
+            for (Iterator i=searchPath.iterator();i.hasNext();) {
+                ++count;
+                if (new File((String)i.next()).getAbsoluteFile().equals(parent)) {
+                    return count;
+                }
+            }
+            return count;
+        }
+
+        /** Returns the cached path for the given library, or null if there
+         * is no valid entry.
+         */
+        synchronized String lookup(String libraryName, List searchPath) {
+            String key = key(libraryName, searchPath);
+            String value = entries.getProperty(key);
+            if (value != null) {
+                int end1 = value.indexOf('\n');
+                int end2 = value.indexOf('\n', end1 + 1);
+                if (end1 != -1 && end2 != -1) {
+                    String path = value.substring(end2 + 1);
+                    try {
+                        long mtime = Long.parseLong(value.substring(end1 + 1, end2));
+                        String stamp = value.substring(0, end1);
+                        if (new File(path).lastModified() == mtime
+                            && stamp.equals(stamp(searchPath, stamp))) {
+                            ++hits;
+                            return path;
+                        }
+                    }
+                    catch(NumberFormatException e) {
+                    }
+                }
+                entries.remove(key);
+            }
+            ++misses;
+            return null;
+        }
+
+        /** Record the path to which the given library was resolved.
+         * @param fallback whether the path was found only after the system
+         * loader failed to find the library
+         */
+        synchronized void store(String libraryName, List searchPath, String path, boolean fallback) {
+            String stamp = fallback
+                ? stamp(searchPath, searchPath.size(), true)
+                : stamp(searchPath, searched(searchPath, path), false);
+            String value = stamp + "\n" + new File(path).lastModified() + "\n" + path;
+            if (!value.equals(entries.put(key(libraryName, searchPath), value))) {
+                save();
+            }
+        }
+
+        synchronized void remove(String libraryName, List searchPath) {
+            if (entries.remove(key(libraryName, searchPath)) != null) {
+                save();
+            }
+        }
+
+        synchronized int getHitCount() {
+            return hits;
+        }
+
+        synchronized int getMissCount() {
+            return misses;
+        }
+
+        /** Merge in entries written by other processes, then replace the
+         * file atomically.  Failures are ignored, since the cache only
+         * avoids searching.
+         */
+        private void save() {
+            Properties saved = new Properties();
+            read(saved);
+            for (Iterator i=saved.entrySet().iterator();i.hasNext();) {
+                Map.Entry e = (Map.Entry)i.next();
+                if (!entries.containsKey(e.getKey())) {
+                    entries.put(e.getKey(), e.getValue());
+                }
+            }
+            try {
+                File tmp = File.createTempFile("jna", ".tmp", dir);
+                OutputStream os = new FileOutputStream(tmp);
+                try {
+                    entries.store(os, "JNA library resolution cache");
+                }
+                finally {
+                    os.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    // Windows won't rename over an existing file
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        tmp.delete();
+                    }
+                }
+            }
+            catch(IOException e) {
+            }
+        }
+    }
+
     /** Look for a matching framework (OSX) */
     static String matchFramework(String libraryName) {
         final String[] PREFIXES = { System.getProperty("user.home"), "", "/System" };
@@ -271,29 +566,77 @@ public class NativeLibrary {
             && Platform.C_LIBRARY_NAME.equals(libraryName)) {
             libraryName = null;
         }
+        String key = libraryName + options;
+        Object loadLock;
         synchronized (libraries) {
-            WeakReference ref = (WeakReference)libraries.get(libraryName + options);
-            NativeLibrary library = ref != null ? (NativeLibrary)ref.get() : null;
-
-            if (library == null) {
-                if (libraryName == null) {
-                    library = new NativeLibrary("<process>", null, Native.open(null, openFlags(options)), options);
+            NativeLibrary library = lookup(key);
+            if (library != null) {
+                return library;
+            }
+            loadLock = loading.get(key);
+            if (loadLock == null) {
+                loadLock = new Object();
+                loading.put(key, loadLock);
+            }
+        }
+        // Search for and open the library without holding the global lock,
+        // so that different libraries may be loaded concurrently
+        synchronized (loadLock) {
+            try {
+                NativeLibrary library;
+                synchronized (libraries) {
+                    library = lookup(key);
                 }
-                else {
-                    library = loadLibrary(libraryName, options);
+                if (library == null) {
+                    if (libraryName == null) {
+                        library = new NativeLibrary("<process>", null, Native.open(null, openFlags(options)), options);
+                    }
+                    else {
+                        library = loadLibrary(libraryName, options);
+                    }
+                    library = register(library, options);
                 }
-                ref = new WeakReference(library);
-                libraries.put(library.getName() + options, ref);
-                File file = library.getFile();
-                if (file != null) {
-                    libraries.put(file.getAbsolutePath() + options, ref);
-                    libraries.put(file.getName() + options, ref);
+                return library;
+            }
+            finally {
+                synchronized (libraries) {
+                    if (loading.get(key) == loadLock) {
+                        loading.remove(key);
+                    }
                 }
             }
-            return library;
         }
     }
 
+    private static NativeLibrary lookup(String key) {
+        WeakReference ref = (WeakReference)libraries.get(key);
+        return ref != null ? (NativeLibrary)ref.get() : null;
+    }
+
+    /** Record a newly loaded library, or if the same file was loaded
+     * concurrently under another name, discard it in favor of the existing
+     * instance.
+     */
+    private static NativeLibrary register(NativeLibrary library, Map options) {
+        File file = library.getFile();
+        synchronized (libraries) {
+            if (file != null) {
+                NativeLibrary existing = lookup(file.getAbsolutePath() + options);
+                if (existing != null) {
+                    library.dispose();
+                    library = existing;
+                }
+            }
+            WeakReference ref = new WeakReference(library);
+            libraries.put(library.getName() + options, ref);
+            if (file != null) {
+                libraries.put(file.getAbsolutePath() + options, ref);
+                libraries.put(file.getName() + options, ref);
+            }
+        }
+        return library;
+    }
+
     /**
      * Returns an instance of NativeLibrary which refers to the current
      * process.  This is useful for accessing functions which were already
@@ -58,13 +58,26 @@ class NativeString implements CharSequence, Comparable {
             pointer.setString(0, string, true);
         }
         else {
-            byte[] data = Native.getBytes(string);
-            pointer = new Memory(data.length + 1);
-            pointer.write(0, data, 0, data.length);
-            pointer.setByte(data.length, (byte)0);
+            int type = Native.getEncodingType(System.getProperty("jna.encoding"));
+            if (type != Native.ENCODING_OTHER) {
+                // Encode directly into native memory
+                pointer = new Memory(Native.getEncodedLength(string, type) + 1);
+                Native.encodeString(pointer.peer, string, type);
+            }
+            else {
+                byte[] data = Native.getBytes(string);
+                pointer = new Memory(data.length + 1);
+                pointer.write(0, data, 0, data.length);
+                pointer.setByte(data.length, (byte)0);
+            }
         }
     }
 
+    /** Free the native memory holding the string. */
+    public void close() {
+        ((Memory)pointer).close();
+    }
+
     public int hashCode() {
         return toString().hashCode();
     }
@@ -520,8 +520,8 @@ public class Pointer {
                         sarray[i] = Structure.newInstance(cls);
                     }
                     sarray[i].useMemory(this, (int)(offset + i * sarray[i].size()));
-                    sarray[i].read();
                 }
+                Structure.readArray(sarray, 0);
             }
         }
         else if (NativeMapped.class.isAssignableFrom(cls)) {
@@ -687,6 +687,10 @@ v     * @param wide whether to convert from a wide or standard C string
     public String getString(long offset) {
         String encoding = System.getProperty("jna.encoding");
         if (encoding != null) {
+            int type = Native.getEncodingType(encoding);
+            if (type != Native.ENCODING_OTHER) {
+                return Native.decodeString(peer + offset, type);
+            }
             long len = indexOf(offset, (byte)0);
             if (len != -1) {
                 if (len > Integer.MAX_VALUE) {
@@ -971,8 +975,8 @@ v     * @param wide whether to convert from a wide or standard C string
                         sbuf[i] = Structure.newInstance(cls);
                     }
                     sbuf[i].useMemory(this, (int)(offset + i * sbuf[i].size()));
-                    sbuf[i].write();
                 }
+                Structure.writeArray(sbuf, 0);
             }
         }
         else if (NativeMapped.class.isAssignableFrom(cls)) {
@@ -1152,6 +1156,11 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value  <code>java.lang.String</code> value to set
      */
     public void setString(long offset, String value) {
+        int type = Native.getEncodingType(System.getProperty("jna.encoding"));
+        if (type != Native.ENCODING_OTHER) {
+            Native.encodeString(peer + offset, value, type);
+            return;
+        }
         byte[] data = Native.getBytes(value);
         write(offset, data, 0, data.length);
         setByte(offset + data.length, (byte)0);
@@ -0,0 +1,133 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Per-thread native memory for temporary function call arguments, such as
+ * native copies of <code>String</code> arguments.  Memory is allocated by
+ * bumping an offset within blocks which are retained and reused, and is
+ * released back to a mark when the call returns:
+ * <pre><code>
+ * ScratchArena arena = ScratchArena.get();
+ * long mark = arena.mark();
+ * try {
+ *     Pointer p = arena.newString(s, false);
+ *     ...
+ * }
+ * finally {
+ *     arena.release(mark);
+ * }
+ * </code></pre>
+ * Marks nest, so calls made from callbacks during a native call don't
+ * disturb the arguments of the outer call.  Outside of a mark, and for
+ * large requests, allocations fall back to {@link Memory}.<p>
+ * Set the system property <code>jna.noscratch=true</code> to always use
+ * {@link Memory}.
+ */
+final class ScratchArena {
+
+    /** Size of each block of native memory. */
+    static final int BLOCK_SIZE = 4096;
+    /** Larger allocations use {@link Memory}. */
+    static final int MAX_ALLOCATION = 1024;
+    /** Blocks beyond this many are freed once no mark is outstanding. */
+    static final int MAX_RETAINED_BLOCKS = 4;
+    private static final int ALIGNMENT = 8;
+    private static final boolean ENABLED = !Boolean.getBoolean("jna.noscratch");
+
+    private static final ThreadLocal arenas = new ThreadLocal() {
+        protected Object initialValue() {
+            return new ScratchArena();
+        }
+    };
+
+    /** Returns the arena for the current thread. */
+    static ScratchArena get() {
+        return (ScratchArena)arenas.get();
+    }
+
+    private final List blocks = new ArrayList();
+    private int block;
+    private int offset;
+    private int depth;
+
+    private ScratchArena() { }
+
+    /** Mark the current allocation position.  Each mark must be followed
+     * by a corresponding {@link #release}.
+     */
+    long mark() {
+        ++depth;
+        return ((long)block << 32) | offset;
+    }
+
+    /** Release all memory allocated since the given mark.  Releasing the
+     * outermost mark also frees any blocks added by a burst of nested or
+     * numerous arguments, beyond {@link #MAX_RETAINED_BLOCKS}.
+     */
+    void release(long mark) {
+        --depth;
+        block = (int)(mark >>> 32);
+        offset = (int)mark;
+        if (depth == 0) {
+            while (blocks.size() > MAX_RETAINED_BLOCKS) {
+                ((Memory)blocks.remove(blocks.size() - 1)).close();
+            }
+        }
+    }
+
+    /** Returns the number of blocks currently held. */
+    int getBlockCount() {
+        return blocks.size();
+    }
+
+    /** Allocate memory valid until the innermost mark is released. */
+    Pointer allocate(int size) {
+        if (!ENABLED || depth == 0 || size > MAX_ALLOCATION) {
+            return new Memory(size);
+        }
+        size = (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+        if (offset + size > BLOCK_SIZE) {
+            ++block;
+            offset = 0;
+        }
+        if (block == blocks.size()) {
+            blocks.add(new Memory(BLOCK_SIZE));
+        }
+        Pointer p = ((Memory)blocks.get(block)).share(offset, size);
+        offset += size;
+        return p;
+    }
+
+    /** Allocate a NUL-terminated native copy of the given string, encoded
+     * as for {@link NativeString}.
+     */
+    Pointer newString(String s, boolean wide) {
+        if (wide) {
+            Pointer p = allocate((s.length() + 1) * Native.WCHAR_SIZE);
+            p.setString(0, s, true);
+            return p;
+        }
+        int type = Native.getEncodingType(System.getProperty("jna.encoding"));
+        if (type != Native.ENCODING_OTHER) {
+            Pointer p = allocate(Native.getEncodedLength(s, type) + 1);
+            Native.encodeString(p.peer, s, type);
+            return p;
+        }
+        byte[] data = Native.getBytes(s);
+        Pointer p = allocate(data.length + 1);
+        p.write(0, data, 0, data.length);
+        p.setByte(data.length, (byte)0);
+        return p;
+    }
+}
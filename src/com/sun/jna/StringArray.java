@@ -66,6 +66,14 @@ public class StringArray extends Memory implements Function.PostCallRead {
         }
     }
 
+    /** Free the native memory of the array and its strings. */
+    protected void dispose() {
+        for (int i=0;i < natives.size();i++) {
+            ((NativeString)natives.get(i)).close();
+        }
+        super.dispose();
+    }
+
     public String toString() {
         String s = wide ? "const wchar_t*[]" : "const char*[]";
         s += Arrays.asList(original);
@@ -16,6 +16,8 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -145,6 +147,7 @@ public abstract class Structure {
     private int actualAlignType;
     private int structAlignment;
     private Map structFields;
+    private LayoutInfo layout;
     // Keep track of java strings which have been converted to C strings
     private final Map nativeStrings = new HashMap();
     private TypeMapper typeMapper;
@@ -153,7 +156,12 @@ public abstract class Structure {
 
     private boolean autoRead = true;
     private boolean autoWrite = true;
+    // Last values synchronized with native memory, when tracking changes
+    private Map syncedValues;
+    private String[] autoReadFields;
     private Structure[] array;
+    // Array fields accessed through views by getFieldBuffer
+    private Set bufferFields;
 
     protected Structure() {
         this(ALIGN_DEFAULT);
@@ -292,6 +300,7 @@ public abstract class Structure {
             // Ensure our memory pointer is initialized, even if we can't
             // yet figure out a proper size/layout
             this.memory = m.share(offset);
+            clearSyncedValues();
             if (size == CALCULATE_SIZE) {
                 size = calculateSize(false);
             }
@@ -299,6 +308,7 @@ public abstract class Structure {
                 this.memory = m.share(offset, size);
             }
             this.array = null;
+            this.bufferFields = null;
         }
         catch(IndexOutOfBoundsException e) {
             throw new IllegalArgumentException("Structure exceeds provided memory bounds");
@@ -365,6 +375,7 @@ public abstract class Structure {
             if (this.memory == null
                 || this.memory instanceof AutoAllocated) {
                 this.memory = autoAllocate(size);
+                clearSyncedValues();
             }
             this.size = size;
         }
@@ -499,8 +510,16 @@ public abstract class Structure {
             reading().put(getPointer(), this);
         }
         try {
+            StructureAccessor accessor = getAccessor();
+            if (accessor != null) {
+                accessor.read(this, memory);
+            }
             for (Iterator i=fields().values().iterator();i.hasNext();) {
-                readField((StructField)i.next());
+                StructField sf = (StructField)i.next();
+                if ((accessor == null || !sf.hasAccessor)
+                    && !isBufferField(sf)) {
+                    readField(sf);
+                }
             }
         }
         finally {
@@ -533,6 +552,70 @@ public abstract class Structure {
         return readField(f);
     }
 
+    /** Returns an NIO buffer which directly accesses the native memory of
+     * the given primitive array field, typed according to the array's
+     * element type.  Large inline arrays may then be accessed without
+     * copying: once a field's buffer has been obtained, {@link #read} and
+     * {@link #write} no longer copy the field between the Java array and
+     * native memory, and the Java array is not kept up to date.  Use
+     * {@link #readField(String)} or {@link #writeField(String)} to copy it
+     * explicitly.  The buffer remains valid as long as the memory it
+     * refers to; if this structure is later moved with
+     * {@link #useMemory}, the buffer continues to refer to the previous
+     * memory and the field is again copied normally.
+     * @throws IllegalArgumentException if no field exists with the given
+     * name, or it is not an array of <code>byte</code>, <code>short</code>,
+     * <code>char</code> (where <code>wchar_t</code> is two bytes),
+     * <code>int</code>, <code>long</code>, <code>float</code> or
+     * <code>double</code> without type conversion.
+     */
+    public Buffer getFieldBuffer(String name) {
+        if (!Platform.HAS_BUFFERS) {
+            throw new UnsupportedOperationException("NIO Buffers are not supported on this platform");
+        }
+        ensureAllocated();
+        StructField f = (StructField)fields().get(name);
+        if (f == null)
+            throw new IllegalArgumentException("No such field: " + name);
+        Class type = f.type.getComponentType();
+        if (type == null || !type.isPrimitive() || type == boolean.class
+            || (type == char.class && Native.WCHAR_SIZE != 2)
+            || f.readConverter != null || f.writeConverter != null) {
+            throw new IllegalArgumentException("Field " + name + " of type " + f.type
+                                               + " can not be accessed as a buffer");
+        }
+        ByteBuffer b = memory.getByteBuffer(f.offset, f.size);
+        Buffer buffer = b;
+        if (type == short.class) {
+            buffer = b.asShortBuffer();
+        }
+        else if (type == char.class) {
+            buffer = b.asCharBuffer();
+        }
+        else if (type == int.class) {
+            buffer = b.asIntBuffer();
+        }
+        else if (type == long.class) {
+            buffer = b.asLongBuffer();
+        }
+        else if (type == float.class) {
+            buffer = b.asFloatBuffer();
+        }
+        else if (type == double.class) {
+            buffer = b.asDoubleBuffer();
+        }
+        if (bufferFields == null) {
+            bufferFields = new HashSet();
+        }
+        bufferFields.add(name);
+        return buffer;
+    }
+
+    /** Whether the given field is accessed through a buffer view. */
+    private boolean isBufferField(StructField sf) {
+        return bufferFields != null && bufferFields.contains(sf.name);
+    }
+
     /** Obtain the value currently in the Java field.  Does not read from
      * memory.
      */
@@ -639,6 +722,9 @@ public abstract class Structure {
 
         // Update the value on the Java field
         setFieldValue(structField.field, result, true);
+        if (syncedValues != null) {
+            syncedValues.put(structField.name, result);
+        }
         return result;
     }
 
@@ -663,9 +749,16 @@ public abstract class Structure {
         busy().add(this);
         try {
             // Write all fields, except those marked 'volatile'
+            StructureAccessor accessor = getAccessor();
+            if (accessor != null) {
+                accessor.write(this, memory);
+            }
             for (Iterator i=fields().values().iterator();i.hasNext();) {
                 StructField sf = (StructField)i.next();
-                if (!sf.isVolatile) {
+                if (!sf.isVolatile
+                    && (accessor == null || !sf.hasAccessor)
+                    && !isBufferField(sf)
+                    && !isUnchanged(sf)) {
                     writeField(sf);
                 }
             }
@@ -711,6 +804,9 @@ public abstract class Structure {
 
         // Get the value from the field
         Object value = getFieldValue(structField.field);
+        if (syncedValues != null) {
+            syncedValues.put(structField.name, value);
+        }
 
         // Determine the type of the field
         Class fieldType = structField.type;
@@ -910,6 +1006,7 @@ public abstract class Structure {
         if (info != null) {
             this.structAlignment = info.alignment;
             this.structFields = info.fields;
+            this.layout = info;
 
             if (!info.variable) {
                 synchronized(layoutInfo) {
@@ -940,6 +1037,37 @@ public abstract class Structure {
         private int alignType = ALIGN_DEFAULT;
         private TypeMapper typeMapper;
         private boolean variable;
+        private StructureAccessor accessor;
+        private volatile boolean accessorInitialized;
+    }
+
+    /** Returns a generated accessor for this structure's primitive fields,
+     * or <code>null</code> if fields must all be accessed via reflection.
+     * Accessors are only generated for shared, fixed layouts when the system
+     * property <code>jna.structure.accessors</code> is <code>true</code>.
+     */
+    private StructureAccessor getAccessor() {
+        LayoutInfo info = layout;
+        if (info == null || info.variable || this instanceof Union
+            || syncedValues != null) {
+            return null;
+        }
+        if (!info.accessorInitialized) {
+            synchronized(info) {
+                if (!info.accessorInitialized) {
+                    boolean shared;
+                    synchronized(layoutInfo) {
+                        shared = layoutInfo.get(getClass()) == info;
+                    }
+                    // Avoid generating classes for one-off layouts
+                    if (shared && Boolean.getBoolean("jna.structure.accessors")) {
+                        info.accessor = StructureAccessorGenerator.newInstance(getClass(), info.fields.values());
+                    }
+                    info.accessorInitialized = true;
+                }
+            }
+        }
+        return info.accessor;
     }
 
     private void validateField(String name, Class type) {
@@ -1341,8 +1469,8 @@ public abstract class Structure {
         for (int i=1;i < array.length;i++) {
             array[i] = Structure.newInstance(getClass());
             array[i].useMemory(memory.share(i*size, size));
-            array[i].read();
         }
+        readArray(array, 1);
 
         if (!(this instanceof ByValue)) {
             // keep track for later auto-read/writes
@@ -1476,6 +1604,89 @@ public abstract class Structure {
         return this.autoWrite;
     }
 
+    /** Set whether to track the values last read from or written to native
+     * memory.  When tracking, {@link #write()} (and thus automatic writes
+     * before a native function call) skips fields whose values have not
+     * changed since they were last synchronized.  Only fields of primitive,
+     * primitive wrapper, {@link String}, {@link WString} and {@link Pointer}
+     * types are tracked; other fields are always written.<p>
+     * Tracking assumes native memory is modified only by native calls
+     * followed by a {@link #read()}; use {@link #writeField(String)} to
+     * force a write after modifying native memory by other means.
+     */
+    public void setTrackChanges(boolean track) {
+        if (track != getTrackChanges()) {
+            this.syncedValues = track ? new HashMap() : null;
+        }
+    }
+
+    /** Returns whether changes to field values are being tracked.
+     * @see #setTrackChanges(boolean)
+     */
+    public boolean getTrackChanges() {
+        return this.syncedValues != null;
+    }
+
+    /** Restrict automatic reads after a native function call to the given
+     * fields, e.g. when a function is known to update only some of a large
+     * structure.  Pass <code>null</code> to read all fields.
+     * @throws IllegalArgumentException if no field exists with a given name
+     */
+    public void setAutoReadFields(String[] fieldNames) {
+        if (fieldNames != null) {
+            ensureAllocated();
+            for (int i=0;i < fieldNames.length;i++) {
+                if (!fields().containsKey(fieldNames[i])) {
+                    throw new IllegalArgumentException("No such field: " + fieldNames[i]);
+                }
+            }
+            fieldNames = (String[])fieldNames.clone();
+        }
+        this.autoReadFields = fieldNames;
+    }
+
+    /** Returns the fields read automatically after a native function call,
+     * or <code>null</code> if all fields are read.
+     * @see #setAutoReadFields(String[])
+     */
+    public String[] getAutoReadFields() {
+        return this.autoReadFields == null
+            ? null : (String[])this.autoReadFields.clone();
+    }
+
+    private void clearSyncedValues() {
+        if (syncedValues != null) {
+            syncedValues.clear();
+        }
+    }
+
+    /** Whether the given field's value is unchanged since it was last
+     * synchronized with native memory.
+     */
+    private boolean isUnchanged(StructField sf) {
+        if (syncedValues == null
+            || !syncedValues.containsKey(sf.name)
+            || !isTrackable(sf.type)) {
+            return false;
+        }
+        Object value = getFieldValue(sf.field);
+        Object synced = syncedValues.get(sf.name);
+        return value == null ? synced == null : value.equals(synced);
+    }
+
+    /** Whether values of the given type are immutable, and can be compared
+     * to detect changes.
+     */
+    private static boolean isTrackable(Class type) {
+        return type.isPrimitive()
+            || type == Boolean.class || type == Byte.class
+            || type == Short.class || type == Character.class
+            || type == Integer.class || type == Long.class
+            || type == Float.class || type == Double.class
+            || type == String.class || type == WString.class
+            || Pointer.class.isAssignableFrom(type);
+    }
+
     /** Exposed for testing purposes only. */
     static Pointer getTypeInfo(Object obj) {
         return FFIType.get(obj);
@@ -1513,6 +1724,7 @@ public abstract class Structure {
         public int offset = -1;
         public boolean isVolatile;
         public boolean isReadOnly;
+        boolean hasAccessor;
         public FromNativeConverter readConverter;
         public ToNativeConverter writeConverter;
         public FromNativeContext context;
@@ -1710,6 +1922,9 @@ public abstract class Structure {
         if (ss[0].array == ss) {
             ss[0].autoRead();
         }
+        else if (isAutoRead(ss)) {
+            readArray(ss, 0);
+        }
         else {
             for (int si=0;si < ss.length;si++) {
                 if (ss[si] != null) {
@@ -1721,7 +1936,18 @@ public abstract class Structure {
 
     public void autoRead() {
         if (getAutoRead()) {
-            read();
+            if (autoReadFields != null) {
+                for (int i=0;i < autoReadFields.length;i++) {
+                    readField(autoReadFields[i]);
+                }
+            }
+            else if (array != null && isAutoRead(array)) {
+                readArray(array, 0);
+                return;
+            }
+            else {
+                read();
+            }
             if (array != null) {
                 for (int i=1;i < array.length;i++) {
                     array[i].autoRead();
@@ -1735,6 +1961,9 @@ public abstract class Structure {
         if (ss[0].array == ss) {
             ss[0].autoWrite();
         }
+        else if (isAutoWrite(ss)) {
+            writeArray(ss, 0);
+        }
         else {
             for (int si=0;si < ss.length;si++) {
                 if (ss[si] != null) {
@@ -1746,6 +1975,10 @@ public abstract class Structure {
 
     public void autoWrite() {
         if (getAutoWrite()) {
+            if (array != null && isAutoWrite(array)) {
+                writeArray(array, 0);
+                return;
+            }
             write();
             if (array != null) {
                 for (int i=1;i < array.length;i++) {
@@ -1755,6 +1988,293 @@ public abstract class Structure {
         }
     }
 
+    private static boolean isAutoRead(Structure[] ss) {
+        for (int i=0;i < ss.length;i++) {
+            if (ss[i] == null || !ss[i].getAutoRead()
+                || ss[i].autoReadFields != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAutoWrite(Structure[] ss) {
+        for (int i=0;i < ss.length;i++) {
+            if (ss[i] == null || !ss[i].getAutoWrite()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Read the elements of the given array starting at the given index.
+     * If the elements share a layout and occupy contiguous memory, the
+     * memory is copied from native memory in a single operation and
+     * primitive fields are decoded from the copy; remaining fields are read
+     * individually.  Otherwise each element is read with {@link #read()}.
+     */
+    static void readArray(Structure[] ss, int start) {
+        ByteBuffer buf = getArrayBuffer(ss, start, "read");
+        if (buf == null) {
+            for (int i=start;i < ss.length;i++) {
+                ss[i].read();
+            }
+            return;
+        }
+        Set busy = busy();
+        int size = ss[start].size();
+        for (int i=start;i < ss.length;i++) {
+            Structure s = ss[i];
+            if (busy.contains(s)) {
+                continue;
+            }
+            busy.add(s);
+            try {
+                int base = (i - start) * size;
+                for (Iterator fi=s.fields().values().iterator();fi.hasNext();) {
+                    StructField sf = (StructField)fi.next();
+                    if (isPrimitiveField(sf)) {
+                        s.readField(sf, buf, base + sf.offset);
+                    }
+                    else if (!s.isBufferField(sf)) {
+                        s.readField(sf);
+                    }
+                }
+            }
+            finally {
+                busy.remove(s);
+            }
+        }
+    }
+
+    /** Write the elements of the given array starting at the given index.
+     * If the elements share a layout and occupy contiguous memory, primitive
+     * fields are encoded into a buffer and each run of adjacent fields is
+     * written to native memory in a single operation; padding, volatile
+     * fields and elements already being written are left untouched.
+     * Remaining fields are written individually.  Otherwise each element is
+     * written with {@link #write()}.
+     */
+    static void writeArray(Structure[] ss, int start) {
+        ByteBuffer buf = getArrayBuffer(ss, start, "write");
+        if (buf == null) {
+            for (int i=start;i < ss.length;i++) {
+                ss[i].write();
+            }
+            return;
+        }
+        if (ss[start] instanceof ByValue) {
+            ss[start].getTypeInfo();
+        }
+        Set busy = busy();
+        boolean[] skip = new boolean[ss.length];
+        int size = ss[start].size();
+        Pointer p = ss[start].getPointer();
+        // Range of encoded bytes not yet written
+        int runStart = 0;
+        int runEnd = 0;
+        for (int i=start;i < ss.length;i++) {
+            Structure s = ss[i];
+            // Skip structures already being written
+            skip[i] = busy.contains(s);
+            if (skip[i]) {
+                continue;
+            }
+            int base = (i - start) * size;
+            for (Iterator fi=s.fields().values().iterator();fi.hasNext();) {
+                StructField sf = (StructField)fi.next();
+                if (!sf.isVolatile && isPrimitiveField(sf)) {
+                    int offset = base + sf.offset;
+                    s.writeField(sf, buf, offset);
+                    if (offset != runEnd) {
+                        writeRun(p, buf, runStart, runEnd);
+                        runStart = offset;
+                    }
+                    runEnd = offset + sf.size;
+                }
+            }
+        }
+        writeRun(p, buf, runStart, runEnd);
+        for (int i=start;i < ss.length;i++) {
+            Structure s = ss[i];
+            if (skip[i]) {
+                continue;
+            }
+            busy.add(s);
+            try {
+                for (Iterator fi=s.fields().values().iterator();fi.hasNext();) {
+                    StructField sf = (StructField)fi.next();
+                    if (!sf.isVolatile && !isPrimitiveField(sf)
+                        && !s.isBufferField(sf)) {
+                        s.writeField(sf);
+                    }
+                }
+            }
+            finally {
+                busy.remove(s);
+            }
+        }
+    }
+
+    /** Write the given range of the buffer to the same offset from the given
+     * pointer, if the range is not empty.
+     */
+    private static void writeRun(Pointer p, ByteBuffer buf, int start, int end) {
+        if (end > start) {
+            p.write(start, buf.array(), start, end - start);
+        }
+    }
+
+    /** Whether the given field holds a primitive value which may be
+     * transferred without conversion.
+     */
+    static boolean isPrimitiveField(StructField sf) {
+        return sf.type.isPrimitive()
+            && sf.readConverter == null
+            && sf.writeConverter == null
+            && !sf.isReadOnly;
+    }
+
+    /** Returns a buffer spanning the native memory of the given array
+     * elements, or <code>null</code> if the elements can't be transferred in
+     * bulk.  For reads the buffer holds a copy of the native memory.
+     * Elements must be of the same class, share a layout, have primitive
+     * fields and occupy contiguous memory; the class must not override the
+     * given method (<code>read</code> or <code>write</code>).
+     */
+    private static ByteBuffer getArrayBuffer(Structure[] ss, int start, String method) {
+        if (!Platform.HAS_BUFFERS || ss.length - start < 2) {
+            return null;
+        }
+        Structure first = ss[start];
+        if (first == null) {
+            return null;
+        }
+        Class cls = first.getClass();
+        if (first instanceof ByReference || first instanceof Union
+            || first.syncedValues != null) {
+            return null;
+        }
+        try {
+            if (cls.getMethod(method, new Class[0]).getDeclaringClass() != Structure.class) {
+                return null;
+            }
+        }
+        catch(NoSuchMethodException e) {
+            return null;
+        }
+        first.ensureAllocated();
+        Map fields = first.fields();
+        boolean hasPrimitive = false;
+        for (Iterator i=fields.values().iterator();i.hasNext();) {
+            if (isPrimitiveField((StructField)i.next())) {
+                hasPrimitive = true;
+                break;
+            }
+        }
+        if (!hasPrimitive) {
+            return null;
+        }
+        int size = first.size();
+        long base = first.getPointer().peer;
+        for (int i=start+1;i < ss.length;i++) {
+            Structure s = ss[i];
+            if (s == null || s.getClass() != cls || s.syncedValues != null) {
+                return null;
+            }
+            s.ensureAllocated();
+            if (s.fields() != fields
+                || s.getPointer().peer != base + (long)size * (i - start)) {
+                return null;
+            }
+        }
+        byte[] data = new byte[size * (ss.length - start)];
+        if ("read".equals(method)) {
+            first.getPointer().read(0, data, 0, data.length);
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+    }
+
+    /** Read a primitive field from the given buffer. */
+    private void readField(StructField sf, ByteBuffer buf, int offset) {
+        Class type = sf.type;
+        Field field = sf.field;
+        try {
+            if (type == boolean.class) {
+                field.setBoolean(this, buf.getInt(offset) != 0);
+            }
+            else if (type == byte.class) {
+                field.setByte(this, buf.get(offset));
+            }
+            else if (type == short.class) {
+                field.setShort(this, buf.getShort(offset));
+            }
+            else if (type == char.class) {
+                field.setChar(this, Native.WCHAR_SIZE == 2
+                              ? buf.getChar(offset) : (char)buf.getInt(offset));
+            }
+            else if (type == int.class) {
+                field.setInt(this, buf.getInt(offset));
+            }
+            else if (type == long.class) {
+                field.setLong(this, buf.getLong(offset));
+            }
+            else if (type == float.class) {
+                field.setFloat(this, buf.getFloat(offset));
+            }
+            else if (type == double.class) {
+                field.setDouble(this, buf.getDouble(offset));
+            }
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Unexpectedly unable to write to field '"
+                            + field.getName() + "' within " + getClass()
+                            + ": " + e);
+        }
+    }
+
+    /** Write a primitive field to the given buffer. */
+    private void writeField(StructField sf, ByteBuffer buf, int offset) {
+        Class type = sf.type;
+        Field field = sf.field;
+        try {
+            if (type == boolean.class) {
+                buf.putInt(offset, field.getBoolean(this) ? -1 : 0);
+            }
+            else if (type == byte.class) {
+                buf.put(offset, field.getByte(this));
+            }
+            else if (type == short.class) {
+                buf.putShort(offset, field.getShort(this));
+            }
+            else if (type == char.class) {
+                if (Native.WCHAR_SIZE == 2) {
+                    buf.putChar(offset, field.getChar(this));
+                }
+                else {
+                    buf.putInt(offset, field.getChar(this));
+                }
+            }
+            else if (type == int.class) {
+                buf.putInt(offset, field.getInt(this));
+            }
+            else if (type == long.class) {
+                buf.putLong(offset, field.getLong(this));
+            }
+            else if (type == float.class) {
+                buf.putFloat(offset, field.getFloat(this));
+            }
+            else if (type == double.class) {
+                buf.putDouble(offset, field.getDouble(this));
+            }
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Exception reading field '"
+                            + field.getName() + "' in " + getClass()
+                            + ": " + e);
+        }
+    }
+
     /** Return the native size of the given Java type, from the perspective of
         this Structure.
     */
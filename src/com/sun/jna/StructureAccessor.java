@@ -0,0 +1,30 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Transfers the values of a {@link Structure}'s primitive fields to and
+ * from native memory without reflection.  Implementations are generated at
+ * runtime for each structure layout and are not intended to be used
+ * directly; this interface is only public so that generated classes may
+ * implement it.
+ * @see Structure#read()
+ * @see Structure#write()
+ */
+public interface StructureAccessor {
+    /** Read the accessor's fields from the given memory into the given
+     * structure.
+     */
+    void read(Structure s, Pointer p);
+    /** Write the accessor's fields from the given structure into the given
+     * memory.
+     */
+    void write(Structure s, Pointer p);
+}
@@ -0,0 +1,190 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/** Generates {@link StructureAccessor} implementations which read and
+ * write a {@link Structure}'s primitive fields with direct field access and
+ * {@link Pointer} accessors, avoiding reflection and boxing.<p>
+ * Only public, non-final primitive fields without type conversion are
+ * handled; any other fields continue to be read and written by
+ * {@link Structure}.
+ */
+final class StructureAccessorGenerator implements ClassFileWriter.Opcodes {
+
+    private static final String ACCESSOR_TYPE = "com/sun/jna/StructureAccessor";
+    private static final String POINTER_TYPE = "com/sun/jna/Pointer";
+    private static final String OBJECT_TYPE = "java/lang/Object";
+    private static final String ACCESSOR_SIGNATURE =
+        "(Lcom/sun/jna/Structure;Lcom/sun/jna/Pointer;)V";
+
+    private static int counter;
+
+    private StructureAccessorGenerator() { }
+
+    /** Create an accessor for the eligible fields of the given structure
+     * class, marking each field it handles.  Returns <code>null</code> if
+     * no field is eligible or the class is not accessible.
+     * @param fields {@link Structure.StructField}s of the structure layout
+     */
+    static StructureAccessor newInstance(Class structClass, Collection fields) {
+        if (!isAccessible(structClass)) {
+            return null;
+        }
+        List eligible = new ArrayList();
+        for (Iterator i=fields.iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            if (isEligible(sf)) {
+                eligible.add(sf);
+            }
+        }
+        if (eligible.size() == 0) {
+            return null;
+        }
+        String className;
+        synchronized(StructureAccessorGenerator.class) {
+            className = structClass.getName() + "$$Accessor" + (++counter);
+        }
+        byte[] bytes = generate(className.replace('.', '/'), structClass, eligible);
+        ClassLoader parent = structClass.getClassLoader();
+        if (parent == null) {
+            parent = Structure.class.getClassLoader();
+        }
+        StructureAccessor accessor;
+        try {
+            accessor = (StructureAccessor)
+                ClassFileWriter.define(parent, className, bytes).newInstance();
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Generated structure accessor is invalid: " + e);
+        }
+        catch(InstantiationException e) {
+            throw new Error("Generated structure accessor is invalid: " + e);
+        }
+        for (Iterator i=eligible.iterator();i.hasNext();) {
+            ((Structure.StructField)i.next()).hasAccessor = true;
+        }
+        return accessor;
+    }
+
+    private static boolean isEligible(Structure.StructField sf) {
+        Field field = sf.field;
+        return Structure.isPrimitiveField(sf)
+            && Modifier.isPublic(field.getModifiers())
+            && isAccessible(field.getDeclaringClass());
+    }
+
+    /** Whether a class in another class loader may refer to the given
+     * class.
+     */
+    private static boolean isAccessible(Class cls) {
+        for (;cls != null;cls = cls.getDeclaringClass()) {
+            if (!Modifier.isPublic(cls.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] generate(String className, Class structClass, List fields) {
+        ClassFileWriter cfw =
+            new ClassFileWriter(ACC_PUBLIC|ACC_FINAL|ACC_SUPER, className,
+                                OBJECT_TYPE, new String[] { ACCESSOR_TYPE });
+        cfw.addDefaultConstructor(OBJECT_TYPE);
+        String structType = ClassFileWriter.getInternalName(structClass);
+
+        // Locals: this, structure, pointer, cast structure
+        ClassFileWriter.Code code = cfw.new Code();
+        code.load(ALOAD, 1);
+        code.op(CHECKCAST, cfw.classRef(structType));
+        code.load(ASTORE, 3);
+        for (Iterator i=fields.iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            String sig = Native.getSignature(sf.type);
+            code.load(ALOAD, 3);
+            code.load(ALOAD, 2);
+            code.push(sf.offset);
+            code.op(I2L);
+            code.op(INVOKEVIRTUAL, cfw.methodRef(POINTER_TYPE, getAccessorName("get", sf.type),
+                                                 "(J)" + getNativeSignature(sf.type)));
+            if (sf.type == boolean.class) {
+                // Any non-zero value is true
+                int isFalse = code.branch(IFEQ);
+                code.op(ICONST_1);
+                int end = code.branch(GOTO);
+                code.resolve(isFalse);
+                code.op(ICONST_0);
+                code.resolve(end);
+            }
+            code.op(PUTFIELD, getFieldRef(cfw, sf, sig));
+        }
+        code.op(RETURN);
+        cfw.addMethod(ACC_PUBLIC, "read", ACCESSOR_SIGNATURE, code, 4, 4);
+
+        code = cfw.new Code();
+        code.load(ALOAD, 1);
+        code.op(CHECKCAST, cfw.classRef(structType));
+        code.load(ASTORE, 3);
+        for (Iterator i=fields.iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            if (sf.isVolatile) {
+                continue;
+            }
+            String sig = Native.getSignature(sf.type);
+            code.load(ALOAD, 2);
+            code.push(sf.offset);
+            code.op(I2L);
+            code.load(ALOAD, 3);
+            code.op(GETFIELD, getFieldRef(cfw, sf, sig));
+            if (sf.type == boolean.class) {
+                // Written as -1 or 0, as in Pointer.setValue
+                int isFalse = code.branch(IFEQ);
+                code.op(ICONST_M1);
+                int end = code.branch(GOTO);
+                code.resolve(isFalse);
+                code.op(ICONST_0);
+                code.resolve(end);
+            }
+            code.op(INVOKEVIRTUAL, cfw.methodRef(POINTER_TYPE, getAccessorName("set", sf.type),
+                                                 "(J" + getNativeSignature(sf.type) + ")V"));
+        }
+        code.op(RETURN);
+        cfw.addMethod(ACC_PUBLIC, "write", ACCESSOR_SIGNATURE, code, 5, 4);
+        return cfw.toByteArray();
+    }
+
+    private static int getFieldRef(ClassFileWriter cfw, Structure.StructField sf, String sig) {
+        String owner = ClassFileWriter.getInternalName(sf.field.getDeclaringClass());
+        return cfw.fieldRef(owner, sf.name, sig);
+    }
+
+    /** Booleans are stored as <code>int</code>. */
+    private static String getNativeSignature(Class type) {
+        return Native.getSignature(type == boolean.class ? int.class : type);
+    }
+
+    /** Returns the name of the {@link Pointer} method used to access a
+     * field of the given type, e.g. <code>getInt</code>.
+     */
+    private static String getAccessorName(String prefix, Class type) {
+        if (type == boolean.class) {
+            type = int.class;
+        }
+        String name = type.getName();
+        return prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
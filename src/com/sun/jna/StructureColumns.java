@@ -0,0 +1,184 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Array;
+
+/** Columnar view of an array of structures in contiguous native memory.
+ * A single field may be copied from every element into a primitive array,
+ * or from a primitive array into every element, in one native pass and
+ * without creating a {@link Structure} object per element:
+ * <pre><code>
+ * StructureColumns records = new StructureColumns(Record.class, p, count);
+ * long[] timestamps = (long[])records.gather("timestamp");
+ * </code></pre>
+ * The layout is taken from an instance of the given {@link Structure}
+ * class, so it reflects that class's alignment and type mapper.  Fields of
+ * type <code>byte</code>, <code>short</code>, <code>int</code>,
+ * <code>long</code>, <code>float</code> and <code>double</code> are
+ * supported, as are <code>char</code> fields where <code>wchar_t</code> is
+ * two bytes, provided the field is not converted by a {@link TypeMapper}.
+ */
+public class StructureColumns {
+
+    private final Class type;
+    private final Pointer base;
+    private final int count;
+    private final Structure layout;
+    private final int stride;
+
+    /** Create a view of <code>count</code> structures of the given class,
+     * starting at the given address.
+     * @throws IndexOutOfBoundsException if <code>base</code> is
+     * {@link Memory} too small to hold <code>count</code> structures.
+     */
+    public StructureColumns(Class type, Pointer base, int count) {
+        if (!Structure.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Not a Structure class: " + type);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+        this.type = type;
+        this.base = base;
+        this.count = count;
+        this.layout = Structure.newInstance(type);
+        this.stride = layout.size();
+        if (base instanceof Memory) {
+            ((Memory)base).boundsCheck(0, (long)stride * count);
+        }
+    }
+
+    /** Create a view of an array of structures allocated contiguously, such
+     * as one returned by {@link Structure#toArray}.  The view does not
+     * synchronize the {@link Structure} fields; use {@link Structure#read}
+     * or {@link Structure#write} to do so.
+     * @throws IllegalArgumentException if the array is empty or the
+     * elements are not contiguous.
+     */
+    public StructureColumns(Structure[] array) {
+        this(getElementType(array), array[0].getPointer(), array.length);
+        Pointer last = array[array.length-1].getPointer();
+        if (last.peer != base.peer + (long)stride * (array.length-1)) {
+            throw new IllegalArgumentException("Structure array elements must be contiguous");
+        }
+    }
+
+    private static Class getElementType(Structure[] array) {
+        if (array.length == 0) {
+            throw new IllegalArgumentException("Structure array must not be empty");
+        }
+        return array[0].getClass();
+    }
+
+    /** Returns the address of the first structure. */
+    public Pointer getPointer() {
+        return base;
+    }
+
+    /** Returns the number of structures. */
+    public int getCount() {
+        return count;
+    }
+
+    /** Returns the distance in bytes between consecutive structures. */
+    public int getStride() {
+        return stride;
+    }
+
+    /** Returns the Java type of the given field. */
+    public Class getFieldType(String name) {
+        return getField(name).type;
+    }
+
+    private Structure.StructField getField(String name) {
+        Structure.StructField f = (Structure.StructField)layout.fields().get(name);
+        if (f == null) {
+            throw new IllegalArgumentException("No such field " + name + " in " + type);
+        }
+        return f;
+    }
+
+    /** Returns the field, verifying that it may be copied to and from
+     * an array of the given type.
+     */
+    private Structure.StructField getField(String name, Object array) {
+        Structure.StructField f = getField(name);
+        Class cls = f.type;
+        if (f.readConverter != null || f.writeConverter != null
+            || !cls.isPrimitive() || cls == boolean.class
+            || (cls == char.class && f.size != 2)) {
+            throw new IllegalArgumentException("Field " + name + " of type " + cls
+                                               + " can not be accessed by column");
+        }
+        if (array != null && array.getClass().getComponentType() != cls) {
+            throw new IllegalArgumentException("Field " + name + " requires an array of "
+                                               + cls + ", not " + array.getClass());
+        }
+        return f;
+    }
+
+    private void checkRange(int start, Object array, int index, int length) {
+        // Written to avoid int overflow
+        if (start < 0 || length < 0 || start > count || length > count - start) {
+            throw new IndexOutOfBoundsException("Invalid structure range: " + start
+                                                + "+" + length + " of " + count);
+        }
+        if (index < 0 || index > Array.getLength(array)
+            || length > Array.getLength(array) - index) {
+            throw new IndexOutOfBoundsException("Invalid array range: " + index
+                                                + "+" + length + " of "
+                                                + Array.getLength(array));
+        }
+    }
+
+    /** Returns a new primitive array holding the value of the given field
+     * of every structure.
+     */
+    public Object gather(String name) {
+        Structure.StructField f = getField(name, null);
+        Object array = Array.newInstance(f.type, count);
+        gather(name, 0, array, 0, count);
+        return array;
+    }
+
+    /** Copy the given field of <code>length</code> structures, starting with
+     * structure <code>start</code>, into a primitive array.
+     */
+    public void gather(String name, int start, Object array, int index, int length) {
+        Structure.StructField f = getField(name, array);
+        checkRange(start, array, index, length);
+        Native.gather(base.peer + (long)start * stride + f.offset, stride, f.size,
+                      array, index, length);
+    }
+
+    /** Copy each element of a primitive array into the given field of the
+     * corresponding structure.
+     */
+    public void scatter(String name, Object array) {
+        scatter(name, 0, array, 0, Array.getLength(array));
+    }
+
+    /** Copy <code>length</code> elements of a primitive array into the given
+     * field of consecutive structures, starting with structure
+     * <code>start</code>.
+     */
+    public void scatter(String name, int start, Object array, int index, int length) {
+        Structure.StructField f = getField(name, array);
+        checkRange(start, array, index, length);
+        Native.scatter(base.peer + (long)start * stride + f.offset, stride, f.size,
+                       array, index, length);
+    }
+
+    public String toString() {
+        return "StructureColumns(" + type.getName() + "[" + count + "]@" + base + ")";
+    }
+}
@@ -0,0 +1,343 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Invocation handler which serializes calls to a library according to
+ * per-method lock groups, as returned by
+ * {@link Native#synchronizedLibrary(Library,Map)}.  Each method is assigned
+ * to a lock group, identified by an arbitrary key; calls to methods in
+ * different groups may proceed concurrently.  Methods named in
+ * {@link #OPTION_SHARED_METHODS} take their group's lock in shared mode,
+ * so that they run concurrently with each other but not with the other
+ * methods of the group, as for a read/write lock:
+ * <pre><code>
+ * Map options = new HashMap();
+ * Map groups = new HashMap();
+ * groups.put("getenv", "env");
+ * groups.put("setenv", "env");
+ * groups.put("strlen", SynchronizedLibrary.UNSYNCHRONIZED);
+ * options.put(SynchronizedLibrary.OPTION_LOCK_GROUPS, groups);
+ * options.put(SynchronizedLibrary.OPTION_SHARED_METHODS, Collections.singleton("getenv"));
+ * options.put(SynchronizedLibrary.OPTION_DEFAULT_LOCK, SynchronizedLibrary.PER_FUNCTION);
+ * CLibrary libc = (CLibrary)Native.synchronizedLibrary(CLibrary.INSTANCE, options);
+ * </code></pre>
+ * Lock groups belong to the underlying {@link NativeLibrary}, so every
+ * library synchronized in this way which uses the same group key shares the
+ * same lock.  Locks are reentrant, so a callback may call back into the
+ * library, but a thread holding a lock in shared mode may not acquire the
+ * same lock in exclusive mode.  Use {@link #getStatistics} to find out
+ * which groups are contended.
+ */
+public class SynchronizedLibrary implements InvocationHandler {
+
+    /** Option key for a {@link Map} from method name to the key of the
+     * lock group for that method.  Overloaded methods share a lock group.
+     */
+    public static final String OPTION_LOCK_GROUPS = "lock-groups";
+    /** Option key for a {@link Collection} of the names of methods which
+     * take their group's lock in shared mode.
+     */
+    public static final String OPTION_SHARED_METHODS = "shared-methods";
+    /** Option key for the lock group of methods not listed in
+     * {@link #OPTION_LOCK_GROUPS}.  By default all such methods share
+     * a single lock group, {@link #LIBRARY}.
+     */
+    public static final String OPTION_DEFAULT_LOCK = "default-lock";
+
+    /** Key of the default lock group, shared by the whole library. */
+    public static final String LIBRARY = "library";
+    /** Lock group value which gives each method its own lock group, keyed
+     * by the method name.
+     */
+    public static final String PER_FUNCTION = "per-function";
+    /** Lock group value for methods which may be called without locking. */
+    public static final String UNSYNCHRONIZED = "unsynchronized";
+
+    // NativeLibrary -> (group key -> Lock)
+    private static final Map libraryLocks = new WeakHashMap();
+
+    private final Library library;
+    private final Library.Handler handler;
+    private final NativeLibrary nativeLibrary;
+    // Method -> Binding, read-only once constructed
+    private final Map bindings = new HashMap();
+
+    /** The lock group and mode used by one method. */
+    private static class Binding {
+        final Lock lock;
+        final boolean shared;
+        Binding(Lock lock, boolean shared) {
+            this.lock = lock;
+            this.shared = shared;
+        }
+    }
+
+    SynchronizedLibrary(Library library, Library.Handler handler, Map options) {
+        this.library = library;
+        this.handler = handler;
+        this.nativeLibrary = handler.getNativeLibrary();
+        Map groups = (Map)options.get(OPTION_LOCK_GROUPS);
+        if (groups == null) {
+            groups = Collections.EMPTY_MAP;
+        }
+        Collection shared = (Collection)options.get(OPTION_SHARED_METHODS);
+        if (shared == null) {
+            shared = Collections.EMPTY_SET;
+        }
+        Object defaultGroup = options.get(OPTION_DEFAULT_LOCK);
+        if (defaultGroup == null) {
+            defaultGroup = LIBRARY;
+        }
+        Method[] methods = handler.getInterfaceClass().getMethods();
+        for (int i=0;i < methods.length;i++) {
+            String name = methods[i].getName();
+            Object key = groups.get(name);
+            if (key == null) {
+                key = defaultGroup;
+            }
+            if (PER_FUNCTION.equals(key)) {
+                key = name;
+            }
+            if (!UNSYNCHRONIZED.equals(key)) {
+                bindings.put(methods[i], new Binding(getLock(nativeLibrary, key),
+                                                     shared.contains(name)));
+            }
+        }
+    }
+
+    private static Lock getLock(NativeLibrary nativeLibrary, Object key) {
+        synchronized(libraryLocks) {
+            Map locks = (Map)libraryLocks.get(nativeLibrary);
+            if (locks == null) {
+                locks = new HashMap();
+                libraryLocks.put(nativeLibrary, locks);
+            }
+            Lock lock = (Lock)locks.get(key);
+            if (lock == null) {
+                lock = new Lock();
+                locks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Binding binding = (Binding)bindings.get(method);
+        if (binding == null) {
+            return handler.invoke(library, method, args);
+        }
+        binding.lock.lock(binding.shared);
+        try {
+            return handler.invoke(library, method, args);
+        }
+        finally {
+            binding.lock.unlock(binding.shared);
+        }
+    }
+
+    /** Returns the usage of each lock group of the given library, as a
+     * {@link Map} from group key to {@link Statistics}.  The library may be
+     * any library mapped from the same {@link NativeLibrary} as one passed
+     * to {@link Native#synchronizedLibrary(Library,Map)}.
+     */
+    public static Map getStatistics(Library library) {
+        NativeLibrary nativeLibrary;
+        InvocationHandler ih = Proxy.isProxyClass(library.getClass())
+            ? Proxy.getInvocationHandler(library) : null;
+        if (ih instanceof SynchronizedLibrary) {
+            nativeLibrary = ((SynchronizedLibrary)ih).nativeLibrary;
+        }
+        else if (ih instanceof Library.Handler) {
+            nativeLibrary = ((Library.Handler)ih).getNativeLibrary();
+        }
+        else {
+            throw new IllegalArgumentException("Unrecognized library: " + library);
+        }
+        Map stats = new HashMap();
+        synchronized(libraryLocks) {
+            Map locks = (Map)libraryLocks.get(nativeLibrary);
+            if (locks != null) {
+                for (Iterator i=locks.entrySet().iterator();i.hasNext();) {
+                    Map.Entry e = (Map.Entry)i.next();
+                    stats.put(e.getKey(), ((Lock)e.getValue()).getStatistics());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /** Reentrant read/write lock which favors waiting writers and keeps
+     * track of contention.
+     */
+    static class Lock {
+        private Thread owner;
+        private int holds;
+        // Thread -> int[] count of shared holds
+        private final Map readers = new HashMap();
+        private int waitingWriters;
+        private long acquisitions;
+        private long sharedAcquisitions;
+        private long contentions;
+        private long waitTime;
+
+        synchronized void lock(boolean shared) {
+            Thread thread = Thread.currentThread();
+            ++acquisitions;
+            if (shared) {
+                ++sharedAcquisitions;
+            }
+            // The exclusive holder may reenter in either mode
+            if (owner == thread) {
+                ++holds;
+                return;
+            }
+            int[] count = (int[])readers.get(thread);
+            if (shared) {
+                if (count != null) {
+                    ++count[0];
+                    return;
+                }
+                if (owner != null || waitingWriters > 0) {
+                    long start = System.currentTimeMillis();
+                    ++contentions;
+                    boolean interrupted = false;
+                    while (owner != null || waitingWriters > 0) {
+                        try {
+                            wait();
+                        }
+                        catch(InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    waitTime += System.currentTimeMillis() - start;
+                    if (interrupted) {
+                        thread.interrupt();
+                    }
+                }
+                readers.put(thread, new int[] { 1 });
+            }
+            else {
+                if (count != null) {
+                    throw new IllegalStateException("Shared lock can not be upgraded to exclusive");
+                }
+                if (owner != null || !readers.isEmpty()) {
+                    long start = System.currentTimeMillis();
+                    ++contentions;
+                    ++waitingWriters;
+                    boolean interrupted = false;
+                    try {
+                        while (owner != null || !readers.isEmpty()) {
+                            try {
+                                wait();
+                            }
+                            catch(InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                    }
+                    finally {
+                        --waitingWriters;
+                    }
+                    waitTime += System.currentTimeMillis() - start;
+                    if (interrupted) {
+                        thread.interrupt();
+                    }
+                }
+                owner = thread;
+                holds = 1;
+            }
+        }
+
+        synchronized void unlock(boolean shared) {
+            Thread thread = Thread.currentThread();
+            if (owner == thread) {
+                if (--holds == 0) {
+                    owner = null;
+                    notifyAll();
+                }
+                return;
+            }
+            int[] count = (int[])readers.get(thread);
+            if (count == null) {
+                throw new IllegalStateException("Lock not held by " + thread);
+            }
+            if (--count[0] == 0) {
+                readers.remove(thread);
+                if (readers.isEmpty()) {
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized Statistics getStatistics() {
+            return new Statistics(acquisitions, sharedAcquisitions, contentions, waitTime);
+        }
+    }
+
+    /** Usage of a lock group at a point in time. */
+    public static class Statistics {
+        private final long acquisitions;
+        private final long sharedAcquisitions;
+        private final long contentions;
+        private final long waitTime;
+
+        Statistics(long acquisitions, long sharedAcquisitions, long contentions, long waitTime) {
+            this.acquisitions = acquisitions;
+            this.sharedAcquisitions = sharedAcquisitions;
+            this.contentions = contentions;
+            this.waitTime = waitTime;
+        }
+
+        /** Returns the number of calls which acquired the lock. */
+        public long getAcquisitionCount() {
+            return acquisitions;
+        }
+
+        /** Returns the number of calls which acquired the lock in shared
+         * mode.
+         */
+        public long getSharedAcquisitionCount() {
+            return sharedAcquisitions;
+        }
+
+        /** Returns the number of calls which had to wait for the lock. */
+        public long getContentionCount() {
+            return contentions;
+        }
+
+        /** Returns the total time in milliseconds spent waiting for the
+         * lock.
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /** Returns the fraction of calls which had to wait for the lock. */
+        public double getContentionRate() {
+            return acquisitions == 0 ? 0 : (double)contentions / acquisitions;
+        }
+
+        public String toString() {
+            return acquisitions + " acquisitions (" + sharedAcquisitions + " shared), "
+                + contentions + " contended, " + waitTime + "ms waiting";
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BindingSnapshotTest extends TestCase {
+
+    /** Registered explicitly by each test. */
+    public static class Snapshot {
+        public static native int returnInt32Argument(int arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native String returnStringArgument(String arg);
+        public static native NativeLong returnLongArgument(NativeLong arg);
+        public static native Pointer returnPointerArgument(Pointer arg);
+    }
+
+    private NativeLibrary lib;
+
+    protected void setUp() {
+        lib = NativeLibrary.getInstance("testlib");
+    }
+
+    protected void tearDown() {
+        Native.unregister(Snapshot.class);
+    }
+
+    private byte[] snapshot(Class cls) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BindingSnapshot.write(cls, os);
+        return os.toByteArray();
+    }
+
+    private Native.MethodBinding[] read(byte[] data) throws IOException {
+        return BindingSnapshot.read(Snapshot.class, new ByteArrayInputStream(data));
+    }
+
+    public void testRegisterFromSnapshot() throws Exception {
+        Native.MethodBinding[] bindings = read(snapshot(Snapshot.class));
+        assertEquals("Wrong number of bindings", 5, bindings.length);
+        long[] handles = BindingSnapshot.register(Snapshot.class, bindings, lib);
+        assertNotNull("Snapshot should match the class", handles);
+        Native.registered(Snapshot.class, lib, handles);
+
+        assertEquals("Wrong int result", 42, Snapshot.returnInt32Argument(42));
+        assertEquals("Wrong double result", Math.PI, Snapshot.returnDoubleArgument(Math.PI), 0);
+        assertEquals("Wrong String result", "snapshot", Snapshot.returnStringArgument("snapshot"));
+        assertEquals("Wrong NativeMapped result", new NativeLong(-1),
+                     Snapshot.returnLongArgument(new NativeLong(-1)));
+        Pointer p = new Pointer(0x12345678);
+        assertEquals("Wrong Pointer result", p, Snapshot.returnPointerArgument(p));
+    }
+
+    public void testSnapshotMatchesReflection() throws Exception {
+        Native.MethodBinding[] bindings = read(snapshot(Snapshot.class));
+        for (int i=0;i < bindings.length;i++) {
+            Native.MethodBinding b = bindings[i];
+            Native.MethodBinding expected = null;
+            java.lang.reflect.Method[] methods = Snapshot.class.getDeclaredMethods();
+            for (int m=0;m < methods.length;m++) {
+                if (methods[m].getName().equals(b.name)) {
+                    expected = Native.getBinding(Snapshot.class, methods[m], null);
+                }
+            }
+            assertNotNull("Unknown method " + b.name, expected);
+            assertEquals("Wrong signature", expected.signature, b.signature);
+            assertEquals("Wrong return conversion", expected.rconversion, b.rconversion);
+            assertEquals("Wrong native return type", expected.rtype, b.rtype);
+            for (int t=0;t < b.conversions.length;t++) {
+                assertEquals("Wrong conversion", expected.conversions[t], b.conversions[t]);
+                assertEquals("Wrong native type", expected.argTypes[t], b.argTypes[t]);
+                assertEquals("Wrong closure type", expected.closureArgTypes[t], b.closureArgTypes[t]);
+            }
+        }
+    }
+
+    public void testStaleSnapshotIgnored() throws Exception {
+        String data = new String(snapshot(Snapshot.class), "UTF-8");
+        data = data.replaceAll("\\(I\\)I", "(J)I");
+        long[] handles = BindingSnapshot.register(Snapshot.class, read(data.getBytes("UTF-8")), lib);
+        assertNull("Snapshot with a mismatched signature should be ignored", handles);
+        try {
+            Snapshot.returnInt32Argument(0);
+            fail("Methods should not remain registered from a stale snapshot");
+        }
+        catch(UnsatisfiedLinkError e) {
+        }
+    }
+
+    public void testMalformedSnapshot() throws Exception {
+        try {
+            read("not a snapshot\n".getBytes("UTF-8"));
+            fail("Snapshot without a header should be rejected");
+        }
+        catch(IOException e) {
+        }
+        try {
+            read((new String(snapshot(Snapshot.class), "UTF-8") + "broken (I)I\n").getBytes("UTF-8"));
+            fail("Truncated snapshot entry should be rejected");
+        }
+        catch(IOException e) {
+        }
+    }
+
+    public void testSnapshotForOtherPlatformRejected() throws Exception {
+        String data = new String(snapshot(Snapshot.class), "UTF-8");
+        String size = " long=" + Native.LONG_SIZE;
+        String other = " long=" + (Native.LONG_SIZE == 8 ? 4 : 8);
+        try {
+            read(data.replaceFirst(size, other).getBytes("UTF-8"));
+            fail("Snapshot generated with a different native long size should be rejected");
+        }
+        catch(IOException e) {
+        }
+        try {
+            read(data.replaceFirst(Native.getAPIChecksum(), "0").getBytes("UTF-8"));
+            fail("Snapshot generated with a different native API should be rejected");
+        }
+        catch(IOException e) {
+        }
+    }
+
+    public void testGenerateResource() throws Exception {
+        File dir = File.createTempFile("snapshot", "");
+        dir.delete();
+        BindingSnapshot.main(new String[] { dir.getAbsolutePath(), Snapshot.class.getName() });
+        File file = new File(dir, "com/sun/jna/BindingSnapshotTest$Snapshot" + BindingSnapshot.SUFFIX);
+        try {
+            assertTrue("Snapshot resource not written: " + file, file.exists());
+        }
+        finally {
+            file.delete();
+            file.getParentFile().delete();
+            file.getParentFile().getParentFile().delete();
+            file.getParentFile().getParentFile().getParentFile().delete();
+            dir.delete();
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(BindingSnapshotTest.class);
+    }
+}
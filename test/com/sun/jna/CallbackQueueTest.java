@@ -0,0 +1,223 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CallbackQueueTest extends TestCase {
+
+    public static interface TestLibrary extends Library {
+        interface VoidCallback extends Callback {
+            void callback();
+        }
+        void callVoidCallback(VoidCallback c);
+        void callVoidCallbackThreaded(VoidCallback c, int count, int ms);
+        interface ArgsCallback extends Callback {
+            void callback(int arg, long arg2, double arg3, Pointer arg4);
+        }
+        void callVoidCallbackWithArgs(ArgsCallback c, int arg, long arg2, double arg3, Pointer arg4);
+        interface Int32Callback extends Callback {
+            int callback(int arg, int arg2);
+        }
+        interface StringCallback extends Callback {
+            void callback(String arg);
+        }
+    }
+
+    TestLibrary lib;
+    CallbackQueue queue;
+
+    protected void setUp() {
+        lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        queue = new CallbackQueue();
+    }
+
+    protected void tearDown() {
+        queue.dispose();
+        lib = null;
+    }
+
+    private void waitFor(int[] called, int count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (called[0] < count) {
+            Thread.sleep(10);
+            if (System.currentTimeMillis() - start > 5000) {
+                fail("Timed out waiting for queued callback, invoked " + called[0] + " times so far");
+            }
+        }
+    }
+
+    public void testQueuedCallbackArguments() throws Exception {
+        final int[] called = { 0 };
+        final Object[] args = new Object[4];
+        final Thread[] thread = { null };
+        TestLibrary.ArgsCallback cb = new TestLibrary.ArgsCallback() {
+            public void callback(int arg, long arg2, double arg3, Pointer arg4) {
+                args[0] = new Integer(arg);
+                args[1] = new Long(arg2);
+                args[2] = new Double(arg3);
+                args[3] = arg4;
+                thread[0] = Thread.currentThread();
+                ++called[0];
+            }
+        };
+        Native.setCallbackQueue(cb, queue);
+        Pointer p = new Pointer(0x12345678);
+        lib.callVoidCallbackWithArgs(cb, -1, 0x123456789AL, 1.5, p);
+        waitFor(called, 1);
+        assertEquals("Wrong int argument", new Integer(-1), args[0]);
+        assertEquals("Wrong long argument", new Long(0x123456789AL), args[1]);
+        assertEquals("Wrong double argument", new Double(1.5), args[2]);
+        assertEquals("Wrong Pointer argument", p, args[3]);
+        assertNotSame("Callback should run on a queue thread",
+                      Thread.currentThread(), thread[0]);
+    }
+
+    public void testQueuedCallbackFromNativeThread() throws Exception {
+        final int[] called = { 0 };
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                ++called[0];
+            }
+        };
+        Native.setCallbackQueue(cb, queue);
+        long attached = Native.getCallbackThreadAttachCount();
+        final int COUNT = 5;
+        lib.callVoidCallbackThreaded(cb, COUNT, 10);
+        waitFor(called, COUNT);
+        assertEquals("Native thread should not be attached",
+                     attached, Native.getCallbackThreadAttachCount());
+    }
+
+    public void testQueuedCallbackOrder() throws Exception {
+        final List values = Collections.synchronizedList(new ArrayList());
+        final int[] called = { 0 };
+        TestLibrary.ArgsCallback cb = new TestLibrary.ArgsCallback() {
+            public void callback(int arg, long arg2, double arg3, Pointer arg4) {
+                values.add(new Integer(arg));
+                ++called[0];
+            }
+        };
+        Native.setCallbackQueue(cb, queue);
+        final int COUNT = 100;
+        for (int i=0;i < COUNT;i++) {
+            lib.callVoidCallbackWithArgs(cb, i, 0, 0, null);
+        }
+        waitFor(called, COUNT);
+        for (int i=0;i < COUNT;i++) {
+            assertEquals("Events delivered out of order", new Integer(i), values.get(i));
+        }
+    }
+
+    public void testDropWhenFull() throws Exception {
+        final int[] called = { 0 };
+        final Object lock = new Object();
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                synchronized(lock) {
+                    ++called[0];
+                }
+            }
+        };
+        CallbackQueue small = new CallbackQueue(2, 1);
+        try {
+            Native.setCallbackQueue(cb, small);
+            final int COUNT = 10;
+            synchronized(lock) {
+                // The queue thread may drain one batch before blocking
+                for (int i=0;i < COUNT;i++) {
+                    lib.callVoidCallback(cb);
+                }
+            }
+            long dropped = small.getDroppedCount();
+            assertTrue("Events should be dropped when the queue is full: " + dropped,
+                       dropped >= COUNT - 4);
+            waitFor(called, (int)(COUNT - dropped));
+            assertEquals("Dropped events should not be delivered",
+                         COUNT - dropped, called[0]);
+        }
+        finally {
+            small.dispose();
+        }
+    }
+
+    public void testDisposeRevertsToSynchronous() throws Exception {
+        final int[] called = { 0 };
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                ++called[0];
+            }
+        };
+        Native.setCallbackQueue(cb, queue);
+        lib.callVoidCallback(cb);
+        waitFor(called, 1);
+        queue.dispose();
+        lib.callVoidCallback(cb);
+        assertEquals("Callback should be invoked synchronously", 2, called[0]);
+    }
+
+    public void testDisposeWhileQueueing() throws Exception {
+        final int[] called = { 0 };
+        final Object lock = new Object();
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                synchronized(lock) {
+                    ++called[0];
+                }
+            }
+        };
+        Native.setCallbackQueue(cb, queue);
+        lib.callVoidCallbackThreaded(cb, 100, 1);
+        waitFor(called, 5);
+        queue.dispose();
+        int count;
+        synchronized(lock) {
+            count = called[0];
+        }
+        // Pending events are discarded; later calls from the native thread
+        // run synchronously
+        waitFor(called, count + 5);
+        // Keep the callback alive until the native thread is done with it
+        do {
+            synchronized(lock) {
+                count = called[0];
+            }
+            Thread.sleep(100);
+        } while (count != called[0]);
+    }
+
+    public void testInvalidQueuedCallback() {
+        try {
+            Native.setCallbackQueue(new TestLibrary.Int32Callback() {
+                public int callback(int arg, int arg2) { return 0; }
+            }, queue);
+            fail("Queued callback must not return a value");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            Native.setCallbackQueue(new TestLibrary.StringCallback() {
+                public void callback(String arg) { }
+            }, queue);
+            fail("Queued callback arguments must be primitive or Pointer");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(CallbackQueueTest.class);
+    }
+}
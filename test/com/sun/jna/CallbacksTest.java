@@ -965,7 +965,15 @@ public class CallbacksTest extends TestCase {
                 ++called[0];
             }
         };
-        callThreadedCallback(cb, null, 1, 100, called);
+        // Threads are detached unless jna.callback.detach=false
+        boolean detach = Native.isCallbackThreadDetach();
+        Native.setCallbackThreadDetach(true);
+        try {
+            callThreadedCallback(cb, null, 1, 100, called);
+        }
+        finally {
+            Native.setCallbackThreadDetach(detach);
+        }
 
         assertFalse("Callback thread default should not be attached as daemon", daemon[0]);
         // thread name and group are not defined
@@ -1036,6 +1044,49 @@ public class CallbacksTest extends TestCase {
                      1, threads.size());
     }
 
+    // With detaching disabled, threads stay attached until the native
+    // thread exits
+    public void testCallbackThreadPersistenceWithoutDetach() throws Exception {
+        final int[] called = {0};
+        final Set threads = new HashSet();
+        final boolean[] daemon = {false};
+
+        final int COUNT = 5;
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                threads.add(Thread.currentThread());
+                daemon[0] = Thread.currentThread().isDaemon();
+                ++called[0];
+            }
+        };
+        // The default may be changed with jna.callback.detach
+        boolean detach = Native.isCallbackThreadDetach();
+        long attached = Native.getCallbackThreadAttachCount();
+        long detached = Native.getCallbackThreadDetachCount();
+        Native.setCallbackThreadDetach(false);
+        try {
+            callThreadedCallback(cb, null, COUNT, 100, called);
+        }
+        finally {
+            Native.setCallbackThreadDetach(detach);
+        }
+
+        assertEquals("Multiple callbacks on a given native thread should use the same Thread mapping: " + threads,
+                     1, threads.size());
+        assertTrue("Thread left attached should be a daemon", daemon[0]);
+        assertEquals("Thread should be attached once",
+                     attached + 1, Native.getCallbackThreadAttachCount());
+        long start = System.currentTimeMillis();
+        while (Native.getCallbackThreadDetachCount() == detached) {
+            Thread.sleep(10);
+            if (System.currentTimeMillis() - start > 5000) {
+                fail("Timed out waiting for thread to be detached on exit");
+            }
+        }
+        assertEquals("Thread should be detached once on exit",
+                     detached + 1, Native.getCallbackThreadDetachCount());
+    }
+
     // Thread object is never GC'd on linux-amd64 and (sometimes) win32-amd64
     public void testAttachedThreadCleanupOnExit() throws Exception {
         final Set threads = new HashSet();
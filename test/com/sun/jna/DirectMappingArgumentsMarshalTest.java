@@ -0,0 +1,68 @@
+/* Copyright (c) 2013 Timothy Wall, All Rights Reserved
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Exercise the same methods as {@link ArgumentsMarshalTest}, using a
+ * generated implementation of the library interface.
+ */
+public class DirectMappingArgumentsMarshalTest extends ArgumentsMarshalTest {
+
+    protected void setUp() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_DIRECT_MAPPING, Boolean.TRUE);
+        lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class, options);
+    }
+
+    public void testGeneratedImplementation() {
+        assertFalse("Library should not be a proxy",
+                    Proxy.isProxyClass(lib.getClass()));
+        assertSame("Wrong declaring class for generated implementation",
+                   TestLibrary.class, lib.getClass().getInterfaces()[0]);
+    }
+
+    public void testGeneratedClassReused() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_DIRECT_MAPPING, Boolean.TRUE);
+        Object lib2 = Native.loadLibrary("testlib", TestLibrary.class, options);
+        assertNotSame("Each load should return a new instance", lib, lib2);
+        assertSame("Generated class should be reused for the same library",
+                   lib.getClass(), lib2.getClass());
+    }
+
+    public static interface OptionalLibrary extends Library {
+        int returnInt32Argument(int arg);
+        int missingFunction(int arg);
+    }
+
+    public void testMissingFunctionReportedOnInvoke() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_DIRECT_MAPPING, Boolean.TRUE);
+        OptionalLibrary lib = (OptionalLibrary)
+            Native.loadLibrary("testlib", OptionalLibrary.class, options);
+        assertEquals("Wrong result", 42, lib.returnInt32Argument(42));
+        try {
+            lib.missingFunction(0);
+            fail("Missing function should throw UnsatisfiedLinkError");
+        }
+        catch(UnsatisfiedLinkError e) {
+        }
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(DirectMappingArgumentsMarshalTest.class);
+    }
+}
@@ -77,6 +77,26 @@ public class LastErrorTest extends TestCase {
         }
     }
 
+    public void testLastErrorPreservedPerThread() throws Exception {
+        final TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class, OPTIONS);
+        final int ERROR = 42;
+        lib.noThrowLastError(ERROR);
+        final int[] other = { -1 };
+        Thread t = new Thread() {
+            public void run() {
+                lib.noThrowLastError(ERROR + 1);
+                other[0] = Native.getLastError();
+            }
+        };
+        t.start();
+        t.join();
+        assertEquals("Wrong last error on other thread", ERROR + 1, other[0]);
+        assertEquals("Last error not preserved per thread", ERROR, Native.getLastError());
+
+        Native.setLastError(ERROR + 2);
+        assertEquals("Last error should reflect setLastError", ERROR + 2, Native.getLastError());
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(LastErrorTest.class);
     }
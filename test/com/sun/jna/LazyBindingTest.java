@@ -0,0 +1,96 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class LazyBindingTest extends TestCase {
+
+    /** Registered explicitly by each test. */
+    public static class Optional {
+        public static native int returnInt32Argument(int arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native int missingFunction(int arg);
+    }
+
+    private NativeLibrary lib;
+
+    protected void setUp() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_LAZY_BINDING, Boolean.TRUE);
+        lib = NativeLibrary.getInstance("testlib", options);
+    }
+
+    protected void tearDown() {
+        Native.unregister(Optional.class);
+    }
+
+    public void testMissingFunctionFailsOnInvocation() {
+        Native.register(Optional.class, lib);
+        assertEquals("Wrong int result", 42, Optional.returnInt32Argument(42));
+        assertEquals("Wrong double result", Math.E, Optional.returnDoubleArgument(Math.E), 0);
+        for (int i=0;i < 2;i++) {
+            try {
+                Optional.missingFunction(i);
+                fail("Missing function should fail when invoked");
+            }
+            catch(UnsatisfiedLinkError e) {
+            }
+        }
+        assertEquals("Methods should still work after a failed lookup",
+                     7, Optional.returnInt32Argument(7));
+    }
+
+    public void testEagerBindingFailsOnRegistration() {
+        try {
+            Native.register(Optional.class, NativeLibrary.getInstance("testlib"));
+            fail("Missing function should fail registration without lazy binding");
+        }
+        catch(UnsatisfiedLinkError e) {
+        }
+    }
+
+    public void testConcurrentFirstInvocation() throws Exception {
+        Native.register(Optional.class, lib);
+        final int COUNT = 8;
+        final int[] results = new int[COUNT];
+        final Throwable[] errors = new Throwable[COUNT];
+        Thread[] threads = new Thread[COUNT];
+        for (int i=0;i < COUNT;i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[index] = Optional.returnInt32Argument(index);
+                    }
+                    catch(Throwable t) {
+                        errors[index] = t;
+                    }
+                }
+            };
+        }
+        for (int i=0;i < COUNT;i++) {
+            threads[i].start();
+        }
+        for (int i=0;i < COUNT;i++) {
+            threads[i].join();
+            assertNull("Unexpected error in thread " + i + ": " + errors[i], errors[i]);
+            assertEquals("Wrong result in thread " + i, i, results[i]);
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(LazyBindingTest.class);
+    }
+}
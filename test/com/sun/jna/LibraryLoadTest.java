@@ -68,6 +68,36 @@ public class LibraryLoadTest extends TestCase {
     public void testLoadCLibrary() {
         load();
     }
+
+    public void testConcurrentInvocation() throws Exception {
+        final CLibrary lib = (CLibrary)load();
+        final Throwable[] errors = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for (int i=0;i < threads.length;i++) {
+            final String arg = "thread " + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n=0;n < 1000;n++) {
+                            assertEquals("Wrong result", arg.length(), lib.strlen(arg));
+                        }
+                    }
+                    catch(Throwable t) {
+                        errors[0] = t;
+                    }
+                }
+            };
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].start();
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].join();
+        }
+        if (errors[0] != null) {
+            fail("Concurrent invocation failed: " + errors[0]);
+        }
+    }
     
     private static final String UNICODE = "\u0444\u043b\u0441\u0432\u0443";
     private void copy(File src, File dst) throws Exception {
@@ -0,0 +1,201 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MappedMemoryTest extends TestCase {
+
+    public static class Record extends Structure {
+        public int id;
+        public double value;
+        public Record() { }
+        public Record(Pointer p) {
+            super(p);
+        }
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "id", "value" });
+        }
+    }
+
+    private static final int SIZE = 3 * 65536 + 100;
+
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile(getName(), ".dat");
+        file.deleteOnExit();
+        byte[] data = new byte[SIZE];
+        for (int i=0;i < data.length;i++) {
+            data[i] = (byte)i;
+        }
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int count = 0;
+            while (count < data.length) {
+                count += is.read(data, count, data.length - count);
+            }
+        }
+        finally {
+            is.close();
+        }
+        return data;
+    }
+
+    public void testReadMapping() throws IOException {
+        MappedMemory m = new MappedMemory(file);
+        assertEquals("Wrong size", SIZE, m.size());
+        assertFalse("Mapping should be read-only", m.isWritable());
+        for (int i=0;i < SIZE;i += 997) {
+            assertEquals("Wrong byte at " + i, (byte)i, m.getByte(i));
+        }
+        m.advise(MappedMemory.ADVICE_SEQUENTIAL);
+        m.close();
+        assertFalse("Closed mapping should be invalid", m.valid());
+    }
+
+    public void testUnalignedOffset() throws IOException {
+        long offset = 65536 + 13;
+        MappedMemory m = new MappedMemory(file, offset, 1000, false);
+        assertEquals("Wrong offset", offset, m.getOffset());
+        for (int i=0;i < 1000;i++) {
+            assertEquals("Wrong byte at " + i, (byte)(offset + i), m.getByte(i));
+        }
+        m.close();
+    }
+
+    public void testWriteAndSync() throws IOException {
+        MappedMemory m = new MappedMemory(file, 100, 1000, true);
+        m.setInt(0, 0x12345678);
+        m.setString(8, "mapped");
+        m.sync();
+        m.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(100);
+            int value = raf.readInt();
+            if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                value = Integer.reverseBytes(value);
+            }
+            assertEquals("Written value not in file", 0x12345678, value);
+        }
+        finally {
+            raf.close();
+        }
+        byte[] data = readFile();
+        assertEquals("Written string not in file", "mapped", new String(data, 108, 6, "ASCII"));
+        assertEquals("Byte before mapping modified", (byte)99, data[99]);
+    }
+
+    public void testStructureOverMapping() throws IOException {
+        MappedMemory m = new MappedMemory(file, true);
+        Record r = new Record(m.share(65536 + 8));
+        r.id = 42;
+        r.value = Math.PI;
+        r.write();
+
+        MappedMemory m2 = new MappedMemory(file, 65536, 4096, false);
+        Record r2 = new Record(m2.share(8));
+        r2.read();
+        assertEquals("Wrong int field seen through another mapping", 42, r2.id);
+        assertEquals("Wrong double field seen through another mapping", Math.PI, r2.value, 0);
+        m.close();
+        m2.close();
+    }
+
+    public void testBoundsChecked() throws IOException {
+        MappedMemory m = new MappedMemory(file, 0, 100, false);
+        try {
+            m.getByte(100);
+            fail("Read beyond the mapping should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m.share(50, 51);
+            fail("View beyond the mapping should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m.advise(90, 20, MappedMemory.ADVICE_WILLNEED);
+            fail("Advice beyond the mapping should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        m.close();
+        try {
+            m.sync();
+            fail("Closed mapping can not be synced");
+        }
+        catch(IllegalStateException e) {
+        }
+    }
+
+    public void testInvalidArguments() throws IOException {
+        try {
+            new MappedMemory(file, SIZE - 10, 11, false);
+            fail("Mapping beyond the end of the file should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            new MappedMemory(file, -1, 10, false);
+            fail("Negative offset should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            new MappedMemory(file, 0, 0, false);
+            fail("Empty mapping should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        File missing = new File(file.getPath() + ".missing");
+        try {
+            new MappedMemory(missing, 0, 1, false);
+            fail("Mapping a missing file should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        catch(IOException e) {
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MappedMemoryTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class MemoryPoolTest extends TestCase {
+
+    private boolean wasEnabled;
+
+    protected void setUp() {
+        wasEnabled = MemoryPool.isEnabled();
+        MemoryPool.setEnabled(true);
+    }
+
+    protected void tearDown() {
+        MemoryPool.setEnabled(wasEnabled);
+    }
+
+    public void testReuseAfterClose() {
+        Memory m1 = new Memory(24);
+        long peer = m1.peer;
+        m1.close();
+        Memory m2 = new Memory(32);
+        assertEquals("Closed block should be reused from the same size class",
+                     peer, m2.peer);
+        m2.close();
+    }
+
+    public void testDistinctBlocks() {
+        Set peers = new HashSet();
+        Memory[] blocks = new Memory[MemoryPool.CACHE_SIZE * 3];
+        for (int i=0;i < blocks.length;i++) {
+            blocks[i] = new Memory(16);
+            blocks[i].setInt(0, i);
+            assertTrue("Block allocated twice", peers.add(new Long(blocks[i].peer)));
+        }
+        for (int i=0;i < blocks.length;i++) {
+            assertEquals("Block contents overwritten", i, blocks[i].getInt(0));
+            blocks[i].close();
+        }
+    }
+
+    public void testLargeAllocationNotPooled() {
+        MemoryPool.Statistics before = MemoryPool.getStatistics();
+        Memory m = new Memory(MemoryPool.MAX_SIZE + 1);
+        MemoryPool.Statistics after = MemoryPool.getStatistics();
+        assertEquals("Large allocation should not use the pool",
+                     before.getAllocationCount(), after.getAllocationCount());
+        m.close();
+    }
+
+    public void testDisabled() {
+        MemoryPool.setEnabled(false);
+        MemoryPool.Statistics before = MemoryPool.getStatistics();
+        Memory m = new Memory(16);
+        MemoryPool.Statistics after = MemoryPool.getStatistics();
+        assertEquals("Disabled pool should not be used",
+                     before.getAllocationCount(), after.getAllocationCount());
+        m.close();
+    }
+
+    public void testStatistics() {
+        MemoryPool.Statistics before = MemoryPool.getStatistics();
+        Memory m = new Memory(100);
+        MemoryPool.Statistics stats = MemoryPool.getStatistics();
+        int cls = 3;
+        assertEquals("Wrong size class block size", 128, stats.getBlockSize(cls));
+        assertEquals("Allocation should be counted in its size class",
+                     before.getAllocationCount(cls) + 1, stats.getAllocationCount(cls));
+        assertEquals("Wrong bytes in use",
+                     before.getBytesInUse(cls) + 128, stats.getBytesInUse(cls));
+        assertTrue("Pool should have reserved memory",
+                   stats.getBytesReserved(cls) >= MemoryPool.SLAB_SIZE);
+        m.close();
+        stats = MemoryPool.getStatistics();
+        assertEquals("Closed block should not be in use",
+                     before.getBytesInUse(cls), stats.getBytesInUse(cls));
+
+        for (int i=0;i < 10;i++) {
+            new Memory(100).close();
+        }
+        stats = MemoryPool.getStatistics();
+        assertTrue("Repeated allocations should hit the thread cache: " + stats,
+                   stats.getHitRate(cls) > 0);
+    }
+
+    public void testReclaimFromExitedThread() throws Exception {
+        final Set peers = new HashSet();
+        Thread t = new Thread() {
+            public void run() {
+                Memory[] m = new Memory[MemoryPool.CACHE_SIZE];
+                for (int i=0;i < m.length;i++) {
+                    m[i] = new Memory(64);
+                    peers.add(new Long(m[i].peer));
+                }
+                for (int i=0;i < m.length;i++) {
+                    m[i].close();
+                }
+            }
+        };
+        t.start();
+        t.join();
+        // Recovers the blocks cached by the exited thread
+        MemoryPool.getStatistics();
+        Memory[] m = new Memory[MemoryPool.CACHE_SIZE * 2];
+        boolean reused = false;
+        for (int i=0;i < m.length;i++) {
+            m[i] = new Memory(64);
+            reused |= peers.contains(new Long(m[i].peer));
+        }
+        for (int i=0;i < m.length;i++) {
+            m[i].close();
+        }
+        assertTrue("Blocks cached by an exited thread should be reused", reused);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryPoolTest.class);
+    }
+}
@@ -48,6 +48,62 @@ public class MemoryTest extends TestCase {
         assertNull("Memory not GC'd", ref.get());
     }
 
+    public void testFreeUnreachableMemory() throws Exception {
+        final int SIZE = 1024*1024;
+        Memory.purge();
+        long outstanding = Memory.getOutstandingBytes();
+        Memory m = new Memory(SIZE);
+        assertTrue("Allocation not counted",
+                   Memory.getOutstandingBytes() >= outstanding + SIZE);
+        m = null;
+        for (int i=0;i < 100 && Memory.getOutstandingBytes() >= outstanding + SIZE;i++) {
+            System.gc();
+            Thread.sleep(10);
+            Memory.purge();
+        }
+        assertTrue("Unreachable memory not freed",
+                   Memory.getOutstandingBytes() < outstanding + SIZE);
+    }
+
+    private static class DisposedMemory extends Memory {
+        static volatile int disposed;
+        DisposedMemory() {
+            super(16);
+        }
+        protected void dispose() {
+            ++disposed;
+            super.dispose();
+        }
+    }
+
+    public void testDisposeOverrideCalledWhenUnreachable() throws Exception {
+        DisposedMemory.disposed = 0;
+        new DisposedMemory();
+        for (int i=0;i < 100 && DisposedMemory.disposed == 0;i++) {
+            System.gc();
+            System.runFinalization();
+            Thread.sleep(10);
+        }
+        assertEquals("Overridden dispose not called", 1, DisposedMemory.disposed);
+    }
+
+    public void testClose() {
+        Memory m = new Memory(10);
+        long outstanding = Memory.getOutstandingAllocations();
+        m.close();
+        assertFalse("Memory should be invalid after close", m.valid());
+        // Other unreachable memory may be freed concurrently
+        assertTrue("Allocation not released on close",
+                   Memory.getOutstandingAllocations() <= outstanding - 1);
+        m.close();
+
+        StringArray sa = new StringArray(new String[] { "one", "two" });
+        outstanding = Memory.getOutstandingAllocations();
+        sa.close();
+        assertTrue("String array memory not released on close",
+                   Memory.getOutstandingAllocations() <= outstanding - 3);
+    }
+
     public void testShareMemory() {
         Memory base = new Memory(8);
         Pointer shared = base.share(0);
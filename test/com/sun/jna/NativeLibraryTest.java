@@ -13,6 +13,11 @@
 package com.sun.jna;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -225,6 +230,113 @@ public class NativeLibraryTest extends TestCase {
         Native.loadLibrary("testlib", TestLibrary.class, options);
     }
 
+    public void testConcurrentLoadsShareInstance() throws Exception {
+        NativeLibrary.disposeAll();
+        final NativeLibrary[] libs = new NativeLibrary[8];
+        Thread[] threads = new Thread[libs.length];
+        for (int i=0;i < threads.length;i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    libs[index] = NativeLibrary.getInstance("testlib");
+                }
+            };
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].start();
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].join();
+        }
+        for (int i=0;i < libs.length;i++) {
+            assertSame("Concurrent loads should share a library instance", libs[0], libs[i]);
+        }
+    }
+
+    private File copy(File src, File dst) throws IOException {
+        InputStream is = new FileInputStream(src);
+        try {
+            OutputStream os = new FileOutputStream(dst);
+            try {
+                byte[] buf = new byte[8192];
+                int count;
+                while ((count = is.read(buf)) > 0) {
+                    os.write(buf, 0, count);
+                }
+            }
+            finally {
+                os.close();
+            }
+        }
+        finally {
+            is.close();
+        }
+        dst.deleteOnExit();
+        return dst;
+    }
+
+    public void testResolutionCache() throws Exception {
+        File dir = File.createTempFile("jna-cache", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        // Writing the cache into the library's directory must not
+        // invalidate its entries
+        File cacheFile = new File(dir, "libraries.properties");
+        cacheFile.deleteOnExit();
+        String oldCache = System.getProperty("jna.library.cache");
+        System.setProperty("jna.library.cache", cacheFile.getAbsolutePath());
+        try {
+            File testlib = NativeLibrary.getInstance("testlib").getFile();
+            String name = "cached" + Long.toHexString(System.currentTimeMillis());
+            File lib = copy(testlib, new File(dir, testlib.getName().replaceAll("testlib", name)));
+            NativeLibrary.addSearchPath(name, dir.getAbsolutePath());
+            NativeLibrary.ResolutionCache cache = NativeLibrary.ResolutionCache.getInstance();
+
+            int hits = cache.getHitCount();
+            NativeLibrary nl = NativeLibrary.getInstance(name);
+            assertEquals("Wrong library loaded", lib.getAbsolutePath(), nl.getFile().getAbsolutePath());
+            assertEquals("Library should not be found in an empty cache", hits, cache.getHitCount());
+            assertTrue("Resolved path should be saved", cacheFile.exists());
+
+            nl.dispose();
+            nl = NativeLibrary.getInstance(name);
+            assertEquals("Library should be found in the cache", hits + 1, cache.getHitCount());
+            assertEquals("Wrong library loaded from cache", lib.getAbsolutePath(), nl.getFile().getAbsolutePath());
+
+            nl.dispose();
+            lib.setLastModified(lib.lastModified() - 10000);
+            nl = NativeLibrary.getInstance(name);
+            assertEquals("Modified library should not be found in the cache", hits + 1, cache.getHitCount());
+            nl.dispose();
+
+            if (Platform.isLinux()) {
+                // Versioned names are matched only after the system
+                // loader fails
+                String vname = name + "v";
+                File vlib = copy(testlib, new File(dir, "lib" + vname + ".so.1"));
+                vlib.deleteOnExit();
+                NativeLibrary.addSearchPath(vname, dir.getAbsolutePath());
+                nl = NativeLibrary.getInstance(vname);
+                assertEquals("Wrong versioned library loaded", vlib.getAbsolutePath(), nl.getFile().getAbsolutePath());
+                nl.dispose();
+                hits = cache.getHitCount();
+                nl = NativeLibrary.getInstance(vname);
+                assertEquals("Versioned match should be cached", hits + 1, cache.getHitCount());
+                assertEquals("Wrong versioned library loaded from cache", vlib.getAbsolutePath(), nl.getFile().getAbsolutePath());
+                nl.dispose();
+            }
+        }
+        finally {
+            if (oldCache != null) {
+                System.setProperty("jna.library.cache", oldCache);
+            }
+            else {
+                System.getProperties().remove("jna.library.cache");
+            }
+        }
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(NativeLibraryTest.class);
     }
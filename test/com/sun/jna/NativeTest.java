@@ -13,12 +13,18 @@
 package com.sun.jna;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 import junit.framework.TestCase;
 
@@ -336,6 +342,46 @@ public class NativeTest extends TestCase {
         assertEquals("Bad replace", "abcaefa", Native.replace("z", "a", "zbczefz"));
     }
 
+    public void testPrimitiveSignature() {
+        assertEquals("Empty arguments should be primitive",
+                     0, Native.getPrimitiveSignature(new Object[0]));
+        Object[] args = { new Integer(1), new Double(2), null, new Pointer(1) };
+        assertTrue("Primitive and pointer arguments should be primitive",
+                   Native.getPrimitiveSignature(args) != -1);
+        assertEquals("Wrong argument count in signature",
+                     args.length, Native.getPrimitiveSignature(args) & 0xF);
+        assertEquals("String arguments require conversion",
+                     -1, Native.getPrimitiveSignature(new Object[] { "" }));
+        assertEquals("Array arguments require conversion",
+                     -1, Native.getPrimitiveSignature(new Object[] { new int[1] }));
+        Object[] many = new Object[Native.MAX_PRIMITIVE_ARGS + 1];
+        assertEquals("Too many arguments for primitive invocation",
+                     -1, Native.getPrimitiveSignature(many));
+        Class[] types = { int.class, double.class, Pointer.class, Pointer.class };
+        assertEquals("Declared types should give the same signature as their values",
+                     Native.getPrimitiveSignature(args), Native.getPrimitiveSignature(types));
+        assertEquals("String parameters require conversion",
+                     -1, Native.getPrimitiveSignature(new Class[] { String.class }));
+    }
+
+    public void testPrimitiveInvocation() {
+        NativeLibrary lib = NativeLibrary.getInstance("testlib");
+        Function f = lib.getFunction("checkDoubleArgumentAlignment");
+        assertEquals("Wrong result for primitive float/double arguments",
+                     10d, f.invokeDouble(new Object[] {
+                         new Float(1), new Double(2), new Float(3), new Double(4)
+                     }), 0);
+        f = lib.getFunction("checkInt64ArgumentAlignment");
+        assertEquals("Wrong result for primitive int/long arguments",
+                     0x3333333344444444L, f.invokeLong(new Object[] {
+                         new Integer(0x10101010), new Long(0x1111111111111111L),
+                         new Integer(0x01010101), new Long(0x2222222222222222L)
+                     }));
+        f = lib.getFunction("returnInt8Argument");
+        assertEquals("Wrong result for primitive byte argument",
+                     (byte)-1, (byte)f.invokeInt(new Object[] { new Byte((byte)-1) }));
+    }
+
     public void testRemoveTemporaries() throws Exception {
         File dir = Native.getTempDir();
         File tmp = new File(dir, "jna");
@@ -351,6 +397,70 @@ public class NativeTest extends TestCase {
         }
     }
 
+    private byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int count = 0;
+            while (count < data.length) {
+                count += is.read(data, count, data.length - count);
+            }
+        }
+        finally {
+            is.close();
+        }
+        return data;
+    }
+
+    public void testCachedLibraryExtraction() throws Exception {
+        File dir = File.createTempFile("jnacache", "");
+        dir.delete();
+        File jar = File.createTempFile("jnacache", ".jar");
+        byte[] content = new byte[100000];
+        for (int i=0;i < content.length;i++) {
+            content[i] = (byte)(i * 31);
+        }
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(jar));
+        os.putNextEntry(new ZipEntry("libcached.so"));
+        os.write(content);
+        os.close();
+        URL url = new URL("jar:" + jar.toURI().toURL() + "!/libcached.so");
+        File lib = null;
+        try {
+            lib = Native.getCachedLibrary(url, "libcached.so", dir);
+            assertEquals("Wrong cache directory", dir, lib.getParentFile());
+            assertTrue("Cached name should include a checksum: " + lib.getName(),
+                       lib.getName().startsWith("libcached-") && lib.getName().endsWith(".so"));
+            assertEquals("Cached name should include a SHA-256 digest: " + lib.getName(),
+                         "libcached-".length() + 64 + ".so".length(), lib.getName().length());
+            assertTrue("Wrong cached content", Arrays.equals(content, readFile(lib)));
+            assertEquals("Temporary files left in cache", 1, dir.listFiles().length);
+
+            long stamp = lib.lastModified() - 60000;
+            lib.setLastModified(stamp);
+            assertEquals("Wrong cached file", lib, Native.getCachedLibrary(url, "libcached.so", dir));
+            assertEquals("Valid cached file should not be rewritten", stamp, lib.lastModified());
+
+            FileOutputStream fos = new FileOutputStream(lib);
+            fos.write(content, 0, content.length / 2);
+            fos.close();
+            assertEquals("Wrong cached file", lib, Native.getCachedLibrary(url, "libcached.so", dir));
+            assertTrue("Truncated cached file should be replaced", Arrays.equals(content, readFile(lib)));
+
+            File plain = Native.getCachedLibrary(jar.toURI().toURL(), "libcached.so", dir);
+            assertTrue("Different content should be cached separately", !plain.equals(lib));
+            assertTrue("Wrong cached content", Arrays.equals(readFile(jar), readFile(plain)));
+            plain.delete();
+        }
+        finally {
+            if (lib != null) {
+                lib.delete();
+            }
+            dir.delete();
+            jar.delete();
+        }
+    }
+
     public static void main(String[] args) {
         if (args.length == 0) {
             junit.textui.TestRunner.run(NativeTest.class);
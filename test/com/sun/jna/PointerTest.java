@@ -63,20 +63,76 @@ public class PointerTest extends TestCase {
             assertEquals("Wrong decoded value", VALUE, m.getString(0));
         }
         finally {
-            if (old != null) {
-                System.setProperty("jna.encoding", old);
+            restoreEncoding(old);
+        }
+    }
+
+    private void restoreEncoding(String old) {
+        if (old != null) {
+            System.setProperty("jna.encoding", old);
+        }
+        else {
+            Map props = System.getProperties();
+            props.remove("jna.encoding");
+            Properties newProps = new Properties();
+            for (Iterator i = props.entrySet().iterator();i.hasNext();) {
+                Entry e = (Entry)i.next();
+                newProps.setProperty(e.getKey().toString(), e.getValue().toString());
             }
-            else {
-                Map props = System.getProperties();
-                props.remove("jna.encoding");
-                Properties newProps = new Properties();
-                for (Iterator i = props.entrySet().iterator();i.hasNext();) {
-                    Entry e = (Entry)i.next();
-                    newProps.setProperty(e.getKey().toString(), e.getValue().toString());
-                }
-                System.setProperties(newProps);
+            System.setProperties(newProps);
+        }
+    }
+
+    public void testStringEncodingsMatchJava() throws Exception {
+        String old = System.getProperty("jna.encoding");
+        String VALUE = "ascii \u00e9\u00ff \u0444\u20ac \ud834\udd1e \ud834 \udd1e end";
+        String[] ENCODINGS = { "UTF-8", "US-ASCII", "ISO-8859-1" };
+        try {
+            for (int i=0;i < ENCODINGS.length;i++) {
+                String enc = ENCODINGS[i];
+                System.setProperty("jna.encoding", enc);
+                byte[] expected = VALUE.getBytes(enc);
+                assertEquals("Wrong encoded length (" + enc + ")",
+                             expected.length, Native.getEncodedLength(VALUE));
+                Memory m = new Memory(expected.length + 1);
+                m.setString(0, VALUE);
+                assertTrue("Wrong encoding (" + enc + ")",
+                           Arrays.equals(expected, m.getByteArray(0, expected.length)));
+                assertEquals("Missing NUL terminator (" + enc + ")",
+                             0, m.getByte(expected.length));
+                assertEquals("Wrong decoded value (" + enc + ")",
+                             new String(expected, enc), m.getString(0));
+
+                NativeString ns = new NativeString(VALUE);
+                assertTrue("Wrong NativeString encoding (" + enc + ")",
+                           Arrays.equals(expected, ns.getPointer().getByteArray(0, expected.length)));
             }
         }
+        finally {
+            restoreEncoding(old);
+        }
+    }
+
+    public void testDecodeInvalidString() throws Exception {
+        String old = System.getProperty("jna.encoding");
+        byte[] INVALID = { 'a', (byte)0xC0, (byte)0x80, (byte)0xED, (byte)0xA0,
+                           (byte)0x80, (byte)0xF4, (byte)0x90, (byte)0x80,
+                           (byte)0x80, (byte)0xE2, (byte)0x82, 'z' };
+        String[] ENCODINGS = { "UTF-8", "US-ASCII", "ISO-8859-1" };
+        try {
+            Memory m = new Memory(INVALID.length + 1);
+            m.write(0, INVALID, 0, INVALID.length);
+            m.setByte(INVALID.length, (byte)0);
+            for (int i=0;i < ENCODINGS.length;i++) {
+                String enc = ENCODINGS[i];
+                System.setProperty("jna.encoding", enc);
+                assertEquals("Wrong decoded value (" + enc + ")",
+                             new String(INVALID, enc), m.getString(0));
+            }
+        }
+        finally {
+            restoreEncoding(old);
+        }
     }
     
     public static class TestPointerType extends PointerType {
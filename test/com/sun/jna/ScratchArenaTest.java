@@ -0,0 +1,100 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class ScratchArenaTest extends TestCase {
+
+    public void testAllocateOutsideMark() {
+        Pointer p = ScratchArena.get().allocate(16);
+        assertEquals("Allocation outside a mark should use Memory",
+                     Memory.class, p.getClass());
+    }
+
+    public void testReuseAfterRelease() {
+        ScratchArena arena = ScratchArena.get();
+        long mark = arena.mark();
+        Pointer p1 = arena.allocate(16);
+        Pointer p2 = arena.allocate(16);
+        assertFalse("Allocations should not overlap", p1.equals(p2));
+        arena.release(mark);
+
+        mark = arena.mark();
+        Pointer p3 = arena.allocate(16);
+        arena.release(mark);
+        assertEquals("Memory should be reused after release", p1, p3);
+    }
+
+    public void testNestedMarks() {
+        ScratchArena arena = ScratchArena.get();
+        long outer = arena.mark();
+        Pointer p1 = arena.newString("outer", false);
+        long inner = arena.mark();
+        Pointer p2 = arena.newString("inner", false);
+        arena.release(inner);
+        Pointer p3 = arena.newString("outer2", false);
+        assertEquals("Outer allocation overwritten", "outer", p1.getString(0));
+        assertEquals("Inner memory should be reused", p2, p3);
+        arena.release(outer);
+    }
+
+    public void testLargeAllocation() {
+        ScratchArena arena = ScratchArena.get();
+        long mark = arena.mark();
+        try {
+            Pointer p = arena.allocate(ScratchArena.MAX_ALLOCATION + 1);
+            assertEquals("Large allocation should use Memory",
+                         Memory.class, p.getClass());
+            for (int i=0;i < ScratchArena.BLOCK_SIZE / 64 + 1;i++) {
+                arena.allocate(64).setInt(0, i);
+            }
+        }
+        finally {
+            arena.release(mark);
+        }
+    }
+
+    public void testTrimOnOutermostRelease() {
+        ScratchArena arena = ScratchArena.get();
+        int count = (ScratchArena.MAX_RETAINED_BLOCKS + 2) * ScratchArena.BLOCK_SIZE
+            / ScratchArena.MAX_ALLOCATION;
+        long outer = arena.mark();
+        long inner = arena.mark();
+        for (int i=0;i < count;i++) {
+            arena.allocate(ScratchArena.MAX_ALLOCATION);
+        }
+        assertTrue("Blocks should be added as needed",
+                   arena.getBlockCount() > ScratchArena.MAX_RETAINED_BLOCKS);
+        arena.release(inner);
+        assertTrue("Blocks should be kept while a mark is outstanding",
+                   arena.getBlockCount() > ScratchArena.MAX_RETAINED_BLOCKS);
+        arena.release(outer);
+        assertEquals("Excess blocks should be freed",
+                     ScratchArena.MAX_RETAINED_BLOCKS, arena.getBlockCount());
+    }
+
+    public void testWideString() {
+        ScratchArena arena = ScratchArena.get();
+        long mark = arena.mark();
+        try {
+            Pointer p = arena.newString("wide", true);
+            assertEquals("Wrong wide string", "wide", p.getString(0, true));
+        }
+        finally {
+            arena.release(mark);
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(ScratchArenaTest.class);
+    }
+}
@@ -0,0 +1,166 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StructureColumnsTest extends TestCase {
+
+    public static class Record extends Structure {
+        public byte flag;
+        public long timestamp;
+        public short code;
+        public double value;
+        public int count;
+        public float ratio;
+        public Pointer data;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "flag", "timestamp", "code", "value", "count", "ratio", "data" });
+        }
+    }
+
+    private static final int COUNT = 100;
+
+    private Record[] createRecords() {
+        Record[] records = (Record[])new Record().toArray(COUNT);
+        for (int i=0;i < records.length;i++) {
+            records[i].flag = (byte)i;
+            records[i].timestamp = 0x100000000L + i;
+            records[i].code = (short)(i * 3);
+            records[i].value = i / 2d;
+            records[i].count = -i;
+            records[i].ratio = i / 4f;
+            records[i].write();
+        }
+        return records;
+    }
+
+    public void testGather() {
+        Record[] records = createRecords();
+        StructureColumns columns = new StructureColumns(records);
+        assertEquals("Wrong count", COUNT, columns.getCount());
+        assertEquals("Wrong stride", records[0].size(), columns.getStride());
+        assertEquals("Wrong field type", long.class, columns.getFieldType("timestamp"));
+
+        byte[] flags = (byte[])columns.gather("flag");
+        long[] timestamps = (long[])columns.gather("timestamp");
+        short[] codes = (short[])columns.gather("code");
+        double[] values = (double[])columns.gather("value");
+        int[] counts = (int[])columns.gather("count");
+        float[] ratios = (float[])columns.gather("ratio");
+        for (int i=0;i < COUNT;i++) {
+            assertEquals("Wrong byte field " + i, records[i].flag, flags[i]);
+            assertEquals("Wrong long field " + i, records[i].timestamp, timestamps[i]);
+            assertEquals("Wrong short field " + i, records[i].code, codes[i]);
+            assertEquals("Wrong double field " + i, records[i].value, values[i], 0);
+            assertEquals("Wrong int field " + i, records[i].count, counts[i]);
+            assertEquals("Wrong float field " + i, records[i].ratio, ratios[i], 0);
+        }
+    }
+
+    public void testGatherRange() {
+        Record[] records = createRecords();
+        StructureColumns columns = new StructureColumns(Record.class, records[0].getPointer(), COUNT);
+        int[] counts = new int[12];
+        columns.gather("count", 50, counts, 1, 10);
+        assertEquals("Array element before range modified", 0, counts[0]);
+        for (int i=0;i < 10;i++) {
+            assertEquals("Wrong element " + i, -(50 + i), counts[i+1]);
+        }
+        assertEquals("Array element after range modified", 0, counts[11]);
+    }
+
+    public void testScatter() {
+        Record[] records = createRecords();
+        StructureColumns columns = new StructureColumns(records);
+        double[] values = new double[COUNT];
+        for (int i=0;i < values.length;i++) {
+            values[i] = Math.PI * i;
+        }
+        columns.scatter("value", values);
+        columns.scatter("count", 10, new int[] { 42, 43 }, 0, 2);
+        for (int i=0;i < COUNT;i++) {
+            records[i].read();
+            assertEquals("Wrong scattered value " + i, Math.PI * i, records[i].value, 0);
+            assertEquals("Adjacent field modified " + i, i / 4f, records[i].ratio, 0);
+            assertEquals("Adjacent field modified " + i, 0x100000000L + i, records[i].timestamp);
+        }
+        assertEquals("Wrong scattered range", 42, records[10].count);
+        assertEquals("Wrong scattered range", 43, records[11].count);
+        assertEquals("Field outside range modified", -12, records[12].count);
+    }
+
+    public void testInvalidAccess() {
+        Record[] records = createRecords();
+        StructureColumns columns = new StructureColumns(records);
+        try {
+            columns.gather("data");
+            fail("Pointer fields should not be accessible by column");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            columns.gather("count", 0, new long[COUNT], 0, COUNT);
+            fail("Array type must match field type");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            columns.gather("count", 1, new int[COUNT], 0, COUNT);
+            fail("Range must be within the structure array");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            columns.scatter("count", 0, new int[10], 5, 6);
+            fail("Range must be within the primitive array");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            columns.gather("count", 1, new int[COUNT], 1, Integer.MAX_VALUE);
+            fail("Overflowing range must be rejected");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            columns.scatter("count", 0, new int[COUNT], Integer.MAX_VALUE, 2);
+            fail("Overflowing array range must be rejected");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            new StructureColumns(Record.class, new Memory(records[0].size()), 2);
+            fail("Memory must be large enough for all structures");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            new StructureColumns(new Record[] { records[0], records[2] });
+            fail("Structures must be contiguous");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            new StructureColumns(new Record[0]);
+            fail("Empty structure array should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(StructureColumnsTest.class);
+    }
+}
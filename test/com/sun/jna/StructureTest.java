@@ -12,6 +12,9 @@
  */
 package com.sun.jna;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -622,6 +625,81 @@ public class StructureTest extends TestCase {
         assertEquals("Structure memory should be expanded", 2, s.toArray(2).length);
     }
 
+    public static class ArrayElementStructure extends Structure {
+        public byte b;
+        public char c;
+        public int i;
+        public long l;
+        public double d;
+        public boolean z;
+        public Pointer p;
+        public volatile int v;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "b", "c", "i", "l", "d", "z", "p", "v" });
+        }
+    }
+    public void testContiguousArrayReadWrite() {
+        final int COUNT = 100;
+        ArrayElementStructure s = new ArrayElementStructure();
+        ArrayElementStructure[] array = (ArrayElementStructure[])s.toArray(COUNT);
+        for (int i=0;i < COUNT;i++) {
+            array[i].b = (byte)i;
+            array[i].c = (char)('a' + i);
+            array[i].i = i * 1000;
+            array[i].l = (long)i << 40;
+            array[i].d = i / 2.0;
+            array[i].z = i % 2 == 0;
+            array[i].p = array[i].getPointer();
+            array[i].v = i;
+        }
+        int size = s.size();
+        final byte FILL = 0x55;
+        s.getPointer().setMemory(0, size * COUNT, FILL);
+        Structure.autoWrite(array);
+        int padding = s.fieldOffset("b") + 1;
+        for (int i=0;i < COUNT;i++) {
+            Pointer p = s.getPointer().share(size * i);
+            assertEquals("Padding should not be written at " + i, FILL, p.getByte(padding));
+            assertEquals("Wrong int written at " + i, i * 1000, p.getInt(s.fieldOffset("i")));
+            assertEquals("Wrong long written at " + i, (long)i << 40, p.getLong(s.fieldOffset("l")));
+            assertEquals("Wrong boolean written at " + i, i % 2 == 0 ? -1 : 0, p.getInt(s.fieldOffset("z")));
+            assertEquals("Wrong pointer written at " + i, array[i].getPointer(), p.getPointer(s.fieldOffset("p")));
+            assertEquals("Volatile field should not be written at " + i, 0x55555555, p.getInt(s.fieldOffset("v")));
+        }
+
+        ArrayElementStructure[] copy = (ArrayElementStructure[])
+            s.getPointer().getValue(0, ArrayElementStructure[].class,
+                                    new ArrayElementStructure[COUNT]);
+        for (int i=0;i < COUNT;i++) {
+            assertEquals("Wrong byte read at " + i, (byte)i, copy[i].b);
+            assertEquals("Wrong char read at " + i, (char)('a' + i), copy[i].c);
+            assertEquals("Wrong int read at " + i, i * 1000, copy[i].i);
+            assertEquals("Wrong long read at " + i, (long)i << 40, copy[i].l);
+            assertEquals("Wrong double read at " + i, i / 2.0, copy[i].d, 0);
+            assertEquals("Wrong boolean read at " + i, i % 2 == 0, copy[i].z);
+            assertEquals("Wrong pointer read at " + i, array[i].getPointer(), copy[i].p);
+        }
+    }
+
+    public static class OverriddenReadStructure extends Structure {
+        public int field;
+        private int reads;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "field" });
+        }
+        public void read() {
+            super.read();
+            ++reads;
+        }
+    }
+    public void testContiguousArrayReadCallsOverriddenRead() {
+        OverriddenReadStructure s = new OverriddenReadStructure();
+        OverriddenReadStructure[] array = (OverriddenReadStructure[])s.toArray(3);
+        assertEquals("Overridden read should be called", 1, array[2].reads);
+        Structure.autoRead(array);
+        assertEquals("Overridden read should be called on auto-read", 2, array[2].reads);
+    }
+
     public void testByReferenceArraySync() {
         PublicTestStructure.ByReference s = new PublicTestStructure.ByReference();
         PublicTestStructure.ByReference[] array =
@@ -725,6 +803,74 @@ public class StructureTest extends TestCase {
         assertEquals("Wrong first element", s.getPointer(), s.array[0]);
     }
 
+    public void testTrackChanges() {
+        class TrackedStructure extends Structure {
+            public int first;
+            public int second;
+            public int[] array = new int[2];
+            protected List getFieldOrder() {
+                return Arrays.asList(new String[] { "first", "second", "array" });
+            }
+        }
+        TrackedStructure s = new TrackedStructure();
+        s.setTrackChanges(true);
+        assertTrue("Changes should be tracked", s.getTrackChanges());
+        s.first = 1;
+        s.second = 2;
+        s.array[0] = 3;
+        s.write();
+        assertEquals("All fields should be written initially", 2, s.getPointer().getInt(4));
+
+        s.getPointer().setInt(0, -1);
+        s.getPointer().setInt(4, -1);
+        s.getPointer().setInt(8, -1);
+        s.second = 4;
+        s.write();
+        assertEquals("Unchanged field should not be written", -1, s.getPointer().getInt(0));
+        assertEquals("Changed field should be written", 4, s.getPointer().getInt(4));
+        assertEquals("Array field should always be written", 3, s.getPointer().getInt(8));
+
+        s.read();
+        assertEquals("Wrong value read", -1, s.first);
+        s.getPointer().setInt(0, 5);
+        s.write();
+        assertEquals("Field should not be written after read", 5, s.getPointer().getInt(0));
+        s.writeField("first");
+        assertEquals("Explicit field write should always write", -1, s.getPointer().getInt(0));
+
+        s.setTrackChanges(false);
+        s.getPointer().setInt(0, 5);
+        s.write();
+        assertEquals("All fields should be written when not tracking", -1, s.getPointer().getInt(0));
+    }
+
+    public void testAutoReadFields() {
+        class PartialStructure extends Structure {
+            public int first;
+            public int second;
+            protected List getFieldOrder() {
+                return Arrays.asList(new String[] { "first", "second" });
+            }
+        }
+        PartialStructure s = new PartialStructure();
+        s.setAutoReadFields(new String[] { "second" });
+        assertEquals("Wrong auto-read fields", 1, s.getAutoReadFields().length);
+        s.getPointer().setInt(0, 1);
+        s.getPointer().setInt(4, 2);
+        s.autoRead();
+        assertEquals("Field should not be auto-read", 0, s.first);
+        assertEquals("Field should be auto-read", 2, s.second);
+        s.setAutoReadFields(null);
+        s.autoRead();
+        assertEquals("All fields should be auto-read", 1, s.first);
+        try {
+            s.setAutoReadFields(new String[] { "third" });
+            fail("Unknown field names should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
     public void testVolatileStructureField() {
         class VolatileStructure extends Structure {
             public volatile int counter;
@@ -743,6 +889,71 @@ public class StructureTest extends TestCase {
         assertEquals("Explicit volatile field write failed", 1, s.getPointer().getInt(0));
     }
 
+    public static class AccessorStructure extends Structure {
+        public boolean z;
+        public byte b;
+        public short s;
+        public char c;
+        public int i;
+        public long l;
+        public float f;
+        public double d;
+        public volatile int v;
+        public Pointer p;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "z", "b", "s", "c", "i", "l", "f", "d", "v", "p" });
+        }
+    }
+    public void testGeneratedFieldAccessors() {
+        String old = System.getProperty("jna.structure.accessors");
+        System.setProperty("jna.structure.accessors", "true");
+        try {
+            AccessorStructure s = new AccessorStructure();
+            s.z = true;
+            s.b = (byte)0x7F;
+            s.s = (short)0x7FFF;
+            s.c = 'c';
+            s.i = 0x7FFFFFFF;
+            s.l = 0x7FFFFFFFFFFFFFFFL;
+            s.f = 1.5f;
+            s.d = -2.5;
+            s.v = 1;
+            s.p = s.getPointer();
+            s.write();
+            assertTrue("Primitive field should use generated accessor",
+                       ((Structure.StructField)s.fields().get("i")).hasAccessor);
+            assertFalse("Pointer field should not use generated accessor",
+                        ((Structure.StructField)s.fields().get("p")).hasAccessor);
+            assertEquals("Wrong boolean value written", -1,
+                         s.getPointer().getInt(s.fieldOffset("z")));
+            assertEquals("Volatile field should not be written", 0,
+                         s.getPointer().getInt(s.fieldOffset("v")));
+
+            s.getPointer().setInt(s.fieldOffset("v"), 2);
+            AccessorStructure s2 = new AccessorStructure();
+            s2.useMemory(s.getPointer());
+            s2.read();
+            assertTrue("Wrong boolean value read", s2.z);
+            assertEquals("Wrong byte value read", s.b, s2.b);
+            assertEquals("Wrong short value read", s.s, s2.s);
+            assertEquals("Wrong char value read", s.c, s2.c);
+            assertEquals("Wrong int value read", s.i, s2.i);
+            assertEquals("Wrong long value read", s.l, s2.l);
+            assertEquals("Wrong float value read", s.f, s2.f, 0);
+            assertEquals("Wrong double value read", s.d, s2.d, 0);
+            assertEquals("Volatile field should be read", 2, s2.v);
+            assertEquals("Wrong pointer value read", s.p, s2.p);
+        }
+        finally {
+            if (old != null) {
+                System.setProperty("jna.structure.accessors", old);
+            }
+            else {
+                System.getProperties().remove("jna.structure.accessors");
+            }
+        }
+    }
+
     public static class StructureWithPointers extends Structure {
         public PublicTestStructure.ByReference s1;
         public PublicTestStructure.ByReference s2;
@@ -1722,4 +1933,80 @@ public class StructureTest extends TestCase {
         assertEquals("Java Structure size does not match FFIType size",
                      s.size(), ffi_type.size.intValue());
     }
+
+    public static class BufferFieldStructure extends Structure {
+        public int count;
+        public int[] ints = new int[1024];
+        public double[] doubles = new double[16];
+        public byte[] bytes = new byte[8];
+        public Pointer pointer;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "count", "ints", "doubles", "bytes", "pointer" });
+        }
+    }
+
+    public void testGetFieldBuffer() {
+        BufferFieldStructure s = new BufferFieldStructure();
+        IntBuffer ints = (IntBuffer)s.getFieldBuffer("ints");
+        assertEquals("Wrong buffer capacity", s.ints.length, ints.capacity());
+        assertTrue("Buffer should be direct", ints.isDirect());
+        DoubleBuffer doubles = (DoubleBuffer)s.getFieldBuffer("doubles");
+        assertEquals("Wrong buffer capacity", s.doubles.length, doubles.capacity());
+        ByteBuffer bytes = (ByteBuffer)s.getFieldBuffer("bytes");
+        assertEquals("Wrong buffer capacity", s.bytes.length, bytes.capacity());
+
+        ints.put(1023, 42);
+        doubles.put(0, Math.PI);
+        assertEquals("Buffer should alias native memory",
+                     42, s.getPointer().getInt(s.fieldOffset("ints") + 1023*4));
+        assertEquals("Buffer should alias native memory", Math.PI,
+                     s.getPointer().getDouble(s.fieldOffset("doubles")), 0);
+
+        s.getPointer().setInt(s.fieldOffset("ints"), 7);
+        assertEquals("Native writes should be visible in buffer", 7, ints.get(0));
+    }
+
+    public void testFieldBufferNotCopied() {
+        BufferFieldStructure s = new BufferFieldStructure();
+        IntBuffer ints = (IntBuffer)s.getFieldBuffer("ints");
+        ints.put(0, 42);
+        s.count = 1;
+        s.ints[0] = -1;
+        s.write();
+        assertEquals("Other fields should be written", 1, s.getPointer().getInt(0));
+        assertEquals("Buffer field should not be written from the Java array", 42, ints.get(0));
+        s.read();
+        assertEquals("Buffer field should not be read into the Java array", -1, s.ints[0]);
+        s.readField("ints");
+        assertEquals("Explicit field read should still copy", 42, s.ints[0]);
+
+        BufferFieldStructure[] array = (BufferFieldStructure[])s.toArray(2);
+        ints = (IntBuffer)array[1].getFieldBuffer("ints");
+        ints.put(0, 42);
+        array[1].ints[0] = -1;
+        Structure.autoWrite(array);
+        assertEquals("Buffer field should not be written with array", 42, ints.get(0));
+    }
+
+    public void testGetFieldBufferInvalid() {
+        BufferFieldStructure s = new BufferFieldStructure();
+        try {
+            s.getFieldBuffer("count");
+            fail("Non-array fields can not be accessed as buffers");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            s.getFieldBuffer("pointer");
+            fail("Pointer fields can not be accessed as buffers");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            s.getFieldBuffer("nonexistent");
+            fail("Missing fields can not be accessed as buffers");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
 }
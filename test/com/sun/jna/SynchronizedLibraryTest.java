@@ -0,0 +1,246 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class SynchronizedLibraryTest extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    public static interface TestLib extends Library {
+        interface VoidCallback extends Callback {
+            void callback();
+        }
+        interface Int32Callback extends Callback {
+            int callback(int arg, int arg2);
+        }
+        void callVoidCallback(VoidCallback callback);
+        int callInt32Callback(Int32Callback callback, int arg, int arg2);
+    }
+
+    /** Counts threads inside a callback, holding each one until the
+     * expected number have arrived or the timeout expires.
+     */
+    private static class Rendezvous {
+        private final int expected;
+        private int arrived;
+        private int maxInside;
+        private int inside;
+        Rendezvous(int expected) {
+            this.expected = expected;
+        }
+        synchronized void arrive() {
+            ++arrived;
+            ++inside;
+            maxInside = Math.max(maxInside, inside);
+            notifyAll();
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (arrived < expected && System.currentTimeMillis() < end) {
+                try {
+                    wait(end - System.currentTimeMillis());
+                }
+                catch(InterruptedException e) {
+                }
+            }
+            --inside;
+        }
+        synchronized int getMaxInside() {
+            return maxInside;
+        }
+    }
+
+    private TestLib lib;
+
+    protected void setUp() {
+        lib = (TestLib)Native.loadLibrary("testlib", TestLib.class);
+    }
+
+    private TestLib synchronize(Map groups, Object defaultGroup, String shared) {
+        Map options = new HashMap();
+        options.put(SynchronizedLibrary.OPTION_LOCK_GROUPS, groups);
+        if (defaultGroup != null) {
+            options.put(SynchronizedLibrary.OPTION_DEFAULT_LOCK, defaultGroup);
+        }
+        if (shared != null) {
+            options.put(SynchronizedLibrary.OPTION_SHARED_METHODS, Collections.singleton(shared));
+        }
+        return (TestLib)Native.synchronizedLibrary(lib, options);
+    }
+
+    private SynchronizedLibrary.Statistics getStatistics(Object group) {
+        return (SynchronizedLibrary.Statistics)SynchronizedLibrary.getStatistics(lib).get(group);
+    }
+
+    private Thread[] start(final TestLib lib, final Rendezvous r, final boolean voidCallback, int count) {
+        Thread[] threads = new Thread[count];
+        for (int i=0;i < count;i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    if (voidCallback) {
+                        lib.callVoidCallback(new TestLib.VoidCallback() {
+                            public void callback() {
+                                r.arrive();
+                            }
+                        });
+                    }
+                    else {
+                        lib.callInt32Callback(new TestLib.Int32Callback() {
+                            public int callback(int arg, int arg2) {
+                                r.arrive();
+                                return arg + arg2;
+                            }
+                        }, 1, 2);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    private void join(Thread[] threads) throws InterruptedException {
+        for (int i=0;i < threads.length;i++) {
+            threads[i].join();
+        }
+    }
+
+    public void testSeparateLockGroups() throws Exception {
+        Map groups = new HashMap();
+        groups.put("callVoidCallback", "void-group");
+        groups.put("callInt32Callback", "int-group");
+        TestLib synchlib = synchronize(groups, null, null);
+        Rendezvous r = new Rendezvous(2);
+        Thread[] t1 = start(synchlib, r, true, 1);
+        Thread[] t2 = start(synchlib, r, false, 1);
+        join(t1);
+        join(t2);
+        assertEquals("Methods in different lock groups should run concurrently",
+                     2, r.getMaxInside());
+        assertEquals("Wrong acquisition count", 1,
+                     getStatistics("void-group").getAcquisitionCount());
+    }
+
+    public void testSharedMethod() throws Exception {
+        Map groups = new HashMap();
+        groups.put("callVoidCallback", "shared-group");
+        TestLib synchlib = synchronize(groups, null, "callVoidCallback");
+        Rendezvous r = new Rendezvous(3);
+        join(start(synchlib, r, true, 3));
+        assertEquals("Shared methods should run concurrently", 3, r.getMaxInside());
+        assertEquals("Wrong shared acquisition count", 3,
+                     getStatistics("shared-group").getSharedAcquisitionCount());
+    }
+
+    public void testExclusiveMethod() throws Exception {
+        Map groups = new HashMap();
+        groups.put("callVoidCallback", "exclusive-group");
+        groups.put("callInt32Callback", "exclusive-group");
+        // Shared calls must still exclude the other methods of the group
+        final TestLib synchlib = synchronize(groups, null, "callInt32Callback");
+        final Object lock = new Object();
+        final boolean[] inside = { false };
+        final boolean[] released = { false };
+        final boolean[] overlapped = { false };
+        Thread t1 = new Thread() {
+            public void run() {
+                synchlib.callVoidCallback(new TestLib.VoidCallback() {
+                    public void callback() {
+                        synchronized(lock) {
+                            inside[0] = true;
+                            lock.notifyAll();
+                            long end = System.currentTimeMillis() + TIMEOUT;
+                            while (!released[0] && System.currentTimeMillis() < end) {
+                                try {
+                                    lock.wait(end - System.currentTimeMillis());
+                                }
+                                catch(InterruptedException e) {
+                                }
+                            }
+                            inside[0] = false;
+                        }
+                    }
+                });
+            }
+        };
+        Thread t2 = new Thread() {
+            public void run() {
+                synchlib.callInt32Callback(new TestLib.Int32Callback() {
+                    public int callback(int arg, int arg2) {
+                        synchronized(lock) {
+                            overlapped[0] = inside[0];
+                        }
+                        return arg + arg2;
+                    }
+                }, 1, 2);
+            }
+        };
+        long contentions = getStatistics("exclusive-group").getContentionCount();
+        t1.start();
+        synchronized(lock) {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (!inside[0] && System.currentTimeMillis() < end) {
+                lock.wait(TIMEOUT);
+            }
+        }
+        t2.start();
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (getStatistics("exclusive-group").getContentionCount() == contentions
+               && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        synchronized(lock) {
+            released[0] = true;
+            lock.notifyAll();
+        }
+        t1.join();
+        t2.join();
+        assertFalse("Methods in the same lock group should not overlap", overlapped[0]);
+        assertEquals("Contention not recorded", contentions + 1,
+                     getStatistics("exclusive-group").getContentionCount());
+    }
+
+    public void testPerFunctionAndUnsynchronized() throws Exception {
+        Map groups = new HashMap();
+        groups.put("callInt32Callback", SynchronizedLibrary.UNSYNCHRONIZED);
+        TestLib synchlib = synchronize(groups, SynchronizedLibrary.PER_FUNCTION, null);
+        Rendezvous r = new Rendezvous(0);
+        join(start(synchlib, r, true, 1));
+        join(start(synchlib, r, false, 1));
+        Map stats = SynchronizedLibrary.getStatistics(synchlib);
+        assertTrue("Method should have its own lock group", stats.containsKey("callVoidCallback"));
+        assertFalse("Unsynchronized method should have no lock group",
+                    stats.containsKey("callInt32Callback"));
+    }
+
+    public void testReentrantCall() throws Exception {
+        final TestLib synchlib = synchronize(Collections.EMPTY_MAP, null, null);
+        final int[] result = { 0 };
+        synchlib.callVoidCallback(new TestLib.VoidCallback() {
+            public void callback() {
+                result[0] = synchlib.callInt32Callback(new TestLib.Int32Callback() {
+                    public int callback(int arg, int arg2) {
+                        return arg + arg2;
+                    }
+                }, 1, 2);
+            }
+        });
+        assertEquals("Nested call into the same lock group should succeed", 3, result[0]);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(SynchronizedLibraryTest.class);
+    }
+}
@@ -102,6 +102,29 @@ public class TypeMapperTest extends TestCase {
         assertEquals("Failed to convert Double argument to Int", MAGIC,
                      lib.returnInt32Argument(new Double(MAGIC)));
     }
+    public void testArgumentConversionByRuntimeType() {
+        DefaultTypeMapper mapper = new DefaultTypeMapper();
+        mapper.addToNativeConverter(Double.class, new ToNativeConverter() {
+            public Object toNative(Object arg, ToNativeContext ctx) {
+                return new Integer(-((Double)arg).intValue());
+            }
+            public Class nativeType() {
+                return Integer.class;
+            }
+        });
+        Map options = new HashMap();
+        options.put(Library.OPTION_TYPE_MAPPER, mapper);
+
+        final int MAGIC = 0x7BEDCF23;
+        TestLibrary lib = (TestLibrary)
+            Native.loadLibrary("testlib", TestLibrary.class, options);
+        for (int i=0;i < 2;i++) {
+            assertEquals("Failed to convert Double argument to Int", -MAGIC,
+                         lib.returnInt32Argument(new Double(MAGIC)));
+            assertEquals("Integer argument should not be converted", MAGIC,
+                         lib.returnInt32Argument(new Integer(MAGIC)));
+        }
+    }
     public static interface BooleanTestLibrary extends Library {
         boolean returnInt32Argument(boolean b);
     }
@@ -174,6 +197,33 @@ public class TypeMapperTest extends TestCase {
         assertFalse("Wrong value read", s.data);
     }
 
+    public void testConverterLookupAfterAdd() {
+        DefaultTypeMapper mapper = new DefaultTypeMapper();
+        assertNull("No converter expected", mapper.getToNativeConverter(Integer.class));
+        assertNull("No converter expected", mapper.getFromNativeConverter(int.class));
+
+        TypeConverter converter = new TypeConverter() {
+            public Object toNative(Object value, ToNativeContext ctx) {
+                return value;
+            }
+            public Object fromNative(Object value, FromNativeContext ctx) {
+                return value;
+            }
+            public Class nativeType() {
+                return Integer.class;
+            }
+        };
+        mapper.addTypeConverter(Number.class, converter);
+        assertSame("Cached lookup should be invalidated by add",
+                   converter, mapper.getToNativeConverter(Integer.class));
+        assertSame("Converter should apply to subclasses",
+                   converter, mapper.getToNativeConverter(Long.class));
+        assertSame("Cached lookup should be invalidated by add",
+                   converter, mapper.getFromNativeConverter(Integer.class));
+        assertNull("Primitive not assignable to Number",
+                   mapper.getFromNativeConverter(int.class));
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(TypeMapperTest.class);
     }